@@ -0,0 +1,86 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Norwegian Defence Research Establishment / NTNU
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package no.ntnu.okse.core;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free generator of unique IDs for messages, subscribers and topics.
+ * <p>
+ * An ID is a 32 character hex string made up of a random 64-bit node prefix, chosen once per JVM, followed by a
+ * 64-bit monotonic counter. IDs are therefore guaranteed to be unique within a running broker, and are in practice
+ * unique across restarts and brokers as well. Generating an ID costs a single atomic increment and no digest
+ * objects are allocated.
+ * <p>
+ * okse is licenced under the MIT licence.
+ */
+public class IDGenerator {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final long NODE_PREFIX = new SecureRandom().nextLong();
+    private static final AtomicLong counter = new AtomicLong(0);
+
+    /**
+     * Generates a new unique ID
+     *
+     * @return A string containing 32 lowercase hex characters
+     */
+    public static String generateID() {
+        char[] id = new char[32];
+        writeHex(id, 0, NODE_PREFIX);
+        writeHex(id, 16, counter.incrementAndGet());
+
+        return new String(id);
+    }
+
+    /**
+     * Retrieves the node prefix used by this JVM, as the first 16 characters of every generated ID
+     *
+     * @return A string containing the 16 hex character node prefix
+     */
+    public static String getNodePrefix() {
+        char[] prefix = new char[16];
+        writeHex(prefix, 0, NODE_PREFIX);
+
+        return new String(prefix);
+    }
+
+    /* Private helper methods */
+
+    /**
+     * Writes a long as 16 zero-padded hex characters into a char array
+     *
+     * @param target The array to write into
+     * @param offset The index of the first character to write
+     * @param value  The value to write
+     */
+    private static void writeHex(char[] target, int offset, long value) {
+        for (int i = offset + 15; i >= offset; i--) {
+            target[i] = HEX[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+    }
+}
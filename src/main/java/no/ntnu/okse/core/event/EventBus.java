@@ -0,0 +1,377 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Norwegian Defence Research Establishment / NTNU
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package no.ntnu.okse.core.event;
+
+import org.apache.log4j.Logger;
+
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * An asynchronous event bus delivering events of one kind to a set of listeners. Each listener has its own
+ * bounded queue and delivery thread, so a slow or failing listener only delays its own events, and never the
+ * service publishing them or the other listeners.
+ * <p>
+ * Events published from the same thread are delivered to each listener in the order they were published. If a
+ * listener queue is full, the publisher waits for room, so events that change state are never lost. Only events
+ * the bus has been told are droppable are dropped for that listener once the offer timeout passes. When a listener
+ * is removed, the events already in its queue are still delivered before its delivery thread stops.
+ * Delivered, dropped and pending events, as well as the lag of each listener, are tracked.
+ * <p>
+ * okse is licenced under the MIT licence.
+ */
+public class EventBus<L, E extends Event> {
+
+    private static Logger log = Logger.getLogger(EventBus.class.getName());
+
+    // Internal default values
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    public static final long DEFAULT_OFFER_TIMEOUT = 1000;
+    // How often a blocked publisher logs that it is still waiting, and an idle delivery thread checks for shutdown
+    private static final long BLOCKED_LOG_INTERVAL = 1000;
+    private static final long SHUTDOWN_POLL_INTERVAL = 100;
+
+    private final String name;
+    private final BiConsumer<L, E> dispatcher;
+    private final int capacity;
+    private final long offerTimeout;
+    private final Predicate<E> droppable;
+    private final ConcurrentHashMap<L, ListenerQueue> queues;
+    private final AtomicInteger sequence;
+
+    /**
+     * Constructs an event bus with the queue capacity and offer timeout read from the configuration, that never
+     * drops events
+     *
+     * @param name       The name of the bus, used to name the delivery threads
+     * @param dispatcher Delivers an event to a listener, i.e. calls the listener method
+     * @param config     The configuration to read EVENT_BUS_QUEUE_CAPACITY and EVENT_BUS_OFFER_TIMEOUT from
+     */
+    public EventBus(String name, BiConsumer<L, E> dispatcher, Properties config) {
+        this(name, dispatcher, config, e -> false);
+    }
+
+    /**
+     * Constructs an event bus with the queue capacity and offer timeout read from the configuration
+     *
+     * @param name       The name of the bus, used to name the delivery threads
+     * @param dispatcher Delivers an event to a listener, i.e. calls the listener method
+     * @param config     The configuration to read EVENT_BUS_QUEUE_CAPACITY and EVENT_BUS_OFFER_TIMEOUT from
+     * @param droppable  Selects the events that may be dropped for a listener whose queue stays full
+     */
+    public EventBus(String name, BiConsumer<L, E> dispatcher, Properties config, Predicate<E> droppable) {
+        this(name, dispatcher, readCapacity(config), readOfferTimeout(config), droppable);
+    }
+
+    /**
+     * Constructs an event bus that never drops events
+     *
+     * @param name         The name of the bus, used to name the delivery threads
+     * @param dispatcher   Delivers an event to a listener, i.e. calls the listener method
+     * @param capacity     The maximum number of events waiting in each listener queue
+     * @param offerTimeout Time in milliseconds a publisher waits for room in a full listener queue before dropping
+     */
+    public EventBus(String name, BiConsumer<L, E> dispatcher, int capacity, long offerTimeout) {
+        this(name, dispatcher, capacity, offerTimeout, e -> false);
+    }
+
+    /**
+     * Constructs an event bus
+     *
+     * @param name         The name of the bus, used to name the delivery threads
+     * @param dispatcher   Delivers an event to a listener, i.e. calls the listener method
+     * @param capacity     The maximum number of events waiting in each listener queue
+     * @param offerTimeout Time in milliseconds a publisher waits for room in a full listener queue before dropping
+     *                     a droppable event
+     * @param droppable    Selects the events that may be dropped for a listener whose queue stays full, all other
+     *                     events wait for room
+     */
+    public EventBus(String name, BiConsumer<L, E> dispatcher, int capacity, long offerTimeout, Predicate<E> droppable) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be at least 1");
+        this.name = name;
+        this.dispatcher = dispatcher;
+        this.capacity = capacity;
+        this.offerTimeout = Math.max(0, offerTimeout);
+        this.droppable = droppable;
+        this.queues = new ConcurrentHashMap<>();
+        this.sequence = new AtomicInteger();
+    }
+
+    /**
+     * Registers a listener and starts its delivery thread. Registering a listener twice has no effect.
+     *
+     * @param listener The listener to register
+     */
+    public synchronized void addListener(L listener) {
+        if (listener == null || queues.containsKey(listener)) return;
+        ListenerQueue q = new ListenerQueue(listener, name + "-" + listener.getClass().getSimpleName() + "-" + sequence.incrementAndGet());
+        queues.put(listener, q);
+        q.thread.start();
+    }
+
+    /**
+     * Unregisters a listener and stops its delivery thread, once the events still waiting in its queue have been
+     * delivered.
+     *
+     * @param listener The listener to unregister
+     */
+    public synchronized void removeListener(L listener) {
+        if (listener == null) return;
+        ListenerQueue q = queues.remove(listener);
+        if (q != null) q.shutdown();
+    }
+
+    /**
+     * Unregisters all listeners and stops their delivery threads, once the events still waiting in their queues
+     * have been delivered
+     */
+    public synchronized void removeAllListeners() {
+        queues.values().forEach(ListenerQueue::shutdown);
+        queues.clear();
+    }
+
+    /**
+     * Checks if a listener is registered
+     *
+     * @param listener The listener to check
+     * @return True if the listener is registered, false otherwise
+     */
+    public boolean hasListener(L listener) {
+        return listener != null && queues.containsKey(listener);
+    }
+
+    /**
+     * Retrieves the number of registered listeners
+     *
+     * @return The number of registered listeners
+     */
+    public int getNumberOfListeners() {
+        return queues.size();
+    }
+
+    /**
+     * Queues an event for delivery to all registered listeners
+     *
+     * @param event The event to publish
+     */
+    public void publish(E event) {
+        long published = System.currentTimeMillis();
+        queues.values().forEach(q -> q.offer(event, published));
+    }
+
+    /**
+     * Retrieves the total number of events waiting to be delivered, across all listeners
+     *
+     * @return The number of pending events
+     */
+    public long getTotalNumberOfPendingEvents() {
+        return queues.values().stream().mapToLong(q -> q.queue.size()).sum();
+    }
+
+    /**
+     * Retrieves the total number of events delivered, across the listeners currently registered
+     *
+     * @return The number of delivered events
+     */
+    public long getTotalNumberOfDeliveredEvents() {
+        return queues.values().stream().mapToLong(q -> q.delivered.get()).sum();
+    }
+
+    /**
+     * Retrieves the total number of droppable events dropped because a listener queue stayed full, across the
+     * listeners currently registered
+     *
+     * @return The number of dropped events
+     */
+    public long getTotalNumberOfDroppedEvents() {
+        return queues.values().stream().mapToLong(q -> q.dropped.get()).sum();
+    }
+
+    /**
+     * Retrieves the current lag of each listener, that is the age of the oldest event it has not yet finished
+     * handling, or 0 if it is idle
+     *
+     * @return A HashMap from the delivery thread name of each listener to its lag in milliseconds
+     */
+    public HashMap<String, Long> getListenerLag() {
+        long now = System.currentTimeMillis();
+        HashMap<String, Long> lag = new HashMap<>();
+        queues.values().forEach(q -> lag.put(q.thread.getName(), q.getLag(now)));
+        return lag;
+    }
+
+    /**
+     * Retrieves the largest lag observed when an event was delivered, across the listeners currently registered
+     *
+     * @return The largest delivery lag in milliseconds
+     */
+    public long getMaxDeliveryLag() {
+        return queues.values().stream().mapToLong(q -> q.maxLag).max().orElse(0);
+    }
+
+    /**
+     * Retrieves the maximum number of events waiting in each listener queue
+     *
+     * @return The listener queue capacity
+     */
+    public int getQueueCapacity() {
+        return capacity;
+    }
+
+    /* Private helper methods */
+
+    private static int readCapacity(Properties config) {
+        int capacity = DEFAULT_QUEUE_CAPACITY;
+        try {
+            capacity = Integer.parseInt(config.getProperty("EVENT_BUS_QUEUE_CAPACITY", Integer.toString(DEFAULT_QUEUE_CAPACITY)));
+        } catch (NumberFormatException e) {
+            log.error("Failed to parse EVENT_BUS_QUEUE_CAPACITY, using default: " + DEFAULT_QUEUE_CAPACITY);
+        }
+        if (capacity < 1) {
+            log.warn("EVENT_BUS_QUEUE_CAPACITY must be at least 1, using default: " + DEFAULT_QUEUE_CAPACITY);
+            capacity = DEFAULT_QUEUE_CAPACITY;
+        }
+        return capacity;
+    }
+
+    private static long readOfferTimeout(Properties config) {
+        long offerTimeout = DEFAULT_OFFER_TIMEOUT;
+        try {
+            offerTimeout = Long.parseLong(config.getProperty("EVENT_BUS_OFFER_TIMEOUT", Long.toString(DEFAULT_OFFER_TIMEOUT)));
+        } catch (NumberFormatException e) {
+            log.error("Failed to parse EVENT_BUS_OFFER_TIMEOUT, using default: " + DEFAULT_OFFER_TIMEOUT);
+        }
+        return offerTimeout;
+    }
+
+    /**
+     * An event waiting in a listener queue, along with the time it was published
+     */
+    private class Envelope {
+        private final E event;
+        private final long published;
+
+        private Envelope(E event, long published) {
+            this.event = event;
+            this.published = published;
+        }
+    }
+
+    /**
+     * The queue, delivery thread and counters of a single listener
+     */
+    private class ListenerQueue {
+        private final L listener;
+        private final ArrayBlockingQueue<Envelope> queue;
+        private final Thread thread;
+        private final AtomicLong delivered = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        // Publication time of the event being handled, or 0 when idle
+        private volatile long inFlight;
+        private volatile long maxLag;
+        private volatile boolean running = true;
+
+        private ListenerQueue(L listener, String threadName) {
+            this.listener = listener;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.thread = new Thread(this::run);
+            this.thread.setName(threadName);
+            // Delivery threads must not keep the JVM alive on their own
+            this.thread.setDaemon(true);
+        }
+
+        private void offer(E event, long published) {
+            Envelope envelope = new Envelope(event, published);
+            try {
+                if (droppable.test(event)) {
+                    if (!queue.offer(envelope, offerTimeout, TimeUnit.MILLISECONDS)) {
+                        long count = dropped.incrementAndGet();
+                        log.warn("Listener queue " + thread.getName() + " is full, dropped " + event.getType() +
+                                " event (" + count + " dropped in total)");
+                    }
+                    return;
+                }
+                // Losing a state changing event would leave the listener inconsistent, so hold the publisher
+                // until the listener catches up, unless the listener is removed in the meantime
+                while (running && !queue.offer(envelope, BLOCKED_LOG_INTERVAL, TimeUnit.MILLISECONDS)) {
+                    log.warn("Listener queue " + thread.getName() + " is full, waiting to queue " + event.getType() + " event");
+                }
+            } catch (InterruptedException e) {
+                dropped.incrementAndGet();
+                log.error("Interrupted while queueing " + event.getType() + " event for " + thread.getName());
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void run() {
+            // Keep delivering until stopped and every event queued before that has been delivered
+            while (true) {
+                Envelope envelope;
+                try {
+                    envelope = queue.poll(SHUTDOWN_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (envelope == null) {
+                    if (!running) break;
+                    continue;
+                }
+                inFlight = envelope.published;
+                try {
+                    dispatcher.accept(listener, envelope.event);
+                } catch (RuntimeException e) {
+                    // Isolate the failure to this event, so the listener keeps receiving the following ones
+                    log.error("Listener " + thread.getName() + " failed to handle " + envelope.event.getType() + " event", e);
+                }
+                long lag = System.currentTimeMillis() - envelope.published;
+                if (lag > maxLag) maxLag = lag;
+                inFlight = 0;
+                delivered.incrementAndGet();
+            }
+            log.debug("Delivery thread " + thread.getName() + " stopped");
+        }
+
+        private long getLag(long now) {
+            long oldest = inFlight;
+            if (oldest == 0) {
+                Envelope head = queue.peek();
+                if (head != null) oldest = head.published;
+            }
+            return oldest == 0 ? 0 : Math.max(0, now - oldest);
+        }
+
+        private void shutdown() {
+            // The delivery thread drains the queue before it stops
+            running = false;
+        }
+    }
+}
@@ -26,6 +26,8 @@ package no.ntnu.okse.core.event;
 
 import no.ntnu.okse.core.subscription.Subscriber;
 
+import java.util.HashSet;
+
 /**
  * Created by Aleksander Skraastad (myth) on 4/5/15.
  * <p>
@@ -43,6 +45,7 @@ public class SubscriptionChangeEvent extends Event {
     }
 
     private Type eventType;
+    private HashSet<Subscriber> subscribers;
 
     /**
      * Constructs a SubscriptionChangeEvent of a certain Type, with associated Subscriber object.
@@ -56,16 +59,51 @@ public class SubscriptionChangeEvent extends Event {
         this.eventType = eventType;
     }
 
+    /**
+     * Constructs a batched SubscriptionChangeEvent of a certain Type, for a set of subscribers changed at once.
+     * The data payload of such an event is null, the subscribers are fetched using getSubscribers.
+     * <p>
+     *
+     * @param eventType   : The type of subscription event this is
+     * @param subscribers : The subscriber objects in question.
+     */
+    public SubscriptionChangeEvent(Type eventType, HashSet<Subscriber> subscribers) {
+        super(null);
+        this.eventType = eventType;
+        this.subscribers = subscribers;
+    }
+
     /**
      * Fetch the related Subscriber object.
      *
-     * @return The Subscriber object associated with this event.
+     * @return The Subscriber object associated with this event, null if this is a batched event.
      */
     @Override
     public Subscriber getData() {
         return (Subscriber) data;
     }
 
+    /**
+     * Fetch all the Subscriber objects affected by this event.
+     *
+     * @return A HashSet of the subscribers of a batched event, or of the single subscriber in the data payload otherwise.
+     */
+    public HashSet<Subscriber> getSubscribers() {
+        if (this.subscribers != null) return this.subscribers;
+        HashSet<Subscriber> single = new HashSet<>();
+        if (this.data != null) single.add(getData());
+        return single;
+    }
+
+    /**
+     * Checks if this event covers several subscribers changed at once
+     *
+     * @return True if this is a batched event, false otherwise
+     */
+    public boolean isBatch() {
+        return this.subscribers != null;
+    }
+
     /**
      * Fetch the event type of this event.
      *
@@ -26,6 +26,8 @@ package no.ntnu.okse.core.event;
 
 import no.ntnu.okse.core.topic.Topic;
 
+import java.util.HashSet;
+
 /**
  * Created by Aleksander Skraastad (myth) on 4/11/15.
  * <p>
@@ -35,14 +37,18 @@ public class TopicChangeEvent extends Event {
 
     public enum Type {
         NEW,
+        NEW_BATCH,
         UPDATE,
         DELETE
     }
 
     Type type;
+    HashSet<Topic> topics;
+    String fullTopicString;
 
     /**
-     * Constructs an Event containing an operation, some data and a dataType.
+     * Constructs an Event containing an operation, some data and a dataType. The full topic string of the topic
+     * is captured right away, as a deleted topic is detached from its parent before the event is delivered.
      * <p>
      *
      * @param eventType : Type of TopicChangeEvent
@@ -51,6 +57,20 @@ public class TopicChangeEvent extends Event {
     public TopicChangeEvent(Type eventType, Object data) {
         super(data);
         this.type = eventType;
+        if (data instanceof Topic) this.fullTopicString = ((Topic) data).getFullTopicString();
+    }
+
+    /**
+     * Constructs an aggregated NEW_BATCH Event for a set of topics created at once. The data payload of
+     * such an event is null, the topics are fetched using getTopics.
+     * <p>
+     *
+     * @param topics : The topics that were created.
+     */
+    public TopicChangeEvent(HashSet<Topic> topics) {
+        super(null);
+        this.type = Type.NEW_BATCH;
+        this.topics = topics;
     }
 
     /**
@@ -64,6 +84,28 @@ public class TopicChangeEvent extends Event {
         return (Topic) this.data;
     }
 
+    /**
+     * A method to retrieve the full raw topic string of the topic in the data payload, as it was when the
+     * event was created.
+     *
+     * @return The full raw topic string, or null for NEW_BATCH events
+     */
+    public String getFullTopicString() {
+        return this.fullTopicString;
+    }
+
+    /**
+     * A method to retrieve all the topics affected by this event.
+     *
+     * @return A HashSet of the topics of a NEW_BATCH event, or of the single topic in the data payload otherwise.
+     */
+    public HashSet<Topic> getTopics() {
+        if (this.topics != null) return this.topics;
+        HashSet<Topic> single = new HashSet<>();
+        if (this.data != null) single.add(getData());
+        return single;
+    }
+
     /**
      * A method that returns the type of topic change event that occured.
      *
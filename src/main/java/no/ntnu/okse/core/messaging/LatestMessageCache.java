@@ -0,0 +1,277 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Norwegian Defence Research Establishment / NTNU
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package no.ntnu.okse.core.messaging;
+
+import org.apache.log4j.Logger;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of the latest message published on each topic, used to answer GetCurrentMessage requests.
+ * The cache has a budget in bytes based on the payload size of the cached messages, and evicts the least
+ * recently used topics when it is exceeded. Entries can also expire after a time to live, which can be
+ * overridden per topic.
+ * <p>
+ * Messages that leave the cache have their payload released, so off-heap buffers can be reused.
+ * <p>
+ * okse is licenced under the MIT licence.
+ */
+public class LatestMessageCache {
+
+    private static Logger log = Logger.getLogger(LatestMessageCache.class.getName());
+
+    private final LinkedHashMap<String, CacheEntry> entries;
+    private final HashMap<String, Long> topicTimeToLive;
+    private final long maxSizeInBytes;
+    private final long timeToLive;
+    private long sizeInBytes;
+
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+    private final AtomicLong expirations;
+
+    /**
+     * Constructs a new cache with the given limits
+     *
+     * @param maxSizeInBytes The maximum total payload size of the cached messages
+     * @param timeToLive     The default time in milliseconds a message stays in the cache, 0 to never expire
+     */
+    public LatestMessageCache(long maxSizeInBytes, long timeToLive) {
+        // Access ordered, so iteration starts at the least recently used topic
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.topicTimeToLive = new HashMap<>();
+        this.maxSizeInBytes = maxSizeInBytes;
+        this.timeToLive = timeToLive;
+        this.sizeInBytes = 0;
+        this.hits = new AtomicLong(0);
+        this.misses = new AtomicLong(0);
+        this.evictions = new AtomicLong(0);
+        this.expirations = new AtomicLong(0);
+    }
+
+    /**
+     * Caches a message as the latest message on a topic, replacing and releasing the previous one
+     *
+     * @param topic The raw topic string
+     * @param m     The message to cache
+     */
+    public synchronized void put(String topic, Message m) {
+        CacheEntry previous = entries.remove(topic);
+        if (previous != null) {
+            sizeInBytes -= previous.size;
+            if (previous.message != m) previous.message.releasePayload();
+        }
+
+        long size = m.getPayloadSize();
+        if (size > maxSizeInBytes) {
+            // It would evict everything else and still not fit, so rather leave the topic uncached
+            log.debug("Message on Topic{" + topic + "} of " + size + " bytes exceeds the cache budget, not caching it");
+            evictions.incrementAndGet();
+            m.releasePayload();
+            return;
+        }
+
+        long ttl = topicTimeToLive.getOrDefault(topic, timeToLive);
+        long expires = (ttl > 0) ? System.currentTimeMillis() + ttl : Long.MAX_VALUE;
+        entries.put(topic, new CacheEntry(m, size, expires));
+        sizeInBytes += size;
+
+        // Evict the least recently used topics until we are back within budget
+        Iterator<Map.Entry<String, CacheEntry>> iterator = entries.entrySet().iterator();
+        while (sizeInBytes > maxSizeInBytes && iterator.hasNext()) {
+            Map.Entry<String, CacheEntry> eldest = iterator.next();
+            iterator.remove();
+            sizeInBytes -= eldest.getValue().size;
+            eldest.getValue().message.releasePayload();
+            evictions.incrementAndGet();
+            log.debug("Evicted the latest message on Topic{" + eldest.getKey() + "} from cache");
+        }
+    }
+
+    /**
+     * Fetches the latest message on a topic, if it is cached and has not expired. The returned message is a view
+     * holding its own reference to the payload, so it stays readable even if the cached message is replaced or
+     * evicted in the meantime. The caller must call releasePayload on it when done.
+     *
+     * @param topic The raw topic string
+     * @return A view of the latest message on the topic, null if there is none
+     */
+    public synchronized Message get(String topic) {
+        CacheEntry entry = entries.get(topic);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        if (entry.expires <= System.currentTimeMillis()) {
+            removeEntry(topic);
+            expirations.incrementAndGet();
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        // Taken under the lock, so the payload can not be released between the lookup and the retain
+        return entry.message.duplicateForTopic(topic);
+    }
+
+    /**
+     * Removes and releases the cached message on a topic, if any
+     *
+     * @param topic The raw topic string
+     * @return True if a message was removed, false otherwise
+     */
+    public synchronized boolean remove(String topic) {
+        return removeEntry(topic);
+    }
+
+    /**
+     * Removes and releases all cached messages
+     */
+    public synchronized void clear() {
+        entries.values().forEach(entry -> entry.message.releasePayload());
+        entries.clear();
+        sizeInBytes = 0;
+    }
+
+    /**
+     * Overrides the time to live for messages cached on a specific topic. Applies to messages cached from now on.
+     *
+     * @param topic      The raw topic string
+     * @param timeToLive The time in milliseconds a message on this topic stays in the cache, 0 to never expire
+     */
+    public synchronized void setTimeToLive(String topic, long timeToLive) {
+        topicTimeToLive.put(topic, timeToLive);
+    }
+
+    /**
+     * Retrieves the time to live applied to messages cached on a specific topic
+     *
+     * @param topic The raw topic string
+     * @return The time in milliseconds a message on this topic stays in the cache, 0 if it never expires
+     */
+    public synchronized long getTimeToLive(String topic) {
+        return topicTimeToLive.getOrDefault(topic, timeToLive);
+    }
+
+    /**
+     * Removes a per topic time to live override, reverting the topic to the default time to live
+     *
+     * @param topic The raw topic string
+     */
+    public synchronized void removeTimeToLive(String topic) {
+        topicTimeToLive.remove(topic);
+    }
+
+    /**
+     * Retrieves the number of cached messages
+     *
+     * @return The number of topics with a cached message
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Retrieves the total payload size of the cached messages
+     *
+     * @return The number of bytes currently used from the budget
+     */
+    public synchronized long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /**
+     * Retrieves the byte budget of this cache
+     *
+     * @return The maximum total payload size of the cached messages
+     */
+    public long getMaxSizeInBytes() {
+        return maxSizeInBytes;
+    }
+
+    /**
+     * Retrieves the number of lookups that found a cached message
+     *
+     * @return The total number of cache hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Retrieves the number of lookups that did not find a cached message
+     *
+     * @return The total number of cache misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Retrieves the number of messages evicted, or rejected, to stay within the byte budget
+     *
+     * @return The total number of evictions
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Retrieves the number of messages removed because their time to live passed
+     *
+     * @return The total number of expirations
+     */
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    /* Private helper methods */
+
+    private boolean removeEntry(String topic) {
+        CacheEntry entry = entries.remove(topic);
+        if (entry == null) return false;
+        sizeInBytes -= entry.size;
+        entry.message.releasePayload();
+        return true;
+    }
+
+    private static class CacheEntry {
+        private final Message message;
+        private final long size;
+        private final long expires;
+
+        private CacheEntry(Message message, long size, long expires) {
+            this.message = message;
+            this.size = size;
+            this.expires = expires;
+        }
+    }
+}
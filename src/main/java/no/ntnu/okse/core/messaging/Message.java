@@ -24,13 +24,13 @@
 
 package no.ntnu.okse.core.messaging;
 
+import no.ntnu.okse.core.IDGenerator;
 import no.ntnu.okse.core.subscription.Publisher;
 import org.apache.log4j.Logger;
-import org.springframework.security.crypto.codec.Hex;
 
 import javax.annotation.Nonnull;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.util.HashMap;
 
@@ -46,14 +46,19 @@ public class Message {
     private final LocalDateTime created;
     private final String topic;
     private final String message;
-    private final String messageID;
+    private final MessagePayload payload;
+    private final Message origin;
 
     // Mutable fields
+    private volatile String messageID;
     private String originProtocol;
     private static Logger log;
     private HashMap<String, String> attributes;
     private LocalDateTime processed;
     private boolean systemMessage;
+    private boolean payloadReleased;
+    private volatile String deliveryContent;
+    private long logSequence;
 
     /**
      * Constructor that takes in a message, topic, publisher and originProtocol to produce a single OKSE Message
@@ -69,31 +74,62 @@ public class Message {
         this.topic = topic;
         this.created = LocalDateTime.now();
         this.processed = null;
-        this.message = message;
+        // Large bodies are encoded once into an off-heap buffer, if enabled
+        this.payload = MessagePayload.encode(message);
+        this.message = (payload == null) ? message : null;
         this.systemMessage = false;
-        this.messageID = generateMessageID();
+        this.messageID = IDGenerator.generateID();
         this.attributes = new HashMap<>();
         this.originProtocol = originProtocol;
+        this.origin = null;
+        this.logSequence = -1;
     }
 
     /**
-     * Private method that generates an MD5 message ID
+     * Private constructor used to create a lightweight view of another message. The view shares the payload,
+     * publisher, creation time and attributes of the origin, and only overrides the topic. Attributes set on the
+     * view are stored in a separate delta map, and the message ID is not generated until it is requested.
      *
-     * @return A string containing the generated messageID
+     * @param origin The message that holds the shared payload and headers
+     * @param topic  The full raw topic string the view is destined for
      */
-    private String generateMessageID() {
-        try {
-            MessageDigest m = MessageDigest.getInstance("MD5");
-            m.update(Long.toString(System.nanoTime()).getBytes());
-            byte[] hash = m.digest();
-            String messageID = new String(Hex.encode(hash));
+    private Message(Message origin, String topic) {
+        this.origin = origin;
+        this.topic = topic;
+        this.publisher = origin.publisher;
+        this.created = origin.created;
+        this.message = origin.message;
+        this.payload = origin.payload;
+        if (payload != null) payload.retain();
+        this.originProtocol = origin.originProtocol;
+        this.systemMessage = origin.systemMessage;
+        this.processed = null;
+        this.messageID = null;
+        this.attributes = null;
+        this.logSequence = -1;
+    }
 
-            return messageID;
-        } catch (NoSuchAlgorithmException e) {
-            log.error("Could not generate a message ID (MD5 algorithm not found)");
-        }
+    /**
+     * Creates a duplicate of this message destined for another topic. The duplicate is a view that shares the
+     * payload, headers and attributes of this message, but has its own message ID, completion time and
+     * attribute overrides.
+     *
+     * @param topic The full raw topic string the duplicate is destined for
+     * @return A new Message view that only differs from this one in topic
+     */
+    public Message duplicateForTopic(String topic) {
+        // Always point at the message holding the actual attributes, so views never chain
+        if (origin != null && attributes == null) return new Message(origin, topic);
+        return new Message(this, topic);
+    }
 
-        return null;
+    /**
+     * Checks to see if this message is a view sharing its payload with another message
+     *
+     * @return True if this message was created through duplicateForTopic, false otherwise
+     */
+    public boolean isView() {
+        return this.origin != null;
     }
 
     /**
@@ -102,6 +138,12 @@ public class Message {
      * @return A string containing the MessageID of this object.
      */
     public String getMessageID() {
+        // Views generate their ID lazily, as most of them are never asked for it
+        if (this.messageID == null) {
+            synchronized (this) {
+                if (this.messageID == null) this.messageID = IDGenerator.generateID();
+            }
+        }
         return this.messageID;
     }
 
@@ -111,9 +153,80 @@ public class Message {
      * @return A string containing the message
      */
     public String getMessage() {
+        if (this.payload != null) {
+            // Every protocol server reads the content during a delivery, so share the single decode made for it
+            String content = deliveryContent;
+            if (content != null) return content;
+            if (payloadReleased) throw new IllegalStateException("The payload of " + this + " has been released");
+            return this.payload.decode();
+        }
         return this.message;
     }
 
+    /**
+     * Decodes an off-heap payload once and keeps the result until endDelivery is called, so the protocol servers
+     * reading the content while this message is being delivered do not decode it over and over again.
+     * Does nothing for on-heap messages.
+     */
+    synchronized void beginDelivery() {
+        if (this.payload != null && !payloadReleased) deliveryContent = this.payload.decode();
+    }
+
+    /**
+     * Lets go of the content decoded by beginDelivery, so only the off-heap payload holds the content
+     */
+    void endDelivery() {
+        deliveryContent = null;
+    }
+
+    /**
+     * Retrieves the message content as a read-only buffer of UTF-8 encoded bytes, positioned at the start of the
+     * content. For off-heap messages this does not copy the content, and the buffer is only valid until the
+     * payload is released.
+     *
+     * @return A read-only ByteBuffer containing the UTF-8 encoded message
+     */
+    public ByteBuffer getPayloadBuffer() {
+        if (this.payload != null) {
+            if (payloadReleased) throw new IllegalStateException("The payload of " + this + " has been released");
+            return this.payload.asReadOnlyBuffer();
+        }
+        return ByteBuffer.wrap(this.message.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Checks to see if the content of this message is stored off-heap
+     *
+     * @return True if the content lives in a pooled direct buffer, false otherwise
+     */
+    public boolean isPayloadOffHeap() {
+        return this.payload != null;
+    }
+
+    /**
+     * Retrieves an estimate of the memory occupied by the content of this message. For off-heap messages this is
+     * the encoded size, for on-heap messages it is the size of the backing character array.
+     *
+     * @return The approximate size of the content in bytes
+     */
+    public long getPayloadSize() {
+        if (this.payload != null) return this.payload.length();
+        return this.message.length() * 2L;
+    }
+
+    /**
+     * Releases this message's reference to its off-heap payload, allowing the buffer to be reused once all views
+     * of the payload have been released. The content of this message can not be read afterwards.
+     * Does nothing for on-heap messages, and is safe to call more than once.
+     */
+    public synchronized void releasePayload() {
+        if (this.payload != null && !payloadReleased) {
+            payloadReleased = true;
+            deliveryContent = null;
+            this.payload.release();
+        }
+    }
+
     /**
      * Retrieves the Topic object this message is destined for
      *
@@ -196,6 +309,7 @@ public class Message {
      * @param value The value of the attribute
      */
     public void setAttribute(String key, String value) {
+        if (attributes == null) attributes = new HashMap<>(4);
         if (attributes.containsKey(key)) attributes.replace(key, value);
         else attributes.put(key, value);
     }
@@ -207,10 +321,22 @@ public class Message {
      * @return The value if the attribute exists, null otherwise
      */
     public String getAttribute(String key) {
-        if (attributes.containsKey(key)) return attributes.get(key);
+        if (attributes != null && attributes.containsKey(key)) return attributes.get(key);
+        if (origin != null) return origin.getAttribute(key);
         return null;
     }
 
+    /**
+     * Retrieve all attributes set on this message object
+     *
+     * @return A shallow copy of the internal attribute map
+     */
+    public HashMap<String, String> getAttributes() {
+        HashMap<String, String> collector = (origin != null) ? origin.getAttributes() : new HashMap<>();
+        if (attributes != null) collector.putAll(attributes);
+        return collector;
+    }
+
     /**
      * Retrieves the completion time of this message (when it was processed).
      *
@@ -240,8 +366,27 @@ public class Message {
         return this.systemMessage;
     }
 
+    /**
+     * Retrieves the sequence number this message was given when it was written to the MessageLog
+     *
+     * @return The log sequence number, -1 if the message has not been logged
+     */
+    long getLogSequence() {
+        return this.logSequence;
+    }
+
+    /**
+     * Sets the sequence number this message was given when it was written to the MessageLog
+     *
+     * @param logSequence The log sequence number
+     */
+    void setLogSequence(long logSequence) {
+        this.logSequence = logSequence;
+    }
+
     @Override
     public String toString() {
+        String messageID = getMessageID();
         return "Message (" + messageID.substring(0, 4) + "..." + messageID.substring(28, 32) +
                 ") [systemMessage: " + systemMessage + ", created: " + created + ", " +
                 "topic: " + topic + "]";
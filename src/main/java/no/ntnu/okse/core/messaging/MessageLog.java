@@ -0,0 +1,446 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Norwegian Defence Research Establishment / NTNU
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package no.ntnu.okse.core.messaging;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only, segmented write-ahead log of messages accepted by the MessageService. Each message is
+ * written to a memory-mapped segment file before it is dispatched, and marked as delivered once the protocol
+ * servers have handled it. A checkpoint file records the oldest message that may still be undelivered, and
+ * segments that only contain delivered messages are removed.
+ * <p>
+ * When the log is opened after a restart, all messages from the checkpoint and onwards are read back so they
+ * can be dispatched again. Delivery is at-least-once, as messages delivered after the last checkpoint are replayed.
+ * <p>
+ * okse is licenced under the MIT licence.
+ */
+public class MessageLog {
+
+    /**
+     * When the log forces written messages to disk
+     */
+    public static enum FsyncPolicy {
+        // Before append returns. Concurrent appenders share a single force (group commit)
+        ALWAYS,
+        // Periodically, from the MessageService log flusher
+        INTERVAL,
+        // Whenever the operating system decides, and when a segment is full
+        NEVER
+    }
+
+    private static Logger log = Logger.getLogger(MessageLog.class.getName());
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    // Record length, sequence number and CRC32 of the record body
+    private static final int RECORD_HEADER_SIZE = 16;
+
+    private final File directory;
+    private final int segmentSize;
+    private final FsyncPolicy fsyncPolicy;
+    private final ArrayList<Segment> segments;
+    // Outstanding log sequence numbers, with the number of deliveries each is still waiting for
+    private final ConcurrentSkipListMap<Long, Integer> outstanding;
+    private final Object flushLock;
+    private final AtomicLong appendedMessages;
+    private Segment activeSegment;
+    private long nextSequence;
+    private long flushedSequence;
+
+    /**
+     * Constructs a message log in the given directory. Nothing is read or written until the log is opened.
+     *
+     * @param directory   The directory holding the segment and checkpoint files
+     * @param segmentSize The size in bytes of each memory-mapped segment
+     * @param fsyncPolicy When written messages are forced to disk
+     */
+    public MessageLog(File directory, int segmentSize, FsyncPolicy fsyncPolicy) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.fsyncPolicy = fsyncPolicy;
+        this.segments = new ArrayList<>();
+        this.outstanding = new ConcurrentSkipListMap<>();
+        this.flushLock = new Object();
+        this.appendedMessages = new AtomicLong(0);
+        this.nextSequence = 0;
+        this.flushedSequence = -1;
+    }
+
+    /**
+     * Opens the log, reading back every message from the checkpoint and onwards. The returned messages are
+     * still outstanding, and must be marked as delivered like any other appended message.
+     *
+     * @return A list of the messages that may not have been delivered before the last shutdown, in log order
+     * @throws IOException If the log directory could not be read
+     */
+    public synchronized ArrayList<Message> open() throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) throw new IOException("Could not create " + directory);
+
+        long checkpoint = readCheckpoint();
+        nextSequence = checkpoint;
+        ArrayList<Message> replay = new ArrayList<>();
+
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        ArrayList<File> segmentFiles = new ArrayList<>();
+        if (files != null) for (File f : files) segmentFiles.add(f);
+        // Segment names are zero padded sequence numbers, so the natural order is the log order
+        segmentFiles.sort((a, b) -> a.getName().compareTo(b.getName()));
+
+        for (File f : segmentFiles) {
+            Segment segment = new Segment(f, mapSegment(f, (int) Math.min(f.length(), Integer.MAX_VALUE)));
+            segment.lastSequence = readSegment(segment, checkpoint, replay);
+            nextSequence = Math.max(nextSequence, segment.lastSequence + 1);
+            segments.add(segment);
+        }
+        flushedSequence = nextSequence - 1;
+
+        log.info("Opened message log in " + directory + " with " + segments.size() + " segment(s), " +
+                replay.size() + " message(s) to replay");
+
+        return replay;
+    }
+
+    /**
+     * Appends a message to the log, assigning it a log sequence number
+     *
+     * @param m The message to append
+     * @throws IOException If the message could not be written
+     */
+    public void append(Message m) throws IOException {
+        byte[] body = encode(m);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        long sequence;
+        synchronized (this) {
+            int recordSize = RECORD_HEADER_SIZE + body.length;
+            if (activeSegment == null || activeSegment.buffer.remaining() < recordSize + 4) rollSegment(recordSize + 4);
+
+            sequence = nextSequence++;
+            MappedByteBuffer buffer = activeSegment.buffer;
+            buffer.putInt(body.length);
+            buffer.putLong(sequence);
+            buffer.putInt((int) crc.getValue());
+            buffer.put(body);
+            activeSegment.lastSequence = sequence;
+
+            outstanding.put(sequence, 1);
+            m.setLogSequence(sequence);
+        }
+        appendedMessages.incrementAndGet();
+
+        if (fsyncPolicy == FsyncPolicy.ALWAYS) sync(sequence);
+    }
+
+    /**
+     * Registers a duplicate of a logged message, e.g a copy for a mapped topic. The duplicate is not written to the
+     * log itself, instead the logged message stays outstanding until the duplicate has been marked as delivered too.
+     * If the logged message is replayed, its duplicates are generated again.
+     *
+     * @param m         The logged message
+     * @param duplicate The duplicate of the message
+     */
+    public void addDuplicate(Message m, Message duplicate) {
+        long sequence = m.getLogSequence();
+        if (sequence < 0) return;
+        if (outstanding.computeIfPresent(sequence, (k, pending) -> pending + 1) != null) duplicate.setLogSequence(sequence);
+    }
+
+    /**
+     * Marks a message or one of its duplicates as delivered. Once the message and all of its duplicates are
+     * delivered, it will not be replayed after the next checkpoint.
+     *
+     * @param m The message that has been delivered, or deliberately discarded
+     */
+    public void markDelivered(Message m) {
+        if (m.getLogSequence() >= 0) {
+            outstanding.computeIfPresent(m.getLogSequence(), (k, pending) -> pending > 1 ? pending - 1 : null);
+        }
+    }
+
+    /**
+     * Forces everything written so far to disk
+     */
+    public void flush() {
+        long sequence;
+        synchronized (this) {
+            sequence = nextSequence - 1;
+        }
+        sync(sequence);
+    }
+
+    /**
+     * Writes a new checkpoint at the oldest undelivered message, and removes segments that are no longer needed
+     *
+     * @throws IOException If the checkpoint could not be written
+     */
+    public synchronized void checkpoint() throws IOException {
+        long watermark = outstanding.isEmpty() ? nextSequence : outstanding.firstKey();
+        writeCheckpoint(watermark);
+
+        segments.removeIf(segment -> {
+            if (segment == activeSegment || segment.lastSequence >= watermark) return false;
+            if (!segment.file.delete()) log.warn("Could not delete message log segment: " + segment.file);
+            return true;
+        });
+    }
+
+    /**
+     * Forces the log to disk and writes a final checkpoint
+     */
+    public void close() {
+        flush();
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            log.error("Failed to write message log checkpoint on close: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Retrieves the fsync policy of this log
+     *
+     * @return The FsyncPolicy in use
+     */
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    /**
+     * Retrieves the number of appended messages that have not been marked as delivered
+     *
+     * @return The number of outstanding messages
+     */
+    public int getNumberOfOutstandingMessages() {
+        return outstanding.size();
+    }
+
+    /**
+     * Retrieves the number of segment files currently in use
+     *
+     * @return The number of segments
+     */
+    public synchronized int getNumberOfSegments() {
+        return segments.size();
+    }
+
+    /**
+     * Retrieves the total number of messages appended since the log was opened
+     *
+     * @return The number of appended messages
+     */
+    public long getTotalAppendedMessages() {
+        return appendedMessages.get();
+    }
+
+    /* Private helper methods */
+
+    /**
+     * Forces the segments up to a sequence number to disk. Appenders waiting here are served by whichever
+     * force covers their sequence number, so concurrent appends are committed as a group.
+     */
+    private void sync(long sequence) {
+        synchronized (flushLock) {
+            if (flushedSequence >= sequence) return;
+
+            long target;
+            Segment segment;
+            synchronized (this) {
+                target = nextSequence - 1;
+                segment = activeSegment;
+            }
+            // Earlier segments are forced when they are rolled over
+            if (segment != null) segment.buffer.force();
+            flushedSequence = target;
+        }
+    }
+
+    private void rollSegment(int minimumSize) throws IOException {
+        if (activeSegment != null) {
+            // Mark the end of the data, in case the segment is not full
+            if (activeSegment.buffer.remaining() >= 4) activeSegment.buffer.putInt(0);
+            activeSegment.buffer.force();
+        }
+
+        File f = new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, nextSequence, SEGMENT_SUFFIX));
+        activeSegment = new Segment(f, mapSegment(f, Math.max(segmentSize, minimumSize)));
+        activeSegment.lastSequence = nextSequence - 1;
+        segments.add(activeSegment);
+        log.debug("Rolled message log over to new segment: " + f);
+    }
+
+    private static MappedByteBuffer mapSegment(File f, int size) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(f, "rw"); FileChannel channel = file.getChannel()) {
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Reads every intact record in a segment, collecting those at or after the checkpoint
+     *
+     * @return The highest sequence number found in the segment
+     */
+    private long readSegment(Segment segment, long checkpoint, ArrayList<Message> replay) {
+        MappedByteBuffer buffer = segment.buffer;
+        long lastSequence = -1;
+
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            int position = buffer.position();
+            int length = buffer.getInt();
+            // Segments are zero filled, so a zero length marks the end of the written data
+            if (length <= 0 || length > buffer.remaining() - 12) {
+                buffer.position(position);
+                break;
+            }
+            long sequence = buffer.getLong();
+            int checksum = buffer.getInt();
+            byte[] body = new byte[length];
+            buffer.get(body);
+
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            if ((int) crc.getValue() != checksum) {
+                log.warn("Found a torn record in message log segment " + segment.file + ", ignoring the rest of it");
+                buffer.position(position);
+                break;
+            }
+
+            lastSequence = sequence;
+            if (sequence < checkpoint) continue;
+
+            try {
+                Message m = decode(body);
+                m.setLogSequence(sequence);
+                outstanding.put(sequence, 1);
+                replay.add(m);
+            } catch (IOException e) {
+                log.error("Failed to decode message " + sequence + " from the message log: " + e.getMessage());
+            }
+        }
+
+        // The old segments are never appended to again
+        buffer.position(buffer.limit());
+        return lastSequence;
+    }
+
+    private long readCheckpoint() throws IOException {
+        File f = new File(directory, CHECKPOINT_FILE);
+        if (!f.exists()) return 0;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+            return in.readLong();
+        }
+    }
+
+    private void writeCheckpoint(long watermark) throws IOException {
+        File f = new File(directory, CHECKPOINT_FILE);
+        File tmp = new File(directory, CHECKPOINT_FILE + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp); DataOutputStream out = new DataOutputStream(fos)) {
+            out.writeLong(watermark);
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static byte[] encode(Message m) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, m.getTopic());
+        ByteBuffer payload = m.getPayloadBuffer();
+        byte[] content = new byte[payload.remaining()];
+        payload.get(content);
+        out.writeInt(content.length);
+        out.write(content);
+        writeString(out, m.getOriginProtocol());
+        out.writeBoolean(m.isSystemMessage());
+        HashMap<String, String> attributes = m.getAttributes();
+        out.writeInt(attributes.size());
+        for (String key : attributes.keySet()) {
+            writeString(out, key);
+            writeString(out, attributes.get(key));
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Message decode(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        String topic = readString(in);
+        String message = readString(in);
+        String originProtocol = readString(in);
+        boolean systemMessage = in.readBoolean();
+        Message m = new Message(message, topic, null, originProtocol);
+        m.setSystemMessage(systemMessage);
+        int attributes = in.readInt();
+        for (int i = 0; i < attributes; i++) m.setAttribute(readString(in), readString(in));
+        return m;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class Segment {
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private long lastSequence;
+
+        private Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+            this.lastSequence = -1;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Norwegian Defence Research Establishment / NTNU
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package no.ntnu.okse.core.messaging;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted UTF-8 message body stored in a pooled direct ByteBuffer. A payload is shared between
+ * a message and all its views, and the buffer is returned to the PayloadBufferPool when the last of them
+ * releases it.
+ * <p>
+ * okse is licenced under the MIT licence.
+ */
+class MessagePayload {
+
+    private ByteBuffer buffer;
+    private final int length;
+    private final AtomicInteger references;
+
+    private MessagePayload(ByteBuffer buffer, int length) {
+        this.buffer = buffer;
+        this.length = length;
+        this.references = new AtomicInteger(1);
+    }
+
+    /**
+     * Encodes a message body into an off-heap payload, if off-heap storage is enabled and the body is large enough
+     *
+     * @param message The message body to encode
+     * @return A new MessagePayload holding one reference, null if the body should stay on heap
+     */
+    static MessagePayload encode(String message) {
+        if (message == null || !PayloadBufferPool.isEnabled()) return null;
+        // A char never encodes to less than one byte, so skip the exact count for obviously small bodies
+        if (message.length() < PayloadBufferPool.getThreshold()) return null;
+
+        int length = utf8Length(message);
+        if (length < PayloadBufferPool.getThreshold()) return null;
+
+        ByteBuffer buffer = PayloadBufferPool.acquire(length);
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        CoderResult result = encoder.encode(CharBuffer.wrap(message), buffer, true);
+        if (!result.isUnderflow() || !encoder.flush(buffer).isUnderflow()) {
+            // Malformed surrogates and the like, keep the body on heap rather than guessing
+            PayloadBufferPool.release(buffer);
+            return null;
+        }
+
+        return new MessagePayload(buffer, buffer.position());
+    }
+
+    /**
+     * Retrieves the size of the encoded body
+     *
+     * @return The number of UTF-8 bytes in the body
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * Decodes the body into a String
+     *
+     * @return The message body
+     */
+    synchronized String decode() {
+        return StandardCharsets.UTF_8.decode(slice()).toString();
+    }
+
+    /**
+     * Creates a read-only view of the encoded body, positioned at the start of the body
+     *
+     * @return A read-only ByteBuffer containing the UTF-8 encoded body
+     */
+    synchronized ByteBuffer asReadOnlyBuffer() {
+        return slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Adds a reference to this payload
+     */
+    void retain() {
+        references.incrementAndGet();
+    }
+
+    /**
+     * Removes a reference from this payload, and returns the buffer to the pool when no references are left
+     */
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            synchronized (this) {
+                PayloadBufferPool.release(buffer);
+                buffer = null;
+            }
+        }
+    }
+
+    /* Private helper methods */
+
+    private ByteBuffer slice() {
+        if (buffer == null) throw new IllegalStateException("The message payload has already been released");
+        ByteBuffer view = buffer.duplicate();
+        view.position(0);
+        view.limit(length);
+        return view;
+    }
+
+    private static int utf8Length(String s) {
+        int count = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) count++;
+            else if (c < 0x800) count += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                count += 4;
+                i++;
+            } else count += 3;
+        }
+        return count;
+    }
+}
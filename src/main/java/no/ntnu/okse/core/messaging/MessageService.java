@@ -32,13 +32,20 @@ import no.ntnu.okse.core.event.listeners.TopicChangeListener;
 import no.ntnu.okse.core.topic.Topic;
 import no.ntnu.okse.core.topic.TopicService;
 
+import java.io.File;
+import java.io.IOException;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by Aleksander Skraastad (myth) on 4/17/15.
@@ -47,13 +54,54 @@ import java.util.concurrent.LinkedBlockingQueue;
  */
 public class MessageService extends AbstractCoreService implements TopicChangeListener {
 
+    // The different policies for handling messages arriving at a full dispatch lane
+    public static enum OverflowPolicy {
+        BLOCK,
+        DROP_OLDEST,
+        DROP_NEWEST,
+        SPILL_TO_DISK
+    }
+
     private static boolean _invoked = false;
     private static MessageService _singleton;
     private static Thread _serviceThread;
-    private LinkedBlockingQueue<Message> queue;
-    private ConcurrentHashMap<String, Message> latestMessages;
+    private ArrayList<ArrayBlockingQueue<Message>> lanes;
+    private ArrayList<MessageSpillFile> spillFiles;
+    private ArrayList<ConcurrentLinkedQueue<Message>> laneOverflows;
+    private Message laneWakeup;
+    private ArrayList<Thread> laneThreads;
+    private OverflowPolicy overflowPolicy;
+    private int laneCapacity;
+    private int maxBatchSize;
+    private AtomicLong droppedMessages;
+    private AtomicLong spilledMessages;
+    private LatestMessageCache latestMessages;
+    private MessageLog messageLog;
+    private ConcurrentHashMap<String, TopicHistory> histories;
+    private int historySize;
+    private ArrayList<Message> replayMessages;
+    private Thread logFlusherThread;
+    private long logFlushInterval;
     private Properties config;
 
+    // Internal default values
+    private static final int DEFAULT_DISPATCH_LANES = 1;
+    private static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    private static final int DEFAULT_BATCH_SIZE = 100;
+    private static final String DEFAULT_OVERFLOW_POLICY = "BLOCK";
+    private static final String DEFAULT_SPILL_DIRECTORY = "spill";
+    private static final int DEFAULT_OFFHEAP_THRESHOLD = 0;
+    private static final long DEFAULT_OFFHEAP_POOL_SIZE = 64 * 1024 * 1024;
+    private static final long DEFAULT_CACHE_SIZE = 64 * 1024 * 1024;
+    private static final long DEFAULT_CACHE_TTL = 0;
+    private static final int DEFAULT_HISTORY_SIZE = 0;
+    private static final String DEFAULT_LOG_ENABLED = "false";
+    private static final String DEFAULT_LOG_DIRECTORY = "wal";
+    private static final int DEFAULT_LOG_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final String DEFAULT_LOG_FSYNC_POLICY = "INTERVAL";
+    private static final long DEFAULT_LOG_FSYNC_INTERVAL = 1000;
+    private static final long SHUTDOWN_MESSAGE_TIMEOUT = 1000;
+
     /**
      * Private Constructor that recieves invocation from getInstance, enabling the singleton pattern for this class
      */
@@ -64,16 +112,194 @@ public class MessageService extends AbstractCoreService implements TopicChangeLi
     }
 
     /**
-     * Private initializer method that flags invocation state as true, and sets up message queue
+     * Package-private constructor that creates a standalone MessageService from the provided configuration,
+     * without touching the singleton. Used to exercise dispatch lanes with a specific size and overflow policy.
+     *
+     * @param config The properties to read the MessageService settings from
+     */
+    MessageService(Properties config) {
+        super(MessageService.class.getName());
+        configure(config);
+    }
+
+    /**
+     * Private initializer method that flags invocation state as true, and sets up the dispatch lanes
      */
     protected void init() {
-        config = Application.readConfigurationFiles();
-        log.info("Initializing MessageService...");
-        queue = new LinkedBlockingQueue<>();
-        latestMessages = new ConcurrentHashMap<>();
+        configure(Application.readConfigurationFiles());
         _invoked = true;
     }
 
+    /**
+     * Private helper that reads the settings from the configuration, and sets up the dispatch lanes, caches and
+     * message log accordingly
+     *
+     * @param properties The properties to read the MessageService settings from
+     */
+    private void configure(Properties properties) {
+        config = properties;
+        log.info("Initializing MessageService...");
+
+        // Attempt to extract the number of dispatch lanes from the configuration file
+        int laneCount = DEFAULT_DISPATCH_LANES;
+        try {
+            laneCount = Integer.parseInt(config.getProperty("MESSAGE_DISPATCH_LANES", Integer.toString(DEFAULT_DISPATCH_LANES)));
+        } catch (NumberFormatException e) {
+            log.error("Failed to parse MESSAGE_DISPATCH_LANES, using default: " + DEFAULT_DISPATCH_LANES);
+        }
+        if (laneCount < 1) {
+            log.warn("MESSAGE_DISPATCH_LANES must be at least 1, using default: " + DEFAULT_DISPATCH_LANES);
+            laneCount = DEFAULT_DISPATCH_LANES;
+        }
+
+        // Attempt to extract the capacity of each dispatch lane from the configuration file
+        laneCapacity = DEFAULT_QUEUE_CAPACITY;
+        try {
+            laneCapacity = Integer.parseInt(config.getProperty("MESSAGE_QUEUE_CAPACITY", Integer.toString(DEFAULT_QUEUE_CAPACITY)));
+        } catch (NumberFormatException e) {
+            log.error("Failed to parse MESSAGE_QUEUE_CAPACITY, using default: " + DEFAULT_QUEUE_CAPACITY);
+        }
+        if (laneCapacity < 1) {
+            log.warn("MESSAGE_QUEUE_CAPACITY must be at least 1, using default: " + DEFAULT_QUEUE_CAPACITY);
+            laneCapacity = DEFAULT_QUEUE_CAPACITY;
+        }
+
+        // Attempt to extract the maximum number of messages drained from a lane at once from the configuration file
+        maxBatchSize = DEFAULT_BATCH_SIZE;
+        try {
+            maxBatchSize = Integer.parseInt(config.getProperty("MESSAGE_BATCH_SIZE", Integer.toString(DEFAULT_BATCH_SIZE)));
+        } catch (NumberFormatException e) {
+            log.error("Failed to parse MESSAGE_BATCH_SIZE, using default: " + DEFAULT_BATCH_SIZE);
+        }
+        if (maxBatchSize < 1) {
+            log.warn("MESSAGE_BATCH_SIZE must be at least 1, using default: " + DEFAULT_BATCH_SIZE);
+            maxBatchSize = DEFAULT_BATCH_SIZE;
+        }
+
+        // Attempt to extract the overflow policy from the configuration file
+        try {
+            overflowPolicy = OverflowPolicy.valueOf(config.getProperty("MESSAGE_QUEUE_OVERFLOW_POLICY", DEFAULT_OVERFLOW_POLICY).trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            log.error("Unknown MESSAGE_QUEUE_OVERFLOW_POLICY, using default: " + DEFAULT_OVERFLOW_POLICY);
+            overflowPolicy = OverflowPolicy.valueOf(DEFAULT_OVERFLOW_POLICY);
+        }
+        String spillDirectory = config.getProperty("MESSAGE_SPILL_DIRECTORY", DEFAULT_SPILL_DIRECTORY);
+
+        // Attempt to extract the off-heap payload storage settings from the configuration file
+        int offHeapThreshold = DEFAULT_OFFHEAP_THRESHOLD;
+        long offHeapPoolSize = DEFAULT_OFFHEAP_POOL_SIZE;
+        try {
+            offHeapThreshold = Integer.parseInt(config.getProperty("MESSAGE_OFFHEAP_THRESHOLD", Integer.toString(DEFAULT_OFFHEAP_THRESHOLD)));
+        } catch (NumberFormatException e) {
+            log.error("Failed to parse MESSAGE_OFFHEAP_THRESHOLD, using default: " + DEFAULT_OFFHEAP_THRESHOLD);
+        }
+        try {
+            offHeapPoolSize = Long.parseLong(config.getProperty("MESSAGE_OFFHEAP_POOL_SIZE", Long.toString(DEFAULT_OFFHEAP_POOL_SIZE)));
+        } catch (NumberFormatException e) {
+            log.error("Failed to parse MESSAGE_OFFHEAP_POOL_SIZE, using default: " + DEFAULT_OFFHEAP_POOL_SIZE);
+        }
+        PayloadBufferPool.configure(offHeapThreshold, offHeapPoolSize);
+
+        // Each lane has its own bounded ring buffer, spill file and overflow for generated messages, messages are
+        // partitioned across them by topic
+        lanes = new ArrayList<>();
+        spillFiles = new ArrayList<>();
+        laneOverflows = new ArrayList<>();
+        for (int i = 0; i < laneCount; i++) {
+            lanes.add(new ArrayBlockingQueue<>(laneCapacity));
+            spillFiles.add(new MessageSpillFile(new File(spillDirectory, "lane-" + i + ".spill")));
+            laneOverflows.add(new ConcurrentLinkedQueue<>());
+        }
+        // Put into a lane to wake up its thread when generated messages are waiting in the overflow of that lane.
+        // It is flagged as a system message, so the overflow policies never drop it.
+        laneWakeup = new Message("", null, null, Application.OKSE_SYSTEM_NAME);
+        laneWakeup.setSystemMessage(true);
+        laneThreads = new ArrayList<>();
+        droppedMessages = new AtomicLong(0);
+        spilledMessages = new AtomicLong(0);
+        log.info("MessageService using " + laneCount + " dispatch lane(s) of capacity " + laneCapacity +
+                " with overflow policy " + overflowPolicy);
+
+        // Attempt to extract the latest message cache limits from the configuration file
+        long cacheSize = DEFAULT_CACHE_SIZE;
+        long cacheTimeToLive = DEFAULT_CACHE_TTL;
+        try {
+            cacheSize = Long.parseLong(config.getProperty("MESSAGE_CACHE_SIZE", Long.toString(DEFAULT_CACHE_SIZE)));
+        } catch (NumberFormatException e) {
+            log.error("Failed to parse MESSAGE_CACHE_SIZE, using default: " + DEFAULT_CACHE_SIZE);
+        }
+        try {
+            cacheTimeToLive = Long.parseLong(config.getProperty("MESSAGE_CACHE_TTL", Long.toString(DEFAULT_CACHE_TTL)));
+        } catch (NumberFormatException e) {
+            log.error("Failed to parse MESSAGE_CACHE_TTL, using default: " + DEFAULT_CACHE_TTL);
+        }
+        latestMessages = new LatestMessageCache(cacheSize, cacheTimeToLive);
+
+        // Attempt to extract the per topic cache time to live overrides, a comma separated list of topic=milliseconds
+        for (String override : config.getProperty("MESSAGE_CACHE_TOPIC_TTL", "").split(",")) {
+            if (override.trim().isEmpty()) continue;
+            int separator = override.lastIndexOf('=');
+            try {
+                if (separator < 1) throw new NumberFormatException();
+                latestMessages.setTimeToLive(override.substring(0, separator).trim(),
+                        Long.parseLong(override.substring(separator + 1).trim()));
+            } catch (NumberFormatException e) {
+                log.error("Failed to parse MESSAGE_CACHE_TOPIC_TTL entry, ignoring: " + override.trim());
+            }
+        }
+
+        // Attempt to extract the number of messages retained per topic for replay from the configuration file
+        historySize = DEFAULT_HISTORY_SIZE;
+        try {
+            historySize = Integer.parseInt(config.getProperty("MESSAGE_HISTORY_SIZE", Integer.toString(DEFAULT_HISTORY_SIZE)));
+        } catch (NumberFormatException e) {
+            log.error("Failed to parse MESSAGE_HISTORY_SIZE, using default: " + DEFAULT_HISTORY_SIZE);
+        }
+        histories = new ConcurrentHashMap<>();
+
+        initMessageLog();
+    }
+
+    /**
+     * Private helper that sets up the write-ahead message log, if enabled in the configuration file,
+     * and reads back the messages that were not delivered before the last shutdown
+     */
+    private void initMessageLog() {
+        messageLog = null;
+        replayMessages = new ArrayList<>();
+        if (!config.getProperty("MESSAGE_LOG_ENABLED", DEFAULT_LOG_ENABLED).trim().equalsIgnoreCase("true")) return;
+
+        int segmentSize = DEFAULT_LOG_SEGMENT_SIZE;
+        try {
+            segmentSize = Integer.parseInt(config.getProperty("MESSAGE_LOG_SEGMENT_SIZE", Integer.toString(DEFAULT_LOG_SEGMENT_SIZE)));
+        } catch (NumberFormatException e) {
+            log.error("Failed to parse MESSAGE_LOG_SEGMENT_SIZE, using default: " + DEFAULT_LOG_SEGMENT_SIZE);
+        }
+        MessageLog.FsyncPolicy fsyncPolicy;
+        try {
+            fsyncPolicy = MessageLog.FsyncPolicy.valueOf(config.getProperty("MESSAGE_LOG_FSYNC_POLICY", DEFAULT_LOG_FSYNC_POLICY).trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            log.error("Unknown MESSAGE_LOG_FSYNC_POLICY, using default: " + DEFAULT_LOG_FSYNC_POLICY);
+            fsyncPolicy = MessageLog.FsyncPolicy.valueOf(DEFAULT_LOG_FSYNC_POLICY);
+        }
+        logFlushInterval = DEFAULT_LOG_FSYNC_INTERVAL;
+        try {
+            logFlushInterval = Long.parseLong(config.getProperty("MESSAGE_LOG_FSYNC_INTERVAL", Long.toString(DEFAULT_LOG_FSYNC_INTERVAL)));
+        } catch (NumberFormatException e) {
+            log.error("Failed to parse MESSAGE_LOG_FSYNC_INTERVAL, using default: " + DEFAULT_LOG_FSYNC_INTERVAL);
+        }
+        if (logFlushInterval < 1) logFlushInterval = DEFAULT_LOG_FSYNC_INTERVAL;
+
+        MessageLog wal = new MessageLog(
+                new File(config.getProperty("MESSAGE_LOG_DIRECTORY", DEFAULT_LOG_DIRECTORY)), segmentSize, fsyncPolicy);
+        try {
+            replayMessages = wal.open();
+            messageLog = wal;
+        } catch (IOException e) {
+            log.error("Failed to open the message log, continuing without durability: " + e.getMessage());
+        }
+    }
+
     /**
      * The main invocation method of the MessageService. Instanciates a MessageService instance if needed,
      * and returns the active instance.
@@ -93,7 +319,7 @@ public class MessageService extends AbstractCoreService implements TopicChangeLi
             log.info("Booting MessageService...");
             _serviceThread = new Thread(() -> {
                 _running = true;
-                _singleton.run();
+                run();
             });
             _serviceThread.setName("MessageService");
             _serviceThread.start();
@@ -112,94 +338,235 @@ public class MessageService extends AbstractCoreService implements TopicChangeLi
     }
 
     /**
-     * This method should be called from within the run-scope of the serverThread thread instance
+     * This method should be called from within the run-scope of the serverThread thread instance.
+     * The MessageService thread serves the first dispatch lane itself, and spawns a dedicated thread for
+     * each of the remaining lanes.
      */
     public void run() {
         if (_invoked) {
             log.info("MessageService booted successfully");
-            while (_running) {
-                try {
-                    // Fetch the next job, will wait until a new message arrives
-                    Message m = queue.take();
-                    log.info("Received a message for distrubution: " + m);
 
-                    // Do we have a system message?
-                    if (m.isSystemMessage() && m.getTopic() == null) {
+            // Spawn a thread for each additional dispatch lane, the first entry is the thread serving the first lane
+            laneThreads.clear();
+            laneThreads.add(Thread.currentThread());
+            for (int i = 1; i < lanes.size(); i++) {
+                final int lane = i;
+                Thread laneThread = new Thread(() -> runLane(lane));
+                laneThread.setName("MessageService-Lane-" + lane);
+                laneThreads.add(laneThread);
+                laneThread.start();
+            }
 
-                        log.debug("Received message was a SystemMessage: " + m.getMessage());
+            if (messageLog != null) {
+                // Periodically force the log to disk if configured to, and move the checkpoint forward
+                logFlusherThread = new Thread(this::runLogFlusher);
+                logFlusherThread.setName("MessageService-LogFlusher");
+                logFlusherThread.start();
+
+                // Dispatch the messages that were not delivered before the last shutdown. This is done from its own
+                // thread, as the replay may block on a full lane that is served by this thread.
+                if (!replayMessages.isEmpty()) {
+                    ArrayList<Message> replay = replayMessages;
+                    replayMessages = new ArrayList<>();
+                    Thread replayThread = new Thread(() -> {
+                        log.info("Replaying " + replay.size() + " undelivered message(s) from the message log");
+                        replay.forEach(m -> enqueueMessage(m, true));
+                    });
+                    replayThread.setName("MessageService-Replay");
+                    replayThread.start();
+                }
+            }
 
-                        // Check if we are to broadcast this system message
-                        if (Application.BROADCAST_SYSTEM_MESSAGES_TO_SUBSCRIBERS) {
+            // The MessageService thread itself serves the first lane
+            runLane(0);
 
-                            log.debug("System Message Broadcast set to TRUE, distributing system message...");
+            log.debug("MessageService serverThread exited main run loop");
+        } else {
+            log.error("Run method called before invocation of the MessageService getInstance method");
+        }
+    }
 
-                            // Generate duplicate messages to all topics and iterate over them
-                            generateMessageToAllTopics(m).stream().forEach(message -> {
-                                // Fetch all protocol servers, and call sendMessage on each
-                                CoreService.getInstance().getAllProtocolServers().forEach(s -> s.sendMessage(message));
-                                // Flag the message as processed
-                                message.setProcessed();
-                            });
+    /**
+     * The main run loop of a single dispatch lane. Messages on the same topic always end up in the same lane,
+     * hence the ordering of messages on a topic is kept, while independent topics are processed in parallel.
+     *
+     * @param lane The index of the lane to serve
+     */
+    private void runLane(int lane) {
+        ArrayBlockingQueue<Message> laneQueue = lanes.get(lane);
+        ConcurrentLinkedQueue<Message> overflow = laneOverflows.get(lane);
+        ArrayList<Message> batch = new ArrayList<>(maxBatchSize);
+        while (_running) {
+            try {
+                // Fetch the next job, will wait until a new message arrives, unless generated messages are waiting
+                Message next = overflow.isEmpty() ? laneQueue.take() : laneQueue.poll();
+                if (next != null) batch.add(next);
+                // Grab whatever else is already waiting in the lane, up to the batch size
+                laneQueue.drainTo(batch, maxBatchSize - batch.size());
+                // Then the generated messages that were requeued while the lane was full
+                while (batch.size() < maxBatchSize && (next = overflow.poll()) != null) batch.add(next);
+                batch.removeIf(m -> m == laneWakeup);
+                log.debug("Drained a batch of " + batch.size() + " message(s) from dispatch lane " + lane);
+
+                // We have freed up space in the lane, so move spilled messages back in
+                if (overflowPolicy == OverflowPolicy.SPILL_TO_DISK) refillFromSpillFile(lane);
+
+                processBatch(batch);
+
+            } catch (InterruptedException e) {
+                // Lane threads are interrupted during shutdown, so only report it if we are still running
+                if (_running) log.error("Interrupted while attempting to fetch next Message from queue");
+            } finally {
+                batch.clear();
+            }
+        }
+        log.debug("MessageService dispatch lane " + lane + " exited main run loop");
+    }
 
-                            log.info("System message distribution completed");
-                        }
+    /**
+     * The run loop of the message log flusher
+     */
+    private void runLogFlusher() {
+        while (_running) {
+            try {
+                Thread.sleep(logFlushInterval);
+                if (messageLog.getFsyncPolicy() == MessageLog.FsyncPolicy.INTERVAL) messageLog.flush();
+                messageLog.checkpoint();
+            } catch (InterruptedException e) {
+                if (_running) log.error("Interrupted while waiting to flush the message log");
+            } catch (IOException e) {
+                log.error("Failed to write message log checkpoint: " + e.getMessage());
+            }
+        }
+    }
 
-                        // Set original message as processed.
-                        m.setProcessed();
+    /**
+     * Processes a batch of messages drained from a dispatch lane. Mappings are resolved for each message,
+     * and the deliverable messages are grouped by topic and handed to the protocol servers as a single batch.
+     *
+     * @param batch The messages to process, in the order they were drained from the lane
+     */
+    private void processBatch(List<Message> batch) {
+        // Group by topic, keeping the order in which the topics and their messages first appeared
+        LinkedHashMap<String, ArrayList<Message>> topicGroups = new LinkedHashMap<>();
+        batch.forEach(m -> {
+            log.info("Received a message for distrubution: " + m);
+            if (prepareMessage(m)) topicGroups.computeIfAbsent(m.getTopic(), t -> new ArrayList<>()).add(m);
+        });
 
-                        // Continue the run loop
-                        continue;
-                    }
+        // The lane thread is the worker. Delivering on it, rather than handing the batch to the ExecutorService,
+        // keeps batches from overtaking each other, and with them the order of messages on a topic.
+        if (!topicGroups.isEmpty()) deliverBatch(topicGroups);
+    }
 
-                    HashSet<Topic> mappings = TopicService.getInstance().getAllMappingsAgainstTopic(m.getTopic());
-                    if (mappings == null) {
-                        log.debug("The Topic{" + m.getTopic() + "} has no mappings");
-                    } else {
-                        log.debug("Found the following mappings against Topic{" + m.getTopic() + "}: " + mappings);
-
-                        generateMessageForAGivenTopicSet(m, mappings).forEach(duplicateMessage -> {
-                            duplicateMessage.setAttribute("duplicate", m.getTopic());
-
-                            if (m.getAttribute("duplicate") != null) {
-                                if (!m.getTopic().equals(duplicateMessage.getAttribute("duplicate"))) {
-                                    distributeMessage(duplicateMessage);
-                                    log.debug("The message to Topic{" + duplicateMessage.getTopic() + "} was distributed");
-                                } else {
-                                    log.debug("The message to Topic{" + duplicateMessage.getTopic() + "} is a duplicate against Topic{" + m.getTopic() + "}, and will not be distributed");
-                                }
-                            } else if (TopicService.getInstance().topicExists(m.getTopic())) {
-                                distributeMessage(duplicateMessage);
-                                log.debug("The message to Topic{" + duplicateMessage.getTopic() + "} was distributed");
-                            } else {
-                                log.debug("The message was not sent. Most likely since the Topic{" + duplicateMessage.getTopic() + "} does not exist");
-                            }
-
-                        });
-                    }
+    /**
+     * Delivers a batch of messages grouped by topic to all the registered protocol servers
+     *
+     * @param topicGroups The messages to deliver, grouped by topic
+     */
+    private void deliverBatch(LinkedHashMap<String, ArrayList<Message>> topicGroups) {
+        ArrayList<Message> ordered = new ArrayList<>();
+        topicGroups.forEach((topic, messages) -> ordered.addAll(messages));
+
+        // Fetch all registered protocol servers, and hand each of them the entire batch. Off-heap content is
+        // decoded once for the delivery, rather than once for every protocol server reading it.
+        ordered.forEach(Message::beginDelivery);
+        CoreService.getInstance().getAllProtocolServers().forEach(p -> p.sendMessages(ordered));
+        ordered.forEach(Message::endDelivery);
+
+        topicGroups.forEach((topic, messages) -> {
+            Message latest = messages.get(messages.size() - 1);
+            // Record the publish once per topic in the batch, keeping the topic from being reclaimed as idle
+            Topic topicNode = TopicService.getInstance().getTopic(topic);
+            if (topicNode != null) topicNode.markPublished();
+            // Retain a view of every message in the topic history, the view keeps the payload alive
+            if (historySize > 0) {
+                TopicHistory history = histories.computeIfAbsent(topic, t -> new TopicHistory(historySize));
+                messages.forEach(m -> history.append(m.duplicateForTopic(topic)));
+            }
 
+            // Add the last message on each topic to latestMessages cache, which releases the one it replaces
+            if (isCachingMessages()) latestMessages.put(topic, latest);
+            else latest.releasePayload();
+
+            messages.forEach(m -> {
+                // Set the message as processed, and store the completion time
+                LocalDateTime completedAt = m.setProcessed();
+                log.info("Message successfully distributed: " + m + " (Finished at: " + completedAt + ")");
+                // The protocol servers are done with the content, so only the cached message keeps its payload
+                if (m != latest) m.releasePayload();
+                if (messageLog != null) messageLog.markDelivered(m);
+            });
+        });
+    }
 
-                    // Tell the ExecutorService to execute the following job
-                    CoreService.getInstance().execute(() -> {
-                        // Add message to latestMessages cache
-                        latestMessages.put(m.getTopic(), m);
-                        // Fetch all registered protocol servers, and call the sendMessage() method on them
-                        CoreService.getInstance().getAllProtocolServers().forEach(p -> {
-                            // Fire the sendMessage on all servers
-                            p.sendMessage(m);
-                        });
-                        // Set the message as processed, and store the completion time
-                        LocalDateTime completedAt = m.setProcessed();
-                        log.info("Message successfully distributed: " + m + " (Finished at: " + completedAt + ")");
-                    });
+    /**
+     * Handles system messages and resolves mappings for a message, requeueing duplicates to the mapped topics
+     *
+     * @param m The message to process
+     * @return True if the message should be delivered to the protocol servers, false if it has been handled
+     */
+    private boolean prepareMessage(Message m) {
+        // Do we have a system message?
+        if (m.isSystemMessage() && m.getTopic() == null) {
+
+            log.debug("Received message was a SystemMessage: " + m.getMessage());
+
+            // Check if we are to broadcast this system message
+            if (Application.BROADCAST_SYSTEM_MESSAGES_TO_SUBSCRIBERS) {
+
+                log.debug("System Message Broadcast set to TRUE, distributing system message...");
+
+                // Generate duplicate messages to all topics and iterate over them
+                generateMessageToAllTopics(m).stream().forEach(message -> {
+                    // Fetch all protocol servers, and call sendMessage on each
+                    message.beginDelivery();
+                    CoreService.getInstance().getAllProtocolServers().forEach(s -> s.sendMessage(message));
+                    message.endDelivery();
+                    // Flag the message as processed
+                    message.setProcessed();
+                    message.releasePayload();
+                });
 
-                } catch (InterruptedException e) {
-                    log.error("Interrupted while attempting to fetch next Message from queue");
-                }
+                log.info("System message distribution completed");
             }
-            log.debug("MessageService serverThread exited main run loop");
+
+            // Set original message as processed.
+            m.setProcessed();
+            m.releasePayload();
+
+            return false;
+        }
+
+        // Single lookup in the precompiled fan-out table, null if the topic has no mappings. The targets are the
+        // full transitive closure of the mappings, so every reachable topic receives exactly one duplicate
+        String[] targets = TopicService.getInstance().getFanOutTargets(m.getTopic());
+        if (targets == null) {
+            log.debug("The Topic{" + m.getTopic() + "} has no mappings");
         } else {
-            log.error("Run method called before invocation of the MessageService getInstance method");
+            log.debug("Found the following mappings against Topic{" + m.getTopic() + "}: " + Arrays.toString(targets));
+
+            // Duplicates are never fanned out again, as the source message already covered every reachable topic
+            boolean isDuplicate = m.getAttribute("duplicate") != null;
+            boolean topicExists = !isDuplicate && TopicService.getInstance().topicExists(m.getTopic());
+
+            for (String target : targets) {
+                if (isDuplicate) {
+                    log.debug("The message to Topic{" + target + "} is a duplicate against Topic{" + m.getTopic() + "}, and will not be distributed");
+                } else if (topicExists) {
+                    Message duplicateMessage = m.duplicateForTopic(target);
+                    duplicateMessage.setAttribute("duplicate", m.getTopic());
+                    // Keep the message outstanding in the message log until the duplicate has been delivered as well
+                    if (messageLog != null) messageLog.addDuplicate(m, duplicateMessage);
+                    requeueMessage(duplicateMessage);
+                    log.debug("The message to Topic{" + target + "} was distributed");
+                } else {
+                    log.debug("The message was not sent. Most likely since the Topic{" + m.getTopic() + "} does not exist");
+                }
+            }
         }
+
+        return true;
     }
 
     /**
@@ -214,38 +581,215 @@ public class MessageService extends AbstractCoreService implements TopicChangeLi
         // Set it to system message
         m.setSystemMessage(true);
 
+        // The lane might be full and is no longer drained once we stop running, so never wait for room indefinitely
+        boolean injected = false;
         try {
-            queue.put(m);
+            injected = lanes.get(getLaneIndex(m.getTopic())).offer(m, SHUTDOWN_MESSAGE_TIMEOUT, TimeUnit.MILLISECONDS);
         } catch (InterruptedException e) {
             log.error("Interrupted while trying to inject shutdown message to queue");
         }
+        if (!injected) {
+            log.warn("Dispatch lane 0 is full, shutting down without distributing the shutdown message");
+            m.releasePayload();
+        }
+
+        // Wake up the remaining lanes, so they can exit their run loops. The first lane is woken up by the
+        // shutdown message, unless it could not be injected.
+        for (int i = 0; i < laneThreads.size(); i++) {
+            if (i > 0 || !injected) laneThreads.get(i).interrupt();
+        }
+
+        // Force the message log to disk, undelivered messages will be replayed on the next boot
+        if (logFlusherThread != null) logFlusherThread.interrupt();
+        if (messageLog != null) messageLog.close();
+
+        // Spilled messages will not be delivered after shutdown, so clean up the spill files
+        spillFiles.forEach(MessageSpillFile::clear);
     }
 
     /* Begin Public API */
 
     /**
-     * Adds a Message object into the message queue for distribution
+     * Adds a Message object into the message queue of the dispatch lane responsible for its topic.
+     * If the lane is full, the configured overflow policy decides what happens. System messages are never
+     * dropped or spilled.
      *
      * @param m The message object to be distributed
      */
     public void distributeMessage(Message m) {
-        try {
-            this.queue.put(m);
-        } catch (InterruptedException e) {
-            log.error("Interrupted while trying to inject message into queue");
+        // Write ahead, so the message survives a crash before it has been delivered
+        if (messageLog != null && !m.isSystemMessage()) {
+            try {
+                messageLog.append(m);
+            } catch (IOException e) {
+                log.error("Failed to write " + m + " to the message log: " + e.getMessage());
+            }
         }
+        enqueueMessage(m, true);
     }
 
     /**
-     * Retrieves the latest message sent on a specific topic
+     * Retrieves the number of dispatch lanes messages are partitioned across
+     *
+     * @return The number of dispatch lanes
+     */
+    public int getNumberOfDispatchLanes() {
+        return lanes.size();
+    }
+
+    /**
+     * Retrieves the current queue depth of each dispatch lane
+     *
+     * @return An ArrayList containing the number of messages waiting in each lane, ordered by lane index
+     */
+    public ArrayList<Integer> getDispatchLaneQueueDepths() {
+        ArrayList<Integer> depths = new ArrayList<>();
+        lanes.forEach(lane -> depths.add(lane.size()));
+
+        return depths;
+    }
+
+    /**
+     * Retrieves the total number of messages waiting for distribution across all dispatch lanes
+     *
+     * @return The total number of queued messages
+     */
+    public int getTotalNumberOfQueuedMessages() {
+        return lanes.stream().mapToInt(ArrayBlockingQueue::size).sum();
+    }
+
+    /**
+     * Retrieves the maximum number of messages drained from a dispatch lane in one batch
+     *
+     * @return The maximum batch size
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Retrieves the capacity of each dispatch lane
+     *
+     * @return The maximum number of messages that can wait in a single lane
+     */
+    public int getDispatchLaneCapacity() {
+        return laneCapacity;
+    }
+
+    /**
+     * Retrieves the policy used when a message arrives at a full dispatch lane
+     *
+     * @return The active OverflowPolicy
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Retrieves the total number of messages that have been dropped due to full dispatch lanes
+     *
+     * @return The number of dropped messages
+     */
+    public long getTotalNumberOfDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    /**
+     * Retrieves the total number of messages that have been spilled to disk due to full dispatch lanes
+     *
+     * @return The number of spilled messages
+     */
+    public long getTotalNumberOfSpilledMessages() {
+        return spilledMessages.get();
+    }
+
+    /**
+     * Retrieves the number of spilled messages that are currently waiting on disk
+     *
+     * @return The number of messages in the spill files
+     */
+    public int getTotalNumberOfPendingSpilledMessages() {
+        return spillFiles.stream().mapToInt(MessageSpillFile::size).sum();
+    }
+
+    /**
+     * Retrieves the latest message sent on a specific topic. The returned message holds its own reference to the
+     * payload, and the caller must call releasePayload on it when done.
      *
      * @param topic The topic to retrieve the latest message for
      * @return The message object for the specified topic, null if there has not been any messages yet
      */
     public Message getLatestMessage(String topic) {
-        if (latestMessages.containsKey(topic)) return latestMessages.get(topic);
+        return latestMessages.get(topic);
+    }
 
-        return null;
+    /**
+     * Retrieves the cache holding the latest message on each topic, for inspection of its size and metrics
+     *
+     * @return The LatestMessageCache of the MessageService
+     */
+    public LatestMessageCache getLatestMessageCache() {
+        return latestMessages;
+    }
+
+    /**
+     * Retrieves the write-ahead message log
+     *
+     * @return The MessageLog of the MessageService, null if it is disabled
+     */
+    public MessageLog getMessageLog() {
+        return messageLog;
+    }
+
+    /**
+     * Retrieves the retained messages on a topic from an offset and onwards, for replay to a new subscriber.
+     * If the offset is older than the oldest retained message, the replay starts at the oldest retained message.
+     * The caller must call releasePayload on each returned message once it has been sent.
+     *
+     * @param topic  The raw topic string
+     * @param offset The offset of the first message to replay
+     * @return A list of messages in offset order, empty if nothing is retained for the topic
+     */
+    public List<Message> getMessageHistory(String topic, long offset) {
+        if (topic == null) return new ArrayList<>();
+        TopicHistory history = histories.get(topic);
+        if (history == null) return new ArrayList<>();
+        return history.getMessagesFromOffset(offset);
+    }
+
+    /**
+     * Retrieves the retained messages on a topic created at or after a point in time, for replay to a new subscriber.
+     * The caller must call releasePayload on each returned message once it has been sent.
+     *
+     * @param topic The raw topic string
+     * @param since The earliest creation time to replay
+     * @return A list of messages in offset order, empty if nothing is retained for the topic
+     */
+    public List<Message> getMessageHistorySince(String topic, LocalDateTime since) {
+        if (topic == null) return new ArrayList<>();
+        TopicHistory history = histories.get(topic);
+        if (history == null) return new ArrayList<>();
+        return history.getMessagesSince(since);
+    }
+
+    /**
+     * Retrieves the offset the next message on a topic will get, allowing subscribers to track their position
+     *
+     * @param topic The raw topic string
+     * @return The next offset, 0 if nothing has been retained for the topic
+     */
+    public long getNextHistoryOffset(String topic) {
+        TopicHistory history = (topic == null) ? null : histories.get(topic);
+        return (history == null) ? 0 : history.getNextOffset();
+    }
+
+    /**
+     * Retrieves the maximum number of messages retained per topic
+     *
+     * @return The history size, 0 if the history is disabled
+     */
+    public int getHistorySize() {
+        return historySize;
     }
 
     /**
@@ -271,8 +815,7 @@ public class MessageService extends AbstractCoreService implements TopicChangeLi
 
         topics.stream()
                 .forEach(t -> {
-                    Message msg = new Message(m.getMessage(), t.getFullTopicString(), m.getPublisher(), m.getOriginProtocol());
-                    collector.add(msg);
+                    collector.add(m.duplicateForTopic(t.getFullTopicString()));
                 });
 
         return collector;
@@ -284,7 +827,152 @@ public class MessageService extends AbstractCoreService implements TopicChangeLi
     /* Private helper methods */
 
     /**
-     * Private helper method to duplicate an incoming message to be
+     * Private helper method that puts a message into its dispatch lane according to the overflow policy
+     *
+     * @param m     The message to enqueue
+     * @param block Whether the calling thread may block while waiting for room in the lane
+     * @return True if the message was handled by the lane (enqueued, spilled or dropped), false if the lane was full
+     * and blocking was not allowed
+     */
+    private boolean enqueueMessage(Message m, boolean block) {
+        int lane = getLaneIndex(m.getTopic());
+        ArrayBlockingQueue<Message> laneQueue = lanes.get(lane);
+
+        try {
+            // System messages must never be lost, as the CoreService waits for them to be processed
+            if (m.isSystemMessage() || overflowPolicy == OverflowPolicy.BLOCK) {
+                if (block) laneQueue.put(m);
+                else return laneQueue.offer(m);
+                return true;
+            }
+
+            switch (overflowPolicy) {
+                case DROP_NEWEST:
+                    if (!laneQueue.offer(m)) {
+                        discardMessage(m);
+                        droppedMessages.incrementAndGet();
+                        log.warn("Dispatch lane " + lane + " is full, dropped incoming " + m);
+                    }
+                    break;
+                case DROP_OLDEST:
+                    while (!laneQueue.offer(m)) {
+                        Message dropped = evictOldestMessage(laneQueue);
+                        // If a system message is next in line we may not drop it, so wait for room instead
+                        if (dropped == null) {
+                            if (block) laneQueue.put(m);
+                            else return laneQueue.offer(m);
+                            break;
+                        }
+                        discardMessage(dropped);
+                        droppedMessages.incrementAndGet();
+                        log.warn("Dispatch lane " + lane + " is full, dropped queued " + dropped);
+                    }
+                    break;
+                case SPILL_TO_DISK:
+                    MessageSpillFile spillFile = spillFiles.get(lane);
+                    // Once something is spilled, everything must be spilled until it is drained, to keep ordering
+                    synchronized (spillFile) {
+                        if (spillFile.isEmpty() && laneQueue.offer(m)) break;
+                        try {
+                            spillFile.append(m);
+                            spilledMessages.incrementAndGet();
+                            // The content now lives on disk
+                            m.releasePayload();
+                        } catch (IOException e) {
+                            discardMessage(m);
+                            droppedMessages.incrementAndGet();
+                            log.error("Failed to spill message to disk, dropped " + m + ": " + e.getMessage());
+                        }
+                    }
+                    break;
+            }
+        } catch (InterruptedException e) {
+            log.error("Interrupted while trying to inject message into queue");
+        }
+
+        return true;
+    }
+
+    /**
+     * Private helper that lets go of a message dropped by the overflow policy, so it is neither kept in memory
+     * nor replayed from the message log
+     *
+     * @param m The dropped message
+     */
+    private void discardMessage(Message m) {
+        m.releasePayload();
+        if (messageLog != null) messageLog.markDelivered(m);
+    }
+
+    /**
+     * Private helper method that requeues a message generated by the MessageService itself. As this is called from
+     * a lane thread, it must never block on a full lane, since that lane might be its own. If the lane is full,
+     * the message is put in the overflow of that lane instead, which is drained by the thread serving the lane,
+     * so the message is still delivered in order with the other messages on its topic.
+     *
+     * @param m The generated message to requeue
+     */
+    protected void requeueMessage(Message m) {
+        if (enqueueMessage(m, false)) return;
+
+        int lane = getLaneIndex(m.getTopic());
+        laneOverflows.get(lane).add(m);
+        // The lane might have been drained in the meantime, leaving its thread waiting for a new message. If there
+        // is no room for the wake up either, the lane is still full, and its thread will check the overflow anyway.
+        lanes.get(lane).offer(laneWakeup);
+    }
+
+    /**
+     * Private helper method that removes the oldest message from a lane, that is the message at its head. Only the
+     * head is ever looked at, so this takes constant time regardless of the lane capacity. System messages are never
+     * removed.
+     *
+     * @param laneQueue The lane to evict a message from
+     * @return The evicted message, or null if there was nothing to evict
+     */
+    private Message evictOldestMessage(ArrayBlockingQueue<Message> laneQueue) {
+        Message oldest = laneQueue.peek();
+        if (oldest == null || oldest.isSystemMessage()) return null;
+        // The message is found at the head, unless another thread consumed it in the meantime
+        if (laneQueue.remove(oldest)) return oldest;
+        return null;
+    }
+
+    /**
+     * Private helper method that moves spilled messages back into a lane, as long as there is room for them
+     *
+     * @param lane The index of the lane to refill
+     */
+    private void refillFromSpillFile(int lane) {
+        ArrayBlockingQueue<Message> laneQueue = lanes.get(lane);
+        MessageSpillFile spillFile = spillFiles.get(lane);
+        synchronized (spillFile) {
+            try {
+                while (!spillFile.isEmpty() && laneQueue.remainingCapacity() > 0) {
+                    laneQueue.offer(spillFile.poll());
+                }
+            } catch (IOException e) {
+                log.error("Failed to read spilled messages from disk, discarding " + spillFile.size() + " messages: " + e.getMessage());
+                droppedMessages.addAndGet(spillFile.size());
+                spillFile.clear();
+            }
+        }
+    }
+
+    /**
+     * Helper method that selects the dispatch lane for a topic. System messages without a topic always
+     * end up in the first lane.
+     *
+     * @param topic The raw topic string of the message
+     * @return The index of the lane responsible for the topic
+     */
+    protected int getLaneIndex(String topic) {
+        if (topic == null) return 0;
+        return Math.floorMod(topic.hashCode(), lanes.size());
+    }
+
+    /**
+     * Private helper method to duplicate an incoming message to be distributed to all topics
      *
      * @param m The message to be duplicated to all topics
      * @return A HashSet of the generated messages
@@ -294,12 +982,8 @@ public class MessageService extends AbstractCoreService implements TopicChangeLi
         HashSet<Message> generated = new HashSet<>();
         // Iterate over all topics and generate individual messages per topic
         TopicService.getInstance().getAllTopics().stream().forEach(t -> {
-            // Create the message wrapper
-            Message msg = new Message(m.getMessage(), t.getFullTopicString(), m.getPublisher(), m.getOriginProtocol());
-            // Flag the generated message the same as the originating message
-            msg.setSystemMessage(m.isSystemMessage());
-            // Add the message to the collector
-            generated.add(msg);
+            // Create a view sharing the payload and headers of the originating message, including the system flag
+            generated.add(m.duplicateForTopic(t.getFullTopicString()));
         });
 
         return generated;
@@ -310,13 +994,15 @@ public class MessageService extends AbstractCoreService implements TopicChangeLi
     @Override
     public void topicChanged(TopicChangeEvent event) {
         if (event.getType().equals(TopicChangeEvent.Type.DELETE)) {
-            // Fetch the raw topic string from the deleted topic
-            String rawTopicString = event.getData().getFullTopicString();
+            // Fetch the raw topic string captured when the event was created, as the deleted topic is detached
+            String rawTopicString = event.getFullTopicString();
 
             // If we have messages in cache for the topic in question, remove it to remove any remaining
             // reference to the Topic node, so the garbage collector can do its job.
-            if (latestMessages.containsKey(rawTopicString)) {
-                latestMessages.remove(rawTopicString);
+            TopicHistory history = histories.remove(rawTopicString);
+            if (history != null) history.clear();
+
+            if (latestMessages.remove(rawTopicString)) {
                 log.debug("Removed a message from cache due to its topic being deleted");
             }
         }
@@ -0,0 +1,179 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Norwegian Defence Research Establishment / NTNU
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package no.ntnu.okse.core.messaging;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * A simple append-only FIFO file that messages overflowing a dispatch lane can be spilled to.
+ * Messages are read back in the same order they were written, and the file is removed from disk
+ * once every spilled message has been read back.
+ * <p>
+ * Note that the Publisher reference of a message is not persisted, as it is not needed for delivery.
+ * <p>
+ * okse is licenced under the MIT licence.
+ */
+public class MessageSpillFile {
+
+    private static Logger log = Logger.getLogger(MessageSpillFile.class.getName());
+
+    private final File file;
+    private DataOutputStream out;
+    private DataInputStream in;
+    private int pending;
+
+    /**
+     * Constructs a spill file backed by the specified file. Nothing is created on disk until the first append.
+     *
+     * @param file The file to spill messages to
+     */
+    public MessageSpillFile(File file) {
+        this.file = file;
+        this.pending = 0;
+    }
+
+    /**
+     * Appends a message to the end of the spill file
+     *
+     * @param m The message to spill
+     * @throws IOException If the message could not be written to disk
+     */
+    public synchronized void append(Message m) throws IOException {
+        if (out == null) {
+            if (file.getParentFile() != null) file.getParentFile().mkdirs();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        }
+        writeString(m.getTopic());
+        // Copy the encoded content straight from the payload buffer, so off-heap bodies are never decoded
+        writeBuffer(m.getPayloadBuffer());
+        writeString(m.getOriginProtocol());
+        out.writeBoolean(m.isSystemMessage());
+        out.writeLong(m.getLogSequence());
+        HashMap<String, String> attributes = m.getAttributes();
+        out.writeInt(attributes.size());
+        for (String key : attributes.keySet()) {
+            writeString(key);
+            writeString(attributes.get(key));
+        }
+        out.flush();
+        pending++;
+    }
+
+    /**
+     * Reads the oldest message back from the spill file
+     *
+     * @return The oldest spilled message, null if there are none
+     * @throws IOException If the message could not be read from disk
+     */
+    public synchronized Message poll() throws IOException {
+        if (pending == 0) return null;
+        if (in == null) in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+        String topic = readString();
+        String message = readString();
+        String originProtocol = readString();
+        boolean systemMessage = in.readBoolean();
+        Message m = new Message(message, topic, null, originProtocol);
+        m.setSystemMessage(systemMessage);
+        // Keep the log sequence number, so the message can still be marked as delivered in the MessageLog
+        m.setLogSequence(in.readLong());
+        int attributes = in.readInt();
+        for (int i = 0; i < attributes; i++) m.setAttribute(readString(), readString());
+
+        // If we have read everything back, the file can be truncated
+        if (--pending == 0) clear();
+
+        return m;
+    }
+
+    /**
+     * Checks if there are any spilled messages that have not been read back
+     *
+     * @return True if there are no pending messages, false otherwise
+     */
+    public synchronized boolean isEmpty() {
+        return pending == 0;
+    }
+
+    /**
+     * Retrieves the number of spilled messages that have not been read back
+     *
+     * @return The number of pending messages
+     */
+    public synchronized int size() {
+        return pending;
+    }
+
+    /**
+     * Closes the streams and removes the spill file from disk. Any pending messages are discarded.
+     */
+    public synchronized void clear() {
+        try {
+            if (out != null) out.close();
+            if (in != null) in.close();
+        } catch (IOException e) {
+            log.error("I/O error while closing spill file: " + e.getMessage());
+        }
+        out = null;
+        in = null;
+        pending = 0;
+        if (file.exists() && !file.delete()) log.warn("Could not delete spill file: " + file);
+    }
+
+    /* Private helper methods */
+
+    private void writeString(String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private void writeBuffer(ByteBuffer buffer) throws IOException {
+        out.writeInt(buffer.remaining());
+        byte[] chunk = new byte[Math.min(buffer.remaining(), 8192)];
+        while (buffer.hasRemaining()) {
+            int length = Math.min(buffer.remaining(), chunk.length);
+            buffer.get(chunk, 0, length);
+            out.write(chunk, 0, length);
+        }
+    }
+
+    private String readString() throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
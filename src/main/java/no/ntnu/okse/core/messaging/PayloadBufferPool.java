@@ -0,0 +1,162 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Norwegian Defence Research Establishment / NTNU
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package no.ntnu.okse.core.messaging;
+
+import org.apache.log4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct ByteBuffers used to store large message payloads off-heap. Buffers are handed out in
+ * power of two size classes, and released buffers are kept for reuse until the pool reaches its size limit.
+ * <p>
+ * Off-heap storage is disabled until the pool is configured with a positive threshold.
+ * <p>
+ * okse is licenced under the MIT licence.
+ */
+public class PayloadBufferPool {
+
+    private static Logger log = Logger.getLogger(PayloadBufferPool.class.getName());
+
+    private static final int MIN_BUFFER_SIZE = 4096;
+    private static final int MAX_POOLED_BUFFER_SIZE = 1 << 30;
+
+    private static final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<ByteBuffer>> pool = new ConcurrentHashMap<>();
+    private static final AtomicLong pooledBytes = new AtomicLong(0);
+    private static final AtomicLong allocatedBuffers = new AtomicLong(0);
+    private static volatile int threshold = 0;
+    private static volatile long maxPooledBytes = 0;
+
+    /**
+     * Configures the off-heap storage mode
+     *
+     * @param payloadThreshold  The payload size in bytes from which payloads are stored off-heap, 0 to disable
+     * @param maxPoolSizeBytes  The maximum number of bytes kept in the pool for reuse
+     */
+    public static void configure(int payloadThreshold, long maxPoolSizeBytes) {
+        threshold = Math.max(payloadThreshold, 0);
+        maxPooledBytes = Math.max(maxPoolSizeBytes, 0);
+        log.info("Off-heap payload storage " + (isEnabled() ?
+                "enabled for payloads of " + threshold + " bytes or more, pooling up to " + maxPooledBytes + " bytes" :
+                "disabled"));
+    }
+
+    /**
+     * Checks to see if off-heap payload storage is enabled
+     *
+     * @return True if payloads above the threshold should be stored off-heap, false otherwise
+     */
+    public static boolean isEnabled() {
+        return threshold > 0;
+    }
+
+    /**
+     * Retrieves the payload size from which payloads are stored off-heap
+     *
+     * @return The threshold in bytes, 0 if off-heap storage is disabled
+     */
+    public static int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Fetches a cleared direct buffer with at least the requested capacity, reusing a pooled one if available
+     *
+     * @param size The number of bytes needed
+     * @return A direct ByteBuffer with a capacity of at least size bytes
+     */
+    public static ByteBuffer acquire(int size) {
+        if (size > MAX_POOLED_BUFFER_SIZE) {
+            allocatedBuffers.incrementAndGet();
+            return ByteBuffer.allocateDirect(size);
+        }
+
+        int sizeClass = getSizeClass(size);
+        ConcurrentLinkedQueue<ByteBuffer> buffers = pool.get(sizeClass);
+        ByteBuffer buffer = (buffers != null) ? buffers.poll() : null;
+
+        if (buffer == null) {
+            allocatedBuffers.incrementAndGet();
+            return ByteBuffer.allocateDirect(sizeClass);
+        }
+
+        pooledBytes.addAndGet(-buffer.capacity());
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. If the pool is full, the buffer is left for the garbage collector.
+     *
+     * @param buffer The buffer to release, must not be used by the caller afterwards
+     */
+    public static void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (capacity > MAX_POOLED_BUFFER_SIZE || Integer.bitCount(capacity) != 1) return;
+
+        if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+            pooledBytes.addAndGet(-capacity);
+            return;
+        }
+        pool.computeIfAbsent(capacity, k -> new ConcurrentLinkedQueue<>()).offer(buffer);
+    }
+
+    /**
+     * Retrieves the number of bytes currently held in the pool for reuse
+     *
+     * @return The number of pooled bytes
+     */
+    public static long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * Retrieves the total number of direct buffers that has been allocated by the pool
+     *
+     * @return The number of allocated buffers
+     */
+    public static long getTotalAllocatedBuffers() {
+        return allocatedBuffers.get();
+    }
+
+    /**
+     * Drops all pooled buffers, leaving them for the garbage collector
+     */
+    public static void clear() {
+        pool.clear();
+        pooledBytes.set(0);
+    }
+
+    /* Private helper methods */
+
+    private static int getSizeClass(int size) {
+        if (size <= MIN_BUFFER_SIZE) return MIN_BUFFER_SIZE;
+        int sizeClass = Integer.highestOneBit(size);
+        return (sizeClass == size) ? size : sizeClass << 1;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Norwegian Defence Research Establishment / NTNU
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package no.ntnu.okse.core.messaging;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+
+/**
+ * A bounded, in-memory history of the messages delivered on a single topic. Every message is assigned a
+ * monotonically increasing offset, and the oldest messages are dropped once the capacity is reached.
+ * Subscribers can use the history to catch up from an offset or a point in time.
+ * <p>
+ * okse is licenced under the MIT licence.
+ */
+public class TopicHistory {
+
+    private final Message[] ring;
+    private long firstOffset;
+    private long nextOffset;
+
+    /**
+     * Constructs an empty history
+     *
+     * @param capacity The maximum number of messages retained
+     */
+    public TopicHistory(int capacity) {
+        this.ring = new Message[capacity];
+        this.firstOffset = 0;
+        this.nextOffset = 0;
+    }
+
+    /**
+     * Appends a message to the history, dropping and releasing the oldest message if the history is full
+     *
+     * @param m The message to retain. The history takes over the reference to its payload.
+     * @return The offset assigned to the message
+     */
+    public synchronized long append(Message m) {
+        int index = (int) (nextOffset % ring.length);
+        if (nextOffset - firstOffset == ring.length) {
+            ring[index].releasePayload();
+            firstOffset++;
+        }
+        ring[index] = m;
+        return nextOffset++;
+    }
+
+    /**
+     * Retrieves all retained messages from an offset and onwards. If the offset is older than the oldest retained
+     * message, the replay starts at the oldest retained message.
+     * <p>
+     * The returned messages are views holding their own reference to the payload, so they stay readable even if
+     * they are dropped from the history during the replay. The caller must call releasePayload on each of them.
+     *
+     * @param offset The offset of the first message to fetch
+     * @return An ArrayList of the messages in offset order
+     */
+    public synchronized ArrayList<Message> getMessagesFromOffset(long offset) {
+        ArrayList<Message> collector = new ArrayList<>();
+        for (long o = Math.max(offset, firstOffset); o < nextOffset; o++) {
+            Message m = ring[(int) (o % ring.length)];
+            collector.add(m.duplicateForTopic(m.getTopic()));
+        }
+        return collector;
+    }
+
+    /**
+     * Retrieves all retained messages created at or after a point in time. The returned messages are views, and
+     * the caller must call releasePayload on each of them.
+     *
+     * @param since The earliest creation time to include
+     * @return An ArrayList of the messages in offset order
+     */
+    public synchronized ArrayList<Message> getMessagesSince(LocalDateTime since) {
+        ArrayList<Message> collector = new ArrayList<>();
+        for (long o = firstOffset; o < nextOffset; o++) {
+            Message m = ring[(int) (o % ring.length)];
+            if (!m.getCreationTime().isBefore(since)) collector.add(m.duplicateForTopic(m.getTopic()));
+        }
+        return collector;
+    }
+
+    /**
+     * Retrieves the offset of the oldest retained message
+     *
+     * @return The first offset available for replay, equal to the next offset if the history is empty
+     */
+    public synchronized long getFirstOffset() {
+        return firstOffset;
+    }
+
+    /**
+     * Retrieves the offset the next appended message will get
+     *
+     * @return The next offset
+     */
+    public synchronized long getNextOffset() {
+        return nextOffset;
+    }
+
+    /**
+     * Retrieves the number of retained messages
+     *
+     * @return The number of messages in the history
+     */
+    public synchronized int size() {
+        return (int) (nextOffset - firstOffset);
+    }
+
+    /**
+     * Drops and releases all retained messages. Offsets keep increasing from where they were.
+     */
+    public synchronized void clear() {
+        for (long o = firstOffset; o < nextOffset; o++) {
+            int index = (int) (o % ring.length);
+            ring[index].releasePayload();
+            ring[index] = null;
+        }
+        firstOffset = nextOffset;
+    }
+
+    /**
+     * Parses a replay timestamp given by a subscriber, either as milliseconds since the epoch or as an
+     * ISO-8601 instant like 2015-04-17T12:00:00Z
+     *
+     * @param timestamp The timestamp to parse
+     * @return The timestamp as a LocalDateTime in the system time zone
+     * @throws IllegalArgumentException If the timestamp is in neither format
+     */
+    public static LocalDateTime parseTimestamp(String timestamp) {
+        Instant instant;
+        try {
+            instant = Instant.ofEpochMilli(Long.parseLong(timestamp.trim()));
+        } catch (NumberFormatException e) {
+            try {
+                instant = Instant.parse(timestamp.trim());
+            } catch (DateTimeParseException ex) {
+                throw new IllegalArgumentException("Unrecognized timestamp: " + timestamp);
+            }
+        }
+        return LocalDateTime.ofInstant(instant, ZoneId.systemDefault());
+    }
+}
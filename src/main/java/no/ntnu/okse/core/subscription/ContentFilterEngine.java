@@ -0,0 +1,410 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Norwegian Defence Research Establishment / NTNU
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package no.ntnu.okse.core.subscription;
+
+import no.ntnu.okse.core.messaging.Message;
+import org.apache.log4j.Logger;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Evaluates the message content filters of subscribers. The filters are XPath expressions over the message content,
+ * compiled once when a subscriber is registered, rather than once per message and recipient.
+ * <p>
+ * Each filter is split into its top-level conjuncts, and a conjunct is compiled into a predicate shared by every
+ * subscriber whose filters contain it. A subscriber matches a message if all its predicates are true. When a message
+ * is evaluated, its content is parsed once and each predicate is evaluated at most once, no matter how many
+ * subscribers share it.
+ * <p>
+ * Message content that is not XML is evaluated as the text of a single Content element. Namespace prefixes used by
+ * the filters are resolved through the namespaces bound on the subscriber.
+ * Filters that fail to compile never match, so a subscriber with an invalid filter receives no messages.
+ * <p>
+ * okse is licenced under the MIT licence.
+ */
+public class ContentFilterEngine {
+
+    private static Logger log = Logger.getLogger(ContentFilterEngine.class.getName());
+
+    // Name of the element wrapping message content that is not XML
+    public static final String CONTENT_ELEMENT_NAME = "Content";
+
+    // Compiled predicates keyed by conjunct and namespace bindings, shared between subscribers
+    private final HashMap<String, Predicate> predicates;
+    // The predicates each subscriber with content filters must satisfy
+    private final ConcurrentHashMap<Subscriber, Predicate[]> subscribers;
+    private final XPathFactory xpathFactory;
+    private final ThreadLocal<DocumentBuilder> documentBuilder;
+
+    /**
+     * Constructs an empty filter engine
+     */
+    public ContentFilterEngine() {
+        predicates = new HashMap<>();
+        subscribers = new ConcurrentHashMap<>();
+        xpathFactory = XPathFactory.newInstance();
+        documentBuilder = ThreadLocal.withInitial(ContentFilterEngine::createDocumentBuilder);
+    }
+
+    /**
+     * Compiles the content filters of a subscriber, replacing any filters compiled for it before.
+     * Subscribers without content filters are not tracked, and match every message.
+     *
+     * @param s The subscriber whose content filters are to be compiled
+     */
+    public synchronized void register(Subscriber s) {
+        unregister(s);
+        HashSet<String> filters = s.getContentFilterSet();
+        if (filters.isEmpty()) return;
+
+        // Sorted, so equal bindings give equal predicate keys
+        TreeMap<String, String> namespaces = new TreeMap<>(s.getContentFilterNamespaces());
+
+        LinkedHashSet<Predicate> required = new LinkedHashSet<>();
+        for (String filter : filters) {
+            List<String> conjuncts = splitConjuncts(filter);
+            // If a conjunct does not compile on its own, fall back to the filter as a whole
+            if (conjuncts.size() > 1 && conjuncts.stream().anyMatch(c -> compile(c, namespaces) == null)) {
+                conjuncts = Collections.singletonList(filter.trim());
+            }
+            for (String conjunct : conjuncts) {
+                String key = conjunct.contains(":") && !namespaces.isEmpty() ? conjunct + " " + namespaces : conjunct;
+                Predicate p = predicates.computeIfAbsent(key, k -> new Predicate(k, conjunct, compile(conjunct, namespaces)));
+                if (p.expression == null) log.warn("Invalid content filter on subscriber " + s.getSubscriberID() + ": " + conjunct);
+                if (required.add(p)) p.references++;
+            }
+        }
+        subscribers.put(s, required.toArray(new Predicate[required.size()]));
+    }
+
+    /**
+     * Removes the compiled content filters of a subscriber, releasing predicates no other subscriber uses
+     *
+     * @param s The subscriber whose content filters are to be removed
+     */
+    public synchronized void unregister(Subscriber s) {
+        Predicate[] required = subscribers.remove(s);
+        if (required == null) return;
+        for (Predicate p : required) {
+            if (--p.references == 0) predicates.remove(p.key);
+        }
+    }
+
+    /**
+     * Checks if a subscriber has compiled content filters
+     *
+     * @param s The subscriber to check
+     * @return True if the subscriber has content filters, false otherwise
+     */
+    public boolean hasFilters(Subscriber s) {
+        return subscribers.containsKey(s);
+    }
+
+    /**
+     * Retrieves the number of subscribers with compiled content filters
+     *
+     * @return The number of subscribers with content filters
+     */
+    public int getNumberOfFilteredSubscribers() {
+        return subscribers.size();
+    }
+
+    /**
+     * Retrieves the number of distinct compiled predicates, shared between all subscribers
+     *
+     * @return The number of predicates
+     */
+    public synchronized int getNumberOfPredicates() {
+        return predicates.size();
+    }
+
+    /**
+     * Starts the evaluation of a message. The message content is parsed the first time a subscriber with
+     * content filters is checked.
+     *
+     * @param message The message to evaluate the filters against
+     * @return An Evaluation to check subscribers against the message
+     */
+    public Evaluation evaluate(Message message) {
+        return new Evaluation(message.getMessage(), null);
+    }
+
+    /**
+     * Starts the evaluation of raw message content. The content is parsed the first time a subscriber with
+     * content filters is checked.
+     *
+     * @param content The message content to evaluate the filters against
+     * @return An Evaluation to check subscribers against the content
+     */
+    public Evaluation evaluate(String content) {
+        return new Evaluation(content, null);
+    }
+
+    /**
+     * Starts the evaluation of already parsed message content, e.g. the payload of a WS-Notification message
+     *
+     * @param context The node to evaluate the filters against
+     * @return An Evaluation to check subscribers against the node
+     */
+    public Evaluation evaluate(Node context) {
+        return new Evaluation(null, context);
+    }
+
+    /**
+     * Filters a set of subscribers down to the ones whose content filters match a message, in a single evaluation
+     *
+     * @param message     The message to evaluate the filters against
+     * @param subscribers The candidate subscribers
+     * @return A HashSet of the subscribers that match the message
+     */
+    public HashSet<Subscriber> filter(Message message, Collection<Subscriber> subscribers) {
+        Evaluation evaluation = evaluate(message);
+        HashSet<Subscriber> matching = new HashSet<>();
+        subscribers.forEach(s -> {
+            if (evaluation.matches(s)) matching.add(s);
+        });
+        return matching;
+    }
+
+    /**
+     * The evaluation of one message against the compiled filters. The outcome of each predicate is remembered, so
+     * a predicate shared by several subscribers is only evaluated once. An Evaluation is meant to be used by a
+     * single thread.
+     */
+    public class Evaluation {
+        private String content;
+        private Node context;
+        private final IdentityHashMap<Predicate, Boolean> results;
+
+        private Evaluation(String content, Node context) {
+            this.content = content;
+            this.context = context;
+            this.results = new IdentityHashMap<>();
+        }
+
+        /**
+         * Checks if a subscriber matches the message
+         *
+         * @param s The subscriber to check
+         * @return True if the subscriber has no content filters, or all its filters match the message
+         */
+        public boolean matches(Subscriber s) {
+            Predicate[] required = subscribers.get(s);
+            if (required == null) return true;
+            for (Predicate p : required) {
+                Boolean result = results.get(p);
+                if (result == null) {
+                    result = p.evaluate(getContext());
+                    results.put(p, result);
+                }
+                if (!result) return false;
+            }
+            return true;
+        }
+
+        private Node getContext() {
+            if (context == null) {
+                context = parse(content);
+                content = null;
+            }
+            return context;
+        }
+    }
+
+    /* Private helper methods */
+
+    /**
+     * Splits an XPath expression into its top-level "and" operands. Expressions with a top-level "or" are kept whole.
+     *
+     * @param expression The expression to split
+     * @return A List of the conjuncts of the expression
+     */
+    static List<String> splitConjuncts(String expression) {
+        ArrayList<String> conjuncts = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        char quote = 0;
+        for (int i = 0; i < expression.length(); i++) {
+            char c = expression.charAt(i);
+            if (quote != 0) {
+                if (c == quote) quote = 0;
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == '(' || c == '[') {
+                depth++;
+            } else if (c == ')' || c == ']') {
+                depth--;
+            } else if (depth == 0 && isOperator(expression, i, "or")) {
+                return Collections.singletonList(expression.trim());
+            } else if (depth == 0 && isOperator(expression, i, "and")) {
+                conjuncts.add(expression.substring(start, i).trim());
+                start = i + 3;
+                i += 2;
+            }
+        }
+        conjuncts.add(expression.substring(start).trim());
+        if (conjuncts.stream().anyMatch(String::isEmpty)) return Collections.singletonList(expression.trim());
+        return conjuncts;
+    }
+
+    /**
+     * Checks if an operator name starts at an index, as opposed to an element name that happens to be spelled the same
+     */
+    private static boolean isOperator(String expression, int index, String operator) {
+        int end = index + operator.length();
+        if (index == 0 || end >= expression.length() || !expression.startsWith(operator, index)) return false;
+        if (!Character.isWhitespace(expression.charAt(index - 1)) || !Character.isWhitespace(expression.charAt(end))) return false;
+        // An operator must follow an operand, not a path step, axis or another operator
+        String preceding = expression.substring(0, index).trim();
+        return !preceding.isEmpty() && "/@:([,|+-=<>!*".indexOf(preceding.charAt(preceding.length() - 1)) < 0;
+    }
+
+    private XPathExpression compile(String conjunct, Map<String, String> namespaces) {
+        synchronized (xpathFactory) {
+            XPath xpath = xpathFactory.newXPath();
+            xpath.setNamespaceContext(new BoundNamespaceContext(namespaces));
+            try {
+                return xpath.compile(conjunct);
+            } catch (XPathExpressionException e) {
+                return null;
+            }
+        }
+    }
+
+    private Node parse(String content) {
+        if (content == null) content = "";
+        if (content.trim().startsWith("<")) {
+            try {
+                Document document = documentBuilder.get().parse(new InputSource(new StringReader(content)));
+                return document.getDocumentElement();
+            } catch (SAXException | IOException e) {
+                log.debug("Message content is not well-formed XML, evaluating it as text");
+            }
+        }
+        Document document = documentBuilder.get().newDocument();
+        Element element = document.createElement(CONTENT_ELEMENT_NAME);
+        element.setTextContent(content);
+        document.appendChild(element);
+        return element;
+    }
+
+    private static DocumentBuilder createDocumentBuilder() {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        try {
+            // Message content is untrusted, do not resolve any DTDs or external entities
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            factory.setExpandEntityReferences(false);
+            DocumentBuilder builder = factory.newDocumentBuilder();
+            // Keep malformed content from being reported on stderr
+            builder.setErrorHandler(new DefaultHandler());
+            return builder;
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException("Failed to create XML parser for content filters", e);
+        }
+    }
+
+    /**
+     * A compiled conjunct, shared by all subscribers whose filters contain it
+     */
+    private static class Predicate {
+        private final String key;
+        private final String conjunct;
+        private final XPathExpression expression;
+        private int references;
+
+        private Predicate(String key, String conjunct, XPathExpression expression) {
+            this.key = key;
+            this.conjunct = conjunct;
+            this.expression = expression;
+        }
+
+        private boolean evaluate(Node context) {
+            if (expression == null) return false;
+            // Compiled XPath expressions are not thread safe
+            synchronized (this) {
+                try {
+                    return (Boolean) expression.evaluate(context, XPathConstants.BOOLEAN);
+                } catch (XPathExpressionException e) {
+                    log.debug("Content filter could not be evaluated: " + conjunct);
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * A NamespaceContext resolving the prefixes bound on a subscriber
+     */
+    private static class BoundNamespaceContext implements NamespaceContext {
+        private final Map<String, String> namespaces;
+
+        private BoundNamespaceContext(Map<String, String> namespaces) {
+            this.namespaces = namespaces;
+        }
+
+        @Override
+        public String getNamespaceURI(String prefix) {
+            if (XMLConstants.XML_NS_PREFIX.equals(prefix)) return XMLConstants.XML_NS_URI;
+            return namespaces.getOrDefault(prefix, XMLConstants.NULL_NS_URI);
+        }
+
+        @Override
+        public String getPrefix(String namespaceURI) {
+            for (Map.Entry<String, String> e : namespaces.entrySet()) {
+                if (e.getValue().equals(namespaceURI)) return e.getKey();
+            }
+            return null;
+        }
+
+        @Override
+        public Iterator getPrefixes(String namespaceURI) {
+            ArrayList<String> prefixes = new ArrayList<>();
+            namespaces.forEach((prefix, uri) -> {
+                if (uri.equals(namespaceURI)) prefixes.add(prefix);
+            });
+            return prefixes.iterator();
+        }
+    }
+}
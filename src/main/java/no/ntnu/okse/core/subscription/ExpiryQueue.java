@@ -0,0 +1,130 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Norwegian Defence Research Establishment / NTNU
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package no.ntnu.okse.core.subscription;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A queue of items ordered by their expiry deadline. Scheduling, rescheduling and cancelling an item are
+ * logarithmic in the number of distinct deadlines, and polling the expired items only touches the items that
+ * have actually expired. Hence the cost of expiring subscriptions is proportional to the number that expire,
+ * rather than to the total number of subscriptions.
+ * <p>
+ * All methods are synchronized on the queue instance.
+ * <p>
+ * okse is licenced under the MIT licence.
+ */
+public class ExpiryQueue<T> {
+
+    // Items grouped by deadline, in milliseconds since epoch
+    private final TreeMap<Long, LinkedHashSet<T>> byDeadline;
+    // The current deadline of each scheduled item, so it can be found again when rescheduled or cancelled
+    private final HashMap<T, Long> deadlines;
+
+    /**
+     * Constructs an empty expiry queue
+     */
+    public ExpiryQueue() {
+        byDeadline = new TreeMap<>();
+        deadlines = new HashMap<>();
+    }
+
+    /**
+     * Schedules an item to expire at a deadline, replacing any deadline it already had
+     *
+     * @param item     The item to schedule
+     * @param deadline The time of expiry in milliseconds since epoch, or null if the item should never expire
+     */
+    public synchronized void schedule(T item, Long deadline) {
+        cancel(item);
+        if (deadline == null) return;
+        byDeadline.computeIfAbsent(deadline, k -> new LinkedHashSet<>()).add(item);
+        deadlines.put(item, deadline);
+    }
+
+    /**
+     * Removes an item from the queue
+     *
+     * @param item The item to remove
+     * @return True if the item was scheduled, false otherwise
+     */
+    public synchronized boolean cancel(T item) {
+        Long deadline = deadlines.remove(item);
+        if (deadline == null) return false;
+        LinkedHashSet<T> items = byDeadline.get(deadline);
+        items.remove(item);
+        if (items.isEmpty()) byDeadline.remove(deadline);
+        return true;
+    }
+
+    /**
+     * Removes and returns every item whose deadline is at or before the given time
+     *
+     * @param now The current time in milliseconds since epoch
+     * @return An ArrayList of the expired items, in deadline order
+     */
+    public synchronized ArrayList<T> pollExpired(long now) {
+        ArrayList<T> expired = new ArrayList<>();
+        Map.Entry<Long, LinkedHashSet<T>> first;
+        while ((first = byDeadline.firstEntry()) != null && first.getKey() <= now) {
+            byDeadline.pollFirstEntry();
+            for (T item : first.getValue()) {
+                deadlines.remove(item);
+                expired.add(item);
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Retrieves the earliest deadline in the queue
+     *
+     * @return The earliest deadline in milliseconds since epoch, or null if the queue is empty
+     */
+    public synchronized Long getNextDeadline() {
+        return byDeadline.isEmpty() ? null : byDeadline.firstKey();
+    }
+
+    /**
+     * Retrieves the number of scheduled items
+     *
+     * @return The number of items in the queue
+     */
+    public synchronized int size() {
+        return deadlines.size();
+    }
+
+    /**
+     * Removes all items from the queue
+     */
+    public synchronized void clear() {
+        byDeadline.clear();
+        deadlines.clear();
+    }
+}
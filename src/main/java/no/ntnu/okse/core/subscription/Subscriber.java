@@ -25,11 +25,9 @@
 package no.ntnu.okse.core.subscription;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import no.ntnu.okse.core.IDGenerator;
 import org.apache.log4j.Logger;
-import org.springframework.security.crypto.codec.Hex;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.HashSet;
 
@@ -38,7 +36,7 @@ import java.util.HashSet;
  * <p>
  * okse is licenced under the MIT licence.
  */
-@JsonIgnoreProperties({"timeout"})
+@JsonIgnoreProperties({"timeout", "contentFilterSet", "contentFilterNamespaces"})
 public class Subscriber {
 
     private final String host;
@@ -50,6 +48,10 @@ public class Subscriber {
     private final String subscriberID;
     private static Logger log;
     private HashSet<String> filters;
+    // The subset of the filters that are XPath expressions over the message content, evaluated by the core
+    private HashSet<String> contentFilters;
+    // Namespace prefixes used in the content filters, mapped to their namespace URIs
+    private HashMap<String, String> contentFilterNamespaces;
 
     /**
      * Constructs a Subscriber object from the required fields
@@ -66,36 +68,18 @@ public class Subscriber {
         this.topic = topic;
         this.originProtocol = originProtocol;
         this.filters = new HashSet<>();
+        this.contentFilters = new HashSet<>();
+        this.contentFilterNamespaces = new HashMap<>();
         if (checkPort(port)) {
             this.port = port;
         } else throw new IllegalArgumentException("Port must be in range 1-65535");
 
-        this.subscriberID = generateSubscriberID();
+        this.subscriberID = IDGenerator.generateID();
 
         log = Logger.getLogger(Subscriber.class.getName());
 
     }
 
-    /**
-     * Private method that generates an MD5 subscriber ID
-     *
-     * @return A string containing the generated subscriber ID
-     */
-    private String generateSubscriberID() {
-        try {
-            MessageDigest m = MessageDigest.getInstance("MD5");
-            m.update(Long.toString(System.nanoTime()).getBytes());
-            byte[] hash = m.digest();
-            String topicID = new String(Hex.encode(hash));
-
-            return topicID;
-        } catch (NoSuchAlgorithmException e) {
-            log.error("Could not generate a subscriber ID (MD5 algorithm not found)");
-        }
-
-        return null;
-    }
-
     /**
      * Check to see if the port is in valid range
      *
@@ -215,6 +199,48 @@ public class Subscriber {
     public void removeFilter(String filterString) {
         if (filters.contains(filterString)) filters.remove(filterString);
         else log.warn("Attempt to remove a filter that did not exist.");
+        contentFilters.remove(filterString);
+    }
+
+    /**
+     * Add a message content filter that is evaluated by the core ContentFilterEngine. The filter is an XPath
+     * expression over the message content, and is also added to the regular filter set.
+     * Content filters are compiled when the subscriber is added to the SubscriptionService, so they must be added
+     * before that.
+     *
+     * @param expression The XPath expression to be added
+     */
+    public void addContentFilter(String expression) {
+        addFilter(expression);
+        contentFilters.add(expression);
+    }
+
+    /**
+     * Retrieve the set of message content filters to be evaluated by the core ContentFilterEngine.
+     *
+     * @return A shallow clone of the internal content filter set.
+     */
+    public HashSet<String> getContentFilterSet() {
+        return (HashSet<String>) contentFilters.clone();
+    }
+
+    /**
+     * Binds a namespace prefix used in the message content filters of this subscriber
+     *
+     * @param prefix       The namespace prefix
+     * @param namespaceURI The namespace URI the prefix refers to
+     */
+    public void bindContentFilterNamespace(String prefix, String namespaceURI) {
+        contentFilterNamespaces.put(prefix, namespaceURI);
+    }
+
+    /**
+     * Retrieve the namespace prefixes used in the message content filters of this subscriber
+     *
+     * @return A shallow clone of the internal map from namespace prefix to namespace URI
+     */
+    public HashMap<String, String> getContentFilterNamespaces() {
+        return (HashMap<String, String>) contentFilterNamespaces.clone();
     }
 
     /**
@@ -26,23 +26,30 @@ package no.ntnu.okse.core.subscription;
 
 import no.ntnu.okse.Application;
 import no.ntnu.okse.core.AbstractCoreService;
+import no.ntnu.okse.core.event.EventBus;
 import no.ntnu.okse.core.event.PublisherChangeEvent;
 import no.ntnu.okse.core.event.SubscriptionChangeEvent;
 import no.ntnu.okse.core.event.TopicChangeEvent;
 import no.ntnu.okse.core.event.listeners.PublisherChangeListener;
 import no.ntnu.okse.core.event.listeners.SubscriptionChangeListener;
 import no.ntnu.okse.core.event.listeners.TopicChangeListener;
+import no.ntnu.okse.core.topic.Topic;
 import no.ntnu.okse.core.topic.TopicService;
 import org.eclipse.jetty.util.ConcurrentHashSet;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 /**
  * Created by Aleksander Skraastad (myth) on 4/5/15.
@@ -61,10 +68,29 @@ public class SubscriptionService extends AbstractCoreService implements TopicCha
     private LinkedBlockingQueue<SubscriptionTask> queue;
     private ScheduledExecutorService scheduler;
     private Properties config;
-    private ConcurrentHashSet<SubscriptionChangeListener> _subscriptionListeners;
-    private ConcurrentHashSet<PublisherChangeListener> _registrationListeners;
+    // Subscription and publisher change events are delivered to each listener on its own thread
+    private EventBus<SubscriptionChangeListener, SubscriptionChangeEvent> _subscriptionListeners;
+    private EventBus<PublisherChangeListener, PublisherChangeEvent> _registrationListeners;
     private ConcurrentHashSet<Subscriber> _subscribers;
+    // Secondary index of _subscribers keyed by subscriber ID
+    private ConcurrentHashMap<String, Subscriber> _subscribersByID;
+    private SubscriptionTrie _subscriptionTrie;
+    // Subscribers partitioned by origin protocol, each with its own trie for protocol scoped recipient resolution
+    private ConcurrentHashMap<String, SubscriptionTrie> _subscriptionTriesByProtocol;
     private ConcurrentHashSet<Publisher> _publishers;
+    // Secondary indexes of _publishers keyed by topic and by origin protocol
+    private ConcurrentHashMap<String, ConcurrentHashSet<Publisher>> _publishersByTopic;
+    private ConcurrentHashMap<String, ConcurrentHashSet<Publisher>> _publishersByProtocol;
+    // Subscribers and publishers that should expire, ordered by their timeout
+    private ExpiryQueue<Subscriber> _subscriberExpiry;
+    private ExpiryQueue<Publisher> _publisherExpiry;
+    // Message content filters of the subscribers, compiled when they are added
+    private ContentFilterEngine _contentFilters;
+    // Interval in milliseconds between checks for expired subscribers and publishers
+    private long expiryResolution;
+
+    // Internal default values
+    private static final long DEFAULT_EXPIRY_RESOLUTION = 1000;
 
     /**
      * Private constructor that passes classname to superclass log field and calls initialization method
@@ -95,9 +121,28 @@ public class SubscriptionService extends AbstractCoreService implements TopicCha
         queue = new LinkedBlockingQueue<>();
         scheduler = Executors.newScheduledThreadPool(1);
         _subscribers = new ConcurrentHashSet<>();
+        _subscribersByID = new ConcurrentHashMap<>();
+        _subscriptionTrie = new SubscriptionTrie();
+        _subscriptionTriesByProtocol = new ConcurrentHashMap<>();
         _publishers = new ConcurrentHashSet<>();
-        _registrationListeners = new ConcurrentHashSet<>();
-        _subscriptionListeners = new ConcurrentHashSet<>();
+        _publishersByTopic = new ConcurrentHashMap<>();
+        _publishersByProtocol = new ConcurrentHashMap<>();
+        _subscriberExpiry = new ExpiryQueue<>();
+        _publisherExpiry = new ExpiryQueue<>();
+        _contentFilters = new ContentFilterEngine();
+        _registrationListeners = new EventBus<>("SubscriptionService-PublisherEvents", PublisherChangeListener::publisherChanged, config);
+        // A renewal only moves the expiry, which listeners do not track, so it is the only droppable subscription event
+        _subscriptionListeners = new EventBus<>("SubscriptionService-SubscriptionEvents", SubscriptionChangeListener::subscriptionChanged, config,
+                e -> e.getType() == SubscriptionChangeEvent.Type.RENEW);
+
+        // Attempt to extract the expiry check interval from the configuration file
+        expiryResolution = DEFAULT_EXPIRY_RESOLUTION;
+        try {
+            expiryResolution = Long.parseLong(config.getProperty("SUBSCRIPTION_EXPIRY_RESOLUTION", Long.toString(DEFAULT_EXPIRY_RESOLUTION)));
+        } catch (NumberFormatException e) {
+            log.error("Failed to parse SUBSCRIPTION_EXPIRY_RESOLUTION, using default: " + DEFAULT_EXPIRY_RESOLUTION);
+        }
+        if (expiryResolution < 1) expiryResolution = DEFAULT_EXPIRY_RESOLUTION;
     }
 
     /**
@@ -175,8 +220,9 @@ public class SubscriptionService extends AbstractCoreService implements TopicCha
      */
     private void startScheduledRemovalOfExpiredSubscribersAndPublishers() {
         if (!autoPurgeRunning) {
-            log.info("Starting periodic removal of expired subscribers and publishers (1 min interval)");
-            scheduler.scheduleAtFixedRate(() -> purgeExpiredSubscribersAndPublishers(), 1, 1, TimeUnit.MINUTES);
+            log.info("Starting periodic removal of expired subscribers and publishers (" + expiryResolution + " ms interval)");
+            scheduler.scheduleAtFixedRate(() -> purgeExpiredSubscribersAndPublishers(), expiryResolution, expiryResolution, TimeUnit.MILLISECONDS);
+            autoPurgeRunning = true;
         } else {
             log.warn("Attempt to start scheduled removal of subscribers and publishers when its already started");
         }
@@ -184,43 +230,100 @@ public class SubscriptionService extends AbstractCoreService implements TopicCha
 
     /**
      * Purge expired Subscribers and Publishers. This method should be run as a periodic job, and it delegates
-     * the actual removal to the removeSubscriber and removePublisher methods, that in turn injects the operations
-     * as SubscriptionTask into the task queue.
+     * the actual removal to the removeSubscribers and removePublishers methods, that in turn inject a single
+     * SubscriptionTask each into the task queue. Only the subscribers and publishers whose timeout has passed
+     * are inspected, as they are taken from the expiry queues.
      */
     private void purgeExpiredSubscribersAndPublishers() {
-        log.debug("Running scheduled purge of expired subscribers and publishers");
-        getAllSubscribers().stream().filter(s -> s.hasExpired()).forEach(s -> removeSubscriber(s));
-        getAllPublishers().stream().filter(p -> p.hasExpired()).forEach(p -> removePublisher(p));
-    }
-
-    /**
-     * This helper method injects a task into the task queue and handles interrupt exceptions
+        long now = System.currentTimeMillis();
+        ArrayList<Subscriber> expiredSubscribers = _subscriberExpiry.pollExpired(now);
+        ArrayList<Publisher> expiredPublishers = _publisherExpiry.pollExpired(now);
+        if (expiredSubscribers.isEmpty() && expiredPublishers.isEmpty()) return;
+
+        log.debug("Purging " + expiredSubscribers.size() + " expired subscriber(s) and " +
+                expiredPublishers.size() + " expired publisher(s)");
+        // The timeout may have been moved after it was scheduled, so check it again before removal
+        expiredSubscribers.removeIf(s -> {
+            if (s.hasExpired()) return false;
+            _subscriberExpiry.schedule(s, s.getTimeout());
+            return true;
+        });
+        expiredPublishers.removeIf(p -> {
+            if (p.hasExpired()) return false;
+            _publisherExpiry.schedule(p, p.getTimeout());
+            return true;
+        });
+        if (!expiredSubscribers.isEmpty()) removeSubscribers(expiredSubscribers);
+        if (!expiredPublishers.isEmpty()) removePublishers(expiredPublishers);
+    }
+
+    /**
+     * This helper method wraps a job in a SubscriptionTask, injects it into the task queue and handles interrupt
+     * exceptions. The returned future completes on the SubscriptionService thread once the job has run, so it must
+     * never be waited upon from that thread, e.g from a SubscriptionChange listener.
      *
-     * @param task The SubscriptionTask to be executed
-     */
-    private void insertTask(SubscriptionTask task) {
+     * @param type The type of SubscriptionTask
+     * @param job  The job to be executed, returning what it changed
+     * @param <T>  The result type of the job
+     * @return A CompletableFuture completed with the result of the job
+     */
+    private <T> CompletableFuture<T> submitTask(SubscriptionTask.Type type, Supplier<T> job) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        SubscriptionTask task = new SubscriptionTask(type, () -> {
+            try {
+                future.complete(job.get());
+            } catch (Exception e) {
+                log.error("Exception while executing " + type + " task: " + e.getMessage());
+                future.completeExceptionally(e);
+            }
+        });
         try {
             // Inject the task into the task queue
             this.queue.put(task);
         } catch (InterruptedException e) {
             log.error("Interrupted while injecting task into queue");
+            future.completeExceptionally(e);
         }
+        return future;
     }
 
     /**
      * Service-local private method to add a Subscriber to the list of subscribers
      *
      * @param s : A Subscriber instance with the proper fields set
+     * @return True if the subscriber was added, false if it already existed
      */
-    private void addSubscriberLocal(Subscriber s) {
+    private boolean addSubscriberLocal(Subscriber s) {
+        if (!registerSubscriberLocal(s)) return false;
+        // Fire the subscribe event
+        fireSubcriptionChangeEvent(s, SubscriptionChangeEvent.Type.SUBSCRIBE);
+        return true;
+    }
+
+    /**
+     * Service-local private method to add a Subscriber to the internal containers, without firing any events
+     *
+     * @param s : A Subscriber instance with the proper fields set
+     * @return True if the subscriber was added, false if it already existed
+     */
+    private boolean registerSubscriberLocal(Subscriber s) {
         if (!_subscribers.contains(s)) {
             // Add the subscriber
             _subscribers.add(s);
+            _subscribersByID.put(s.getSubscriberID(), s);
+            _subscriptionTrie.add(s);
+            if (s.shouldExpire()) _subscriberExpiry.schedule(s, s.getTimeout());
+            // Normally compiled already when the subscriber was submitted
+            if (!_contentFilters.hasFilters(s)) _contentFilters.register(s);
+            if (s.getOriginProtocol() != null) {
+                _subscriptionTriesByProtocol.computeIfAbsent(s.getOriginProtocol(), k -> new SubscriptionTrie()).add(s);
+            }
+            markSubscribed(s.getTopic());
             log.info("Added new subscriber: " + s);
-            // Fire the subscribe event
-            fireSubcriptionChangeEvent(s, SubscriptionChangeEvent.Type.SUBSCRIBE);
+            return true;
         } else {
             log.warn("Attempt to add a subscriber that already exists!");
+            return false;
         }
     }
 
@@ -228,16 +331,38 @@ public class SubscriptionService extends AbstractCoreService implements TopicCha
      * Service-local private method to remove a subscriber from the list of subscribers
      *
      * @param s : A Subscriber instance that exists in the subscribers set
+     * @return True if the change was applied, false otherwise
+     */
+    private boolean removeSubscriberLocal(Subscriber s) {
+        if (!unregisterSubscriberLocal(s)) return false;
+        // Fire the unsubscribe event
+        fireSubcriptionChangeEvent(s, SubscriptionChangeEvent.Type.UNSUBSCRIBE);
+        return true;
+    }
+
+    /**
+     * Service-local private method to remove a subscriber from the internal containers, without firing any events
+     *
+     * @param s : A Subscriber instance that exists in the subscribers set
+     * @return True if the change was applied, false otherwise
      */
-    private void removeSubscriberLocal(Subscriber s) {
+    private boolean unregisterSubscriberLocal(Subscriber s) {
         if (_subscribers.contains(s)) {
             // Remove the subscriber
             _subscribers.remove(s);
+            _subscribersByID.remove(s.getSubscriberID());
+            _subscriptionTrie.remove(s);
+            _subscriberExpiry.cancel(s);
+            _contentFilters.unregister(s);
+            if (s.getOriginProtocol() != null) {
+                SubscriptionTrie protocolTrie = _subscriptionTriesByProtocol.get(s.getOriginProtocol());
+                if (protocolTrie != null) protocolTrie.remove(s);
+            }
             log.info("Removed subscriber: " + s);
-            // Fire the unsubscribe event
-            fireSubcriptionChangeEvent(s, SubscriptionChangeEvent.Type.UNSUBSCRIBE);
+            return true;
         } else {
             log.warn("Attempt to remove a subscriber that did not exist!");
+            return false;
         }
     }
 
@@ -246,16 +371,21 @@ public class SubscriptionService extends AbstractCoreService implements TopicCha
      *
      * @param s       : The subscriber that is to be changed
      * @param timeout : The new timeout time represented as seconds since unix epoch
+     * @return True if the change was applied, false otherwise
      */
-    private void renewSubscriberLocal(Subscriber s, long timeout) {
+    private boolean renewSubscriberLocal(Subscriber s, long timeout) {
         if (_subscribers.contains(s)) {
             // Update the timeout field
             s.setTimeout(timeout);
+            _subscriberExpiry.schedule(s, s.getTimeout());
+            markSubscribed(s.getTopic());
             log.info("Renewed subscriber: " + s);
             // Fire the renew event
             fireSubcriptionChangeEvent(s, SubscriptionChangeEvent.Type.RENEW);
+            return true;
         } else {
             log.warn("Attempt to modify a subscriber that does not exist in the service!");
+            return false;
         }
     }
 
@@ -263,50 +393,87 @@ public class SubscriptionService extends AbstractCoreService implements TopicCha
      * Service-local private method to pause the subscription for a particular subscriber
      *
      * @param s : The subscriber that is to be paused
+     * @return True if the change was applied, false otherwise
      */
-    private void pauseSubscriberLocal(Subscriber s) {
-        if (_subscribers.contains(s)) {
-            // Set the Paused attribute to true
-            s.setAttribute("paused", "true");
-            log.info("Paused subscriber: " + s);
-            // Fire the pause event
-            fireSubcriptionChangeEvent(s, SubscriptionChangeEvent.Type.PAUSE);
-        } else {
-            log.warn("Attempt to modify a subscriber that does not exist in the service!");
-        }
+    private boolean pauseSubscriberLocal(Subscriber s) {
+        if (!setPausedLocal(s, true)) return false;
+        // Fire the pause event
+        fireSubcriptionChangeEvent(s, SubscriptionChangeEvent.Type.PAUSE);
+        return true;
     }
 
     /**
      * Service-local private method to reusme the subscription for a particular subscriber
      *
      * @param s The subscriber that is to be resumed
+     * @return True if the change was applied, false otherwise
      */
-    private void resumeSubscriberLocal(Subscriber s) {
+    private boolean resumeSubscriberLocal(Subscriber s) {
+        if (!setPausedLocal(s, false)) return false;
+        // FIre the resume event
+        fireSubcriptionChangeEvent(s, SubscriptionChangeEvent.Type.RESUME);
+        return true;
+    }
+
+    /**
+     * Service-local private method to set the Paused attribute of a subscriber, without firing any events
+     *
+     * @param s      The subscriber that is to be paused or resumed
+     * @param paused True to pause the subscriber, false to resume it
+     * @return True if the change was applied, false otherwise
+     */
+    private boolean setPausedLocal(Subscriber s, boolean paused) {
         if (_subscribers.contains(s)) {
-            // Set the Paused attribute to false
-            s.setAttribute("paused", "false");
-            log.info("Resumed subscriber: " + s);
-            // FIre the resume event
-            fireSubcriptionChangeEvent(s, SubscriptionChangeEvent.Type.RESUME);
+            s.setAttribute("paused", Boolean.toString(paused));
+            log.info((paused ? "Paused" : "Resumed") + " subscriber: " + s);
+            return true;
         } else {
             log.warn("Attempt to modify a subscriber that does not exist in the service!");
+            return false;
         }
     }
 
+    /**
+     * Service-local private method that applies a change to a batch of subscribers, and fires a single
+     * batched event for the subscribers that were actually changed
+     *
+     * @param subscribers The subscribers to change
+     * @param change      The change to apply to each subscriber, returning whether it was applied
+     * @param type        The type of the batched event
+     * @return A HashSet of the subscribers that were changed
+     */
+    private HashSet<Subscriber> changeSubscribersLocal(Collection<Subscriber> subscribers, Predicate<Subscriber> change,
+                                                       SubscriptionChangeEvent.Type type) {
+        HashSet<Subscriber> changed = new HashSet<>();
+        subscribers.forEach(s -> {
+            if (s != null && change.test(s)) changed.add(s);
+        });
+        if (!changed.isEmpty()) fireSubcriptionChangeEvent(changed, type);
+        return changed;
+    }
+
     /**
      * Service-local private method to register a publisher to the publisher set
      *
      * @param p : The publisher object that is to be registered
+     * @return True if the change was applied, false otherwise
      */
-    private void addPublisherLocal(Publisher p) {
+    private boolean addPublisherLocal(Publisher p) {
         if (!_publishers.contains(p)) {
             // Add the publisher
             _publishers.add(p);
+            addToIndex(_publishersByTopic, p.getTopic(), p);
+            addToIndex(_publishersByProtocol, p.getOriginProtocol(), p);
+            if (p.shouldExpire()) _publisherExpiry.schedule(p, p.getTimeout());
+            Topic t = p.getTopic() == null ? null : TopicService.getInstance().getTopic(p.getTopic());
+            if (t != null) t.markPublished();
             log.info("Added publisher: " + p);
             // Fire the register event
             firePublisherChangeEvent(p, PublisherChangeEvent.Type.REGISTER);
+            return true;
         } else {
             log.warn("Attempt to add a publisher that already exists!");
+            return false;
         }
     }
 
@@ -314,15 +481,71 @@ public class SubscriptionService extends AbstractCoreService implements TopicCha
      * Service-local private method to unregister a publisher from the publisher set
      *
      * @param p : A publisher object that exists in the publishers set
+     * @return True if the change was applied, false otherwise
      */
-    private void removePublisherLocal(Publisher p) {
+    private boolean removePublisherLocal(Publisher p) {
         if (_publishers.contains(p)) {
             // Remove the publisher
             _publishers.remove(p);
+            removeFromIndex(_publishersByTopic, p.getTopic(), p);
+            removeFromIndex(_publishersByProtocol, p.getOriginProtocol(), p);
+            _publisherExpiry.cancel(p);
             log.info("Removed publisher: " + p);
             // Fire the remove event
             firePublisherChangeEvent(p, PublisherChangeEvent.Type.UNREGISTER);
+            return true;
         }
+        return false;
+    }
+    /**
+     * Service-local private method to record subscription activity on a topic, keeping it from being reclaimed as idle
+     *
+     * @param topic The raw topic string of the subscription, wildcard and null topics are ignored
+     */
+    private void markSubscribed(String topic) {
+        Topic t = topic == null ? null : TopicService.getInstance().getTopic(topic);
+        if (t != null) t.markSubscribed();
+    }
+
+    /**
+     * Service-local private method to add a publisher to a secondary index. Null keys are not indexed.
+     */
+    private static void addToIndex(ConcurrentHashMap<String, ConcurrentHashSet<Publisher>> index, String key, Publisher p) {
+        if (key != null) index.computeIfAbsent(key, k -> new ConcurrentHashSet<>()).add(p);
+    }
+
+    /**
+     * Service-local private method to remove a publisher from a secondary index, dropping the key once it is empty
+     */
+    private static void removeFromIndex(ConcurrentHashMap<String, ConcurrentHashSet<Publisher>> index, String key, Publisher p) {
+        if (key == null) return;
+        index.computeIfPresent(key, (k, publishers) -> {
+            publishers.remove(p);
+            return publishers.isEmpty() ? null : publishers;
+        });
+    }
+    /**
+     * Compiles the content filters of subscribers that are about to be added. Protocol servers may expose a
+     * subscriber as soon as they have submitted it, so its filters must be in place before the add task runs.
+     *
+     * @param subscribers The subscribers about to be added
+     */
+    private void registerContentFilters(Collection<Subscriber> subscribers) {
+        subscribers.forEach(s -> {
+            if (!_contentFilters.hasFilters(s)) _contentFilters.register(s);
+        });
+    }
+
+    /**
+     * Removes the content filters compiled by registerContentFilters for subscribers that did not end up
+     * being added
+     *
+     * @param subscribers The subscribers that were submitted
+     */
+    private void releaseContentFilters(Collection<Subscriber> subscribers) {
+        subscribers.forEach(s -> {
+            if (!_subscribers.contains(s)) _contentFilters.unregister(s);
+        });
     }
     /* End Service-Local methods */
 
@@ -334,44 +557,30 @@ public class SubscriptionService extends AbstractCoreService implements TopicCha
      * Public method to add a Subscriber
      *
      * @param s The subscriber to be added
+     * @return A CompletableFuture completed with true if the subscriber was added, false if it already existed
      */
-    public void addSubscriber(Subscriber s) {
+    public CompletableFuture<Boolean> addSubscriber(Subscriber s) {
         if (s == null) {
             log.warn("Received null argument!");
-            return;
-        }
-        if (!_subscribers.contains(s)) {
-            // Create the job
-            Runnable job = () -> addSubscriberLocal(s);
-            // Initialize the SubscriptionTask wrapper
-            SubscriptionTask task = new SubscriptionTask(SubscriptionTask.Type.NEW_SUBSCRIBER, job);
-            // Inject the task
-            insertTask(task);
-        } else {
-            log.warn("Attempt to add a subscriber that already exists!");
+            return CompletableFuture.completedFuture(false);
         }
+        registerContentFilters(Collections.singletonList(s));
+        return submitTask(SubscriptionTask.Type.NEW_SUBSCRIBER, () -> addSubscriberLocal(s))
+                .whenComplete((added, e) -> releaseContentFilters(Collections.singletonList(s)));
     }
 
     /**
      * Public method to remove a Subscriber
      *
      * @param s A subscriber that exists in the subscribers set
+     * @return A CompletableFuture completed with true if the subscriber was removed, false if it did not exist
      */
-    public void removeSubscriber(Subscriber s) {
+    public CompletableFuture<Boolean> removeSubscriber(Subscriber s) {
         if (s == null) {
             log.warn("Received null argument!");
-            return;
-        }
-        if (_subscribers.contains(s)) {
-            // Create the job
-            Runnable job = () -> removeSubscriberLocal(s);
-            // Initialize the SubscriptionTask wrapper
-            SubscriptionTask task = new SubscriptionTask(SubscriptionTask.Type.DELETE_SUBSCRIBER, job);
-            // Inject the task
-            insertTask(task);
-        } else {
-            log.warn("Attempt to remove a subscriber that did not exist!");
+            return CompletableFuture.completedFuture(false);
         }
+        return submitTask(SubscriptionTask.Type.DELETE_SUBSCRIBER, () -> removeSubscriberLocal(s));
     }
 
     /**
@@ -379,64 +588,97 @@ public class SubscriptionService extends AbstractCoreService implements TopicCha
      *
      * @param s       The subscriber object that is to be renewed
      * @param timeout The new timeout of the subscription represented as seconds since unix epoch
+     * @return A CompletableFuture completed with true if the subscriber was renewed, false if it did not exist
      */
-    public void renewSubscriber(Subscriber s, Long timeout) {
+    public CompletableFuture<Boolean> renewSubscriber(Subscriber s, Long timeout) {
         if (s == null) {
             log.warn("Received null argument!");
-            return;
-        }
-        if (_subscribers.contains(s)) {
-            // Create the job
-            Runnable job = () -> renewSubscriberLocal(s, timeout);
-            // Initialize the SubscriptionTask wrapper
-            SubscriptionTask task = new SubscriptionTask(SubscriptionTask.Type.UPDATE_SUBSCRIBER, job);
-            // Inject the task
-            insertTask(task);
-        } else {
-            log.warn("Attempt to modify a subscriber that did not exist in the service!");
+            return CompletableFuture.completedFuture(false);
         }
+        return submitTask(SubscriptionTask.Type.UPDATE_SUBSCRIBER, () -> renewSubscriberLocal(s, timeout));
     }
 
     /**
      * Public method to pause a subscription
      *
      * @param s The subciber object that is to be paused
+     * @return A CompletableFuture completed with true if the subscriber was paused, false if it did not exist
      */
-    public void pauseSubscriber(Subscriber s) {
+    public CompletableFuture<Boolean> pauseSubscriber(Subscriber s) {
         if (s == null) {
             log.warn("Received null argument!");
-            return;
-        }
-        if (_subscribers.contains(s)) {
-            // Create the job
-            Runnable job = () -> pauseSubscriberLocal(s);
-            // Initialize the SubscriptionTask wrapper
-            SubscriptionTask task = new SubscriptionTask(SubscriptionTask.Type.UPDATE_SUBSCRIBER, job);
-            // Inject the task
-            insertTask(task);
-        } else {
-            log.warn("Attempt to modify a subscriber that did not exist in the service!");
+            return CompletableFuture.completedFuture(false);
         }
+        return submitTask(SubscriptionTask.Type.UPDATE_SUBSCRIBER, () -> pauseSubscriberLocal(s));
     }
 
     /**
      * Public method to resume a subscription
      *
      * @param s The subscriber object that is to be resumed
+     * @return A CompletableFuture completed with true if the subscriber was resumed, false if it did not exist
      */
-    public void resumeSubscriber(Subscriber s) {
+    public CompletableFuture<Boolean> resumeSubscriber(Subscriber s) {
         if (s == null) {
             log.warn("Received null argument!");
-            return;
-        }
-        if (_subscribers.contains(s)) {
-            // Create the job
-            Runnable job = () -> resumeSubscriberLocal(s);
-            // Initialize the SubscriptionTask wrapper
-            SubscriptionTask task = new SubscriptionTask(SubscriptionTask.Type.UPDATE_SUBSCRIBER, job);
-            // Inject the task
-            insertTask(task);
+            return CompletableFuture.completedFuture(false);
         }
+        return submitTask(SubscriptionTask.Type.UPDATE_SUBSCRIBER, () -> resumeSubscriberLocal(s));
+    }
+
+    /**
+     * Public method to add a batch of Subscribers in a single task. Listeners receive a single batched
+     * SUBSCRIBE event for all the subscribers that were added.
+     *
+     * @param subscribers The subscribers to be added
+     * @return A CompletableFuture completed with a HashSet of the subscribers that were added
+     */
+    public CompletableFuture<HashSet<Subscriber>> addSubscribers(Collection<Subscriber> subscribers) {
+        // Copy the batch, so the caller may reuse its collection while the task is queued
+        ArrayList<Subscriber> batch = new ArrayList<>(subscribers);
+        registerContentFilters(batch);
+        return submitTask(SubscriptionTask.Type.NEW_SUBSCRIBER, () ->
+                changeSubscribersLocal(batch, this::registerSubscriberLocal, SubscriptionChangeEvent.Type.SUBSCRIBE))
+                .whenComplete((added, e) -> releaseContentFilters(batch));
+    }
+
+    /**
+     * Public method to remove a batch of Subscribers in a single task. Listeners receive a single batched
+     * UNSUBSCRIBE event for all the subscribers that were removed.
+     *
+     * @param subscribers The subscribers to be removed
+     * @return A CompletableFuture completed with a HashSet of the subscribers that were removed
+     */
+    public CompletableFuture<HashSet<Subscriber>> removeSubscribers(Collection<Subscriber> subscribers) {
+        ArrayList<Subscriber> batch = new ArrayList<>(subscribers);
+        return submitTask(SubscriptionTask.Type.DELETE_SUBSCRIBER, () ->
+                changeSubscribersLocal(batch, this::unregisterSubscriberLocal, SubscriptionChangeEvent.Type.UNSUBSCRIBE));
+    }
+
+    /**
+     * Public method to pause a batch of subscriptions in a single task. Listeners receive a single batched
+     * PAUSE event for all the subscribers that were paused.
+     *
+     * @param subscribers The subscribers to be paused
+     * @return A CompletableFuture completed with a HashSet of the subscribers that were paused
+     */
+    public CompletableFuture<HashSet<Subscriber>> pauseSubscribers(Collection<Subscriber> subscribers) {
+        ArrayList<Subscriber> batch = new ArrayList<>(subscribers);
+        return submitTask(SubscriptionTask.Type.UPDATE_SUBSCRIBER, () ->
+                changeSubscribersLocal(batch, s -> setPausedLocal(s, true), SubscriptionChangeEvent.Type.PAUSE));
+    }
+
+    /**
+     * Public method to resume a batch of subscriptions in a single task. Listeners receive a single batched
+     * RESUME event for all the subscribers that were resumed.
+     *
+     * @param subscribers The subscribers to be resumed
+     * @return A CompletableFuture completed with a HashSet of the subscribers that were resumed
+     */
+    public CompletableFuture<HashSet<Subscriber>> resumeSubscribers(Collection<Subscriber> subscribers) {
+        ArrayList<Subscriber> batch = new ArrayList<>(subscribers);
+        return submitTask(SubscriptionTask.Type.UPDATE_SUBSCRIBER, () ->
+                changeSubscribersLocal(batch, s -> setPausedLocal(s, false), SubscriptionChangeEvent.Type.RESUME));
     }
     /* End subscriber public API */
 
@@ -448,44 +690,46 @@ public class SubscriptionService extends AbstractCoreService implements TopicCha
      * Public method to register a publisher
      *
      * @param p The publisher object that is to be registered
+     * @return A CompletableFuture completed with true if the publisher was registered, false if it already existed
      */
-    public void addPublisher(Publisher p) {
+    public CompletableFuture<Boolean> addPublisher(Publisher p) {
         if (p == null) {
             log.warn("Received null argument!");
-            return;
-        }
-        if (!_publishers.contains(p)) {
-            // Create the job
-            Runnable job = () -> addPublisherLocal(p);
-            // Initialize the SubscriptionTask wrapper
-            SubscriptionTask task = new SubscriptionTask(SubscriptionTask.Type.NEW_PUBLISHER, job);
-            // Inject the task
-            insertTask(task);
-        } else {
-            log.warn("Attempt to add a publisher that already exists!");
+            return CompletableFuture.completedFuture(false);
         }
+        return submitTask(SubscriptionTask.Type.NEW_PUBLISHER, () -> addPublisherLocal(p));
     }
 
     /**
      * Public method to unregister a publisher
      *
      * @param p A publisher object that exists in the publishers set
+     * @return A CompletableFuture completed with true if the publisher was unregistered, false if it did not exist
      */
-    public void removePublisher(Publisher p) {
+    public CompletableFuture<Boolean> removePublisher(Publisher p) {
         if (p == null) {
             log.warn("Received null argument!");
-            return;
-        }
-        if (_publishers.contains(p)) {
-            // Create the job
-            Runnable job = () -> removePublisherLocal(p);
-            // Initialize the SubscriptionTask wrapper
-            SubscriptionTask task = new SubscriptionTask(SubscriptionTask.Type.DELETE_PUBLISHER, job);
-            // Inject the task
-            insertTask(task);
-        } else {
-            log.warn("Attempt to add a publisher that did not exist in the service!");
+            return CompletableFuture.completedFuture(false);
         }
+        return submitTask(SubscriptionTask.Type.DELETE_PUBLISHER, () -> removePublisherLocal(p));
+    }
+
+    /**
+     * Public method to unregister a batch of publishers in a single task. Listeners receive an UNREGISTER
+     * event for each publisher that was unregistered.
+     *
+     * @param publishers The publishers to be unregistered
+     * @return A CompletableFuture completed with a HashSet of the publishers that were unregistered
+     */
+    public CompletableFuture<HashSet<Publisher>> removePublishers(Collection<Publisher> publishers) {
+        ArrayList<Publisher> batch = new ArrayList<>(publishers);
+        return submitTask(SubscriptionTask.Type.DELETE_PUBLISHER, () -> {
+            HashSet<Publisher> removed = new HashSet<>();
+            batch.forEach(p -> {
+                if (p != null && removePublisherLocal(p)) removed.add(p);
+            });
+            return removed;
+        });
     }
     /* End publisher public API */
 
@@ -498,57 +742,82 @@ public class SubscriptionService extends AbstractCoreService implements TopicCha
      * @return The subscriber, if found, null otherwise.
      */
     public Subscriber getSubscriberByID(String id) {
-        List<Subscriber> result = _subscribers.stream()
-                .filter(s -> s.getSubscriberID().equals(id))
-                .collect(Collectors.toList());
-
-        if (result.size() > 1) {
-            log.warn("Found multiple subscribers with the same hash/ID.");
-            return null;
-        } else if (result.size() != 1) {
-            return null;
-        }
-        return result.get(0);
+        if (id == null) return null;
+        return _subscribersByID.get(id);
     }
 
     /**
-     * Retrieve a HashSet of all subscribers that have subscribed to a specific topic
+     * Retrieve a HashSet of all subscribers that will receive messages on a specific topic. This includes
+     * subscribers to all topics, and subscribers whose topic contains wildcards matching the topic.
      *
      * @param topic A raw topic string of the topic to select subscribers from
      * @return A HashSet of Subscriber objects that have subscribed to the specified topic
      */
     public HashSet<Subscriber> getAllSubscribersForTopic(String topic) {
-        // Initialize a collector
-        HashSet<Subscriber> results = new HashSet<>();
+        return _subscriptionTrie.match(topic);
+    }
 
-        // Iterate over all subscribers
-        getAllSubscribers().stream()
-                // Only pass on those who match topic argument
-                .filter(s -> s.getTopic() == null || s.getTopic().equals(topic))
-                        // Collect in the results set
-                .forEach(s -> results.add(s));
+    /**
+     * Retrieve a HashSet of all subscribers that have subscribed with exactly the specified topic string,
+     * without expanding wildcards.
+     *
+     * @param topic A raw topic string, or null for the subscribers to all topics
+     * @return A HashSet of Subscriber objects registered with the specified topic
+     */
+    public HashSet<Subscriber> getSubscribersWithTopic(String topic) {
+        return _subscriptionTrie.getSubscribersWithTopic(topic);
+    }
 
-        return results;
+    /**
+     * Retrieve a HashSet of all subscribers of a single protocol that will receive messages on a specific topic.
+     * This includes subscribers to all topics, and subscribers whose topic contains wildcards matching the topic.
+     *
+     * @param topic          A raw topic string of the topic to select subscribers from
+     * @param originProtocol The protocol server type the subscribers originated from
+     * @return A HashSet of Subscriber objects of the protocol that have subscribed to the specified topic
+     */
+    public HashSet<Subscriber> getAllSubscribersForTopic(String topic, String originProtocol) {
+        SubscriptionTrie protocolTrie = originProtocol == null ? null : _subscriptionTriesByProtocol.get(originProtocol);
+        return protocolTrie == null ? new HashSet<>() : protocolTrie.match(topic);
     }
 
     /**
-     * Retrieve a HashSet of all subscribers that have subscribed to a specific topic
+     * Retrieve a HashSet of all publishers that have registered on a specific topic
      *
-     * @param topic A raw topic string of the topic to select subscribers from
-     * @return A HashSet of Subscriber objects that have subscribed to the specified topic
+     * @param topic A raw topic string of the topic to select publishers from
+     * @return A HashSet of Publisher objects that have registered on the specified topic
      */
     public HashSet<Publisher> getAllPublishersForTopic(String topic) {
-        // Initialize a collector
-        HashSet<Publisher> results = new HashSet<>();
+        return copyOfIndex(_publishersByTopic, topic);
+    }
 
-        // Iterate over all subscribers
-        getAllPublishers().stream()
-                // Only pass on those who match topic argument
-                .filter(p -> p.getTopic().equals(topic))
-                        // Collect in the results set
-                .forEach(p -> results.add(p));
+    /**
+     * Retrieve a HashSet of all subscribers that originated from a specific protocol
+     *
+     * @param originProtocol The protocol server type the subscribers originated from
+     * @return A HashSet of Subscriber objects of the protocol
+     */
+    public HashSet<Subscriber> getAllSubscribersForProtocol(String originProtocol) {
+        SubscriptionTrie protocolTrie = originProtocol == null ? null : _subscriptionTriesByProtocol.get(originProtocol);
+        return protocolTrie == null ? new HashSet<>() : protocolTrie.getAllSubscribers();
+    }
 
-        return results;
+    /**
+     * Retrieve a HashSet of all publishers that originated from a specific protocol
+     *
+     * @param originProtocol The protocol server type the publishers originated from
+     * @return A HashSet of Publisher objects of the protocol
+     */
+    public HashSet<Publisher> getAllPublishersForProtocol(String originProtocol) {
+        return copyOfIndex(_publishersByProtocol, originProtocol);
+    }
+
+    /**
+     * Private helper that copies a single entry of a publisher index, so the caller cannot modify the index
+     */
+    private static HashSet<Publisher> copyOfIndex(ConcurrentHashMap<String, ConcurrentHashSet<Publisher>> index, String key) {
+        ConcurrentHashSet<Publisher> publishers = key == null ? null : index.get(key);
+        return publishers == null ? new HashSet<>() : new HashSet<>(publishers);
     }
 
     /**
@@ -575,6 +844,16 @@ public class SubscriptionService extends AbstractCoreService implements TopicCha
         return result;
     }
 
+    /**
+     * Retrieves the engine holding the compiled message content filters of the registered subscribers,
+     * so protocol servers can filter their recipients of a message in a single evaluation
+     *
+     * @return The ContentFilterEngine of this SubscriptionService
+     */
+    public ContentFilterEngine getContentFilterEngine() {
+        return _contentFilters;
+    }
+
     /**
      * Fetch the number of registered subscribers
      *
@@ -601,8 +880,8 @@ public class SubscriptionService extends AbstractCoreService implements TopicCha
      * Purges all registered listener objects from the SubscriptionService
      */
     public synchronized void removeAllListeners() {
-        _subscriptionListeners.clear();
-        _registrationListeners.clear();
+        _subscriptionListeners.removeAllListeners();
+        _registrationListeners.removeAllListeners();
     }
 
     /**
@@ -611,7 +890,7 @@ public class SubscriptionService extends AbstractCoreService implements TopicCha
      * @param s : An object implementing the SubscriptionChangeListener interface
      */
     public synchronized void addSubscriptionChangeListener(SubscriptionChangeListener s) {
-        _subscriptionListeners.add(s);
+        _subscriptionListeners.addListener(s);
     }
 
     /**
@@ -620,18 +899,29 @@ public class SubscriptionService extends AbstractCoreService implements TopicCha
      * @param s : An object implementing the SubscriptionChangeListener interface
      */
     public synchronized void removeSubscriptionChangeListener(SubscriptionChangeListener s) {
-        if (_subscriptionListeners.contains(s)) _subscriptionListeners.remove(s);
+        _subscriptionListeners.removeListener(s);
     }
 
     /**
-     * Private helper method fo fire the subscriptionChange method on all listners.
+     * Private helper method fo fire the subscriptionChange method on all listners. The event is queued for each
+     * listener and delivered asynchronously on its delivery thread.
      *
      * @param sub  : The particular subscriber object that has changed.
      * @param type : What type of action is associated with the subscriber object.
      */
     private void fireSubcriptionChangeEvent(Subscriber sub, SubscriptionChangeEvent.Type type) {
-        SubscriptionChangeEvent sce = new SubscriptionChangeEvent(type, sub);
-        _subscriptionListeners.stream().forEach(l -> l.subscriptionChanged(sce));
+        _subscriptionListeners.publish(new SubscriptionChangeEvent(type, sub));
+    }
+
+    /**
+     * Private helper method to fire a single batched subscriptionChange event on all listeners.
+     *
+     * @param subs : The subscriber objects that have changed.
+     * @param type : What type of action is associated with the subscriber objects.
+     */
+    private void fireSubcriptionChangeEvent(HashSet<Subscriber> subs, SubscriptionChangeEvent.Type type) {
+        log.debug("Firing batched subscriptionchange event of type " + type + " on " + subs.size() + " subscribers");
+        _subscriptionListeners.publish(new SubscriptionChangeEvent(type, subs));
     }
 
     /**
@@ -640,7 +930,7 @@ public class SubscriptionService extends AbstractCoreService implements TopicCha
      * @param r : An object implementing the PublisherChangeListener interface
      */
     public synchronized void addPublisherChangeListener(PublisherChangeListener r) {
-        _registrationListeners.add(r);
+        _registrationListeners.addListener(r);
     }
 
     /**
@@ -649,7 +939,7 @@ public class SubscriptionService extends AbstractCoreService implements TopicCha
      * @param r : An object implementing the PublisherChangeListener interface
      */
     public synchronized void removePublisherChangeListener(PublisherChangeListener r) {
-        if (_registrationListeners.contains(r)) _registrationListeners.remove(r);
+        _registrationListeners.removeListener(r);
     }
 
     /**
@@ -659,8 +949,25 @@ public class SubscriptionService extends AbstractCoreService implements TopicCha
      * @param type : What type of action is associated with the publisher object.
      */
     private void firePublisherChangeEvent(Publisher reg, PublisherChangeEvent.Type type) {
-        PublisherChangeEvent pce = new PublisherChangeEvent(type, reg);
-        _registrationListeners.stream().forEach(l -> l.publisherChanged(pce));
+        _registrationListeners.publish(new PublisherChangeEvent(type, reg));
+    }
+
+    /**
+     * Retrieves the event bus delivering SubscriptionChange events, for listener lag and drop statistics
+     *
+     * @return The EventBus of the SubscriptionChange listeners
+     */
+    public EventBus<SubscriptionChangeListener, SubscriptionChangeEvent> getSubscriptionEventBus() {
+        return _subscriptionListeners;
+    }
+
+    /**
+     * Retrieves the event bus delivering PublisherChange events, for listener lag and drop statistics
+     *
+     * @return The EventBus of the PublisherChange listeners
+     */
+    public EventBus<PublisherChangeListener, PublisherChangeEvent> getPublisherEventBus() {
+        return _registrationListeners;
     }
 
     /* End listener support */
@@ -671,13 +978,15 @@ public class SubscriptionService extends AbstractCoreService implements TopicCha
     public void topicChanged(TopicChangeEvent event) {
         if (event.getType().equals(TopicChangeEvent.Type.DELETE)) {
 
-            // Fetch the raw topic string from the event Topic object
-            String fullRawTopicString = event.getData().getFullTopicString();
+            // Fetch the raw topic string captured when the event was created, as the deleted topic is detached
+            String fullRawTopicString = event.getFullTopicString();
 
-            // Remove all the subscribers for the topic that was deleted
-            getAllSubscribersForTopic(fullRawTopicString).forEach(s -> removeSubscriber(s));
-            // Remove all the publishers for the topic that was deleted
-            getAllPublishersForTopic(fullRawTopicString).forEach(p -> removePublisher(p));
+            // Remove all the subscribers for the topic that was deleted, in a single task
+            HashSet<Subscriber> subscribers = getSubscribersWithTopic(fullRawTopicString);
+            if (!subscribers.isEmpty()) removeSubscribers(subscribers);
+            // Remove all the publishers for the topic that was deleted, in a single task
+            HashSet<Publisher> publishers = getAllPublishersForTopic(fullRawTopicString);
+            if (!publishers.isEmpty()) removePublishers(publishers);
         }
     }
 
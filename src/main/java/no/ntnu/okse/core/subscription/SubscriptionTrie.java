@@ -0,0 +1,221 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Norwegian Defence Research Establishment / NTNU
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package no.ntnu.okse.core.subscription;
+
+import org.eclipse.jetty.util.ConcurrentHashSet;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A hierarchical index of subscribers, with one node per topic level mirroring the Topic parent/child tree.
+ * Resolving the subscribers of a published topic walks the trie once, in time proportional to the depth of
+ * the topic rather than the number of subscribers.
+ * <p>
+ * Subscription topics may contain wildcard levels. A "*" level matches exactly one level, while a "#" level
+ * matches the rest of the topic, including the parent itself. Hence "sensors/#" is a prefix subscription to
+ * the sensors topic and all of its descendants. A "#" level is only meaningful as the last level.
+ * Subscribers with a null topic are subscribed to all topics.
+ * <p>
+ * Modifications are synchronized, while lookups are lock free and may run concurrently with them.
+ * <p>
+ * okse is licenced under the MIT licence.
+ */
+public class SubscriptionTrie {
+
+    public static final String SEPARATOR = "/";
+    public static final String SINGLE_LEVEL_WILDCARD = "*";
+    public static final String MULTI_LEVEL_WILDCARD = "#";
+
+    private final Node root;
+    private final ConcurrentHashSet<Subscriber> allTopicSubscribers;
+
+    /**
+     * A single topic level in the trie
+     */
+    private static class Node {
+        final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<>();
+        final ConcurrentHashSet<Subscriber> subscribers = new ConcurrentHashSet<>();
+
+        boolean isEmpty() {
+            return children.isEmpty() && subscribers.isEmpty();
+        }
+    }
+
+    /**
+     * Retrieves the concrete part of a subscription topic, that is the levels before its first wildcard level.
+     * E.g "sensors/#" gives "sensors", while "*" or "#" has no concrete part at all.
+     *
+     * @param topic The raw subscription topic string
+     * @return The topic up to the first wildcard level, the topic itself if it has none, or null if it starts
+     * with a wildcard level
+     */
+    public static String getConcretePrefix(String topic) {
+        if (topic == null) return null;
+        String[] levels = topic.split(SEPARATOR);
+        for (int i = 0; i < levels.length; i++) {
+            if (levels[i].equals(SINGLE_LEVEL_WILDCARD) || levels[i].equals(MULTI_LEVEL_WILDCARD)) {
+                return (i == 0) ? null : String.join(SEPARATOR, Arrays.copyOfRange(levels, 0, i));
+            }
+        }
+        return topic;
+    }
+
+    /**
+     * Constructs an empty trie
+     */
+    public SubscriptionTrie() {
+        root = new Node();
+        allTopicSubscribers = new ConcurrentHashSet<>();
+    }
+
+    /**
+     * Adds a subscriber to the trie, at the node of its subscription topic
+     *
+     * @param s The subscriber to add
+     */
+    public synchronized void add(Subscriber s) {
+        if (s.getTopic() == null) {
+            allTopicSubscribers.add(s);
+            return;
+        }
+        Node node = root;
+        for (String level : s.getTopic().split(SEPARATOR)) {
+            node = node.children.computeIfAbsent(level, k -> new Node());
+        }
+        node.subscribers.add(s);
+    }
+
+    /**
+     * Removes a subscriber from the trie, pruning the nodes that are left empty
+     *
+     * @param s The subscriber to remove
+     */
+    public synchronized void remove(Subscriber s) {
+        if (s.getTopic() == null) {
+            allTopicSubscribers.remove(s);
+            return;
+        }
+        remove(root, s.getTopic().split(SEPARATOR), 0, s);
+    }
+
+    /**
+     * Recursive helper for remove, that prunes empty children on the way back up
+     */
+    private static void remove(Node node, String[] levels, int depth, Subscriber s) {
+        if (depth == levels.length) {
+            node.subscribers.remove(s);
+            return;
+        }
+        Node child = node.children.get(levels[depth]);
+        if (child == null) return;
+        remove(child, levels, depth + 1, s);
+        if (child.isEmpty()) node.children.remove(levels[depth]);
+    }
+
+    /**
+     * Resolves all subscribers that should receive messages published on a topic, including wildcard,
+     * prefix and all-topic subscribers.
+     *
+     * @param topic The full raw topic string of a published topic
+     * @return A HashSet of the matching subscribers
+     */
+    public HashSet<Subscriber> match(String topic) {
+        HashSet<Subscriber> results = new HashSet<>(allTopicSubscribers);
+        if (topic != null) match(root, topic.split(SEPARATOR), 0, results);
+        return results;
+    }
+
+    /**
+     * Recursive helper for match, following the exact level as well as any wildcard levels
+     */
+    private static void match(Node node, String[] levels, int depth, HashSet<Subscriber> results) {
+        Node multi = node.children.get(MULTI_LEVEL_WILDCARD);
+        if (multi != null) results.addAll(multi.subscribers);
+        if (depth == levels.length) {
+            results.addAll(node.subscribers);
+            return;
+        }
+        Node exact = node.children.get(levels[depth]);
+        if (exact != null) match(exact, levels, depth + 1, results);
+        Node single = node.children.get(SINGLE_LEVEL_WILDCARD);
+        if (single != null && single != exact) match(single, levels, depth + 1, results);
+    }
+
+    /**
+     * Retrieves the subscribers whose subscription topic is exactly the given topic string, without
+     * expanding wildcards.
+     *
+     * @param topic The subscription topic, or null for the all-topic subscribers
+     * @return A HashSet of the subscribers registered with that exact topic
+     */
+    public HashSet<Subscriber> getSubscribersWithTopic(String topic) {
+        if (topic == null) return new HashSet<>(allTopicSubscribers);
+        Node node = root;
+        for (String level : topic.split(SEPARATOR)) {
+            node = node.children.get(level);
+            if (node == null) return new HashSet<>();
+        }
+        return new HashSet<>(node.subscribers);
+    }
+
+    /**
+     * Retrieves every subscriber in the trie, regardless of topic
+     *
+     * @return A HashSet of all the subscribers in the trie
+     */
+    public HashSet<Subscriber> getAllSubscribers() {
+        HashSet<Subscriber> results = new HashSet<>(allTopicSubscribers);
+        collect(root, results);
+        return results;
+    }
+
+    /**
+     * Recursive helper for getAllSubscribers
+     */
+    private static void collect(Node node, HashSet<Subscriber> results) {
+        results.addAll(node.subscribers);
+        node.children.values().forEach(child -> collect(child, results));
+    }
+
+    /**
+     * Checks if the trie holds no subscribers
+     *
+     * @return True if there are no subscribers in the trie
+     */
+    public boolean isEmpty() {
+        return allTopicSubscribers.isEmpty() && root.isEmpty();
+    }
+
+    /**
+     * Removes all subscribers from the trie
+     */
+    public synchronized void clear() {
+        root.children.clear();
+        root.subscribers.clear();
+        allTopicSubscribers.clear();
+    }
+}
@@ -25,14 +25,13 @@
 package no.ntnu.okse.core.topic;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import no.ntnu.okse.core.IDGenerator;
 import org.apache.log4j.Logger;
-import org.springframework.security.crypto.codec.Hex;
 
 import javax.validation.constraints.NotNull;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.function.Consumer;
 
 /**
  * Created by Aleksander Skraastad (myth) on 4/5/15.
@@ -45,18 +44,46 @@ public class Topic {
     private String name;
     private final String topicID;
     private String type;
-    private Topic parent;
-    private HashSet<Topic> children;
+    private volatile Topic parent;
+    // Copy-on-write array of children, so the tree can be read and traversed without locking or copying
+    private volatile Topic[] children;
     private static Logger log;
 
+    private static final Topic[] NO_CHILDREN = new Topic[0];
+
+    // Cached full topic paths, only valid as long as the pathVersion they were built from is unchanged.
+    // The pathVersion is only changed while holding the lock of the tree, so the version needs no atomic increment.
+    private volatile int pathVersion;
+    private volatile CachedPath cachedPath;
+
+    // Activity timestamps in milliseconds since epoch, used to reclaim idle topics. Both start at creation time.
+    private volatile long lastPublished;
+    private volatile long lastSubscribed;
+
+    /**
+     * Immutable holder of the interned full topic strings of a node, tagged with the path version they were built from
+     */
+    private static final class CachedPath {
+        final int version;
+        final String fullTopicString;
+        final String fullTopicStringIgnoreCase;
+
+        CachedPath(int version, String fullTopicString, String fullTopicStringIgnoreCase) {
+            this.version = version;
+            this.fullTopicString = fullTopicString;
+            this.fullTopicStringIgnoreCase = fullTopicStringIgnoreCase;
+        }
+    }
+
     public Topic() {
         if (name == null) this.name = "UNNAMED";
         if (type == null) this.type = "UNKNOWN";
 
-        topicID = generateTopicID();
+        topicID = IDGenerator.generateID();
 
         parent = null;
-        children = new HashSet<>();
+        children = NO_CHILDREN;
+        lastPublished = lastSubscribed = System.currentTimeMillis();
     }
 
     public Topic(String name, String type) {
@@ -66,30 +93,11 @@ public class Topic {
         if (type == null) this.type = "UNKNOWN";
         else this.type = type;
 
-        topicID = generateTopicID();
+        topicID = IDGenerator.generateID();
 
         parent = null;
-        children = new HashSet<>();
-    }
-
-    /**
-     * Private method that generates an MD5 topic ID
-     *
-     * @return A string containing the generated topicID
-     */
-    private String generateTopicID() {
-        try {
-            MessageDigest m = MessageDigest.getInstance("MD5");
-            m.update(Long.toString(System.nanoTime()).getBytes());
-            byte[] hash = m.digest();
-            String topicID = new String(Hex.encode(hash));
-
-            return topicID;
-        } catch (NoSuchAlgorithmException e) {
-            log.error("Could not generate a topic ID (MD5 algorithm not found)");
-        }
-
-        return null;
+        children = NO_CHILDREN;
+        lastPublished = lastSubscribed = System.currentTimeMillis();
     }
 
     /**
@@ -116,7 +124,10 @@ public class Topic {
      * @param name A string representing the name of this topic
      */
     public void setName(String name) {
-        this.name = name;
+        lockTrees(this, this, () -> {
+            this.name = name;
+            invalidateCachedPath();
+        });
     }
 
     /**
@@ -161,21 +172,103 @@ public class Topic {
      * @param newParent A Topic instance to be the new parent of this topic node, or null if it is to be converted to a root node.
      */
     public void setParent(Topic newParent) {
-        // Do we have a parent? e.g not null
-        if (newParent != null) {
-            // Are we switching to a new parent? If so, remove ourselves from the children set of the old parent.
-            if (this.parent != newParent && this.parent != null) {
-                this.parent.children.remove(this);
+        // A reparent touches both the tree this node is in, and the tree of the new parent
+        lockTrees(this, newParent == null ? this : newParent, () -> {
+            // Do we have a parent? e.g not null
+            if (newParent != null) {
+                // Are we switching to a new parent? If so, remove ourselves from the children set of the old parent.
+                if (this.parent != newParent && this.parent != null) {
+                    this.parent.removeChildLocal(this);
+                }
+                // Add ourselves to the children set of the new parent
+                newParent.addChildLocal(this);
+                // We are removing the parent of this node, converting it to a root node.
+            } else {
+                // Remove ourselves from the children set of the existing parent
+                this.parent.removeChildLocal(this);
+            }
+            // Set the new parent
+            this.parent = newParent;
+            invalidateCachedPath();
+        });
+    }
+
+    /**
+     * Runs a structural modification while holding the lock of the trees of two topics. Each tree is guarded by
+     * its root node, so modifications of independent trees never wait on each other. The roots are locked in order
+     * of their IDs, so two modifications spanning the same trees cannot deadlock. Once locked, the roots are checked
+     * again, as a concurrent modification may have moved either topic to another tree in the meantime.
+     *
+     * @param first        A topic in the first tree to lock
+     * @param second       A topic in the second tree to lock, which may be the same tree
+     * @param modification The modification to run while holding the locks
+     */
+    private static void lockTrees(Topic first, Topic second, Runnable modification) {
+        while (true) {
+            Topic firstRoot = getRoot(first);
+            Topic secondRoot = getRoot(second);
+            boolean ordered = firstRoot.topicID.compareTo(secondRoot.topicID) <= 0;
+            synchronized (ordered ? firstRoot : secondRoot) {
+                synchronized (ordered ? secondRoot : firstRoot) {
+                    // A root only gets a parent while its own lock is held, so held roots can not change
+                    if (getRoot(first) == firstRoot && getRoot(second) == secondRoot) {
+                        modification.run();
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Fetches the root node of the tree a topic is in
+     *
+     * @param topic The topic node to find the root of
+     * @return The root node, which is the topic itself if it has no parent
+     */
+    private static Topic getRoot(Topic topic) {
+        Topic root = topic;
+        while (root.parent != null) root = root.parent;
+        return root;
+    }
+
+    /**
+     * Replaces the children array with a copy that includes the topic, unless it is already present.
+     * Must be called while holding the lock of the tree.
+     *
+     * @param topic The topic to add to the children array
+     */
+    private void addChildLocal(Topic topic) {
+        Topic[] current = this.children;
+        for (Topic child : current) {
+            if (child == topic) return;
+        }
+        Topic[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = topic;
+        this.children = updated;
+    }
+
+    /**
+     * Replaces the children array with a copy that excludes the topic, if it is present.
+     * Must be called while holding the lock of the tree.
+     *
+     * @param topic The topic to remove from the children array
+     */
+    private void removeChildLocal(Topic topic) {
+        Topic[] current = this.children;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == topic) {
+                if (current.length == 1) {
+                    this.children = NO_CHILDREN;
+                } else {
+                    Topic[] updated = new Topic[current.length - 1];
+                    System.arraycopy(current, 0, updated, 0, i);
+                    System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                    this.children = updated;
+                }
+                return;
             }
-            // Add ourselves to the children set of the new parent
-            if (!newParent.children.contains(this)) newParent.children.add(this);
-            // We are removing the parent of this node, converting it to a root node.
-        } else {
-            // Remove ourselves from the children set of the existing parent
-            this.parent.children.remove(this);
         }
-        // Set the new parent
-        this.parent = newParent;
     }
 
     /**
@@ -199,25 +292,111 @@ public class Topic {
     }
 
     /**
-     * Get a HashSet of the children of this node.
+     * Get a HashSet of the children of this node. Traversals should prefer forEachChild or walk, which do not copy.
      *
      * @return A shallow copy of the children set for this node, to prevent alterations to set set itself outside setters.
      */
     public HashSet<Topic> getChildren() {
-        return (HashSet<Topic>) this.children.clone();
+        return new HashSet<>(Arrays.asList(this.children));
+    }
+
+    /**
+     * Performs an action on each child of this node, without copying the children.
+     *
+     * @param action The action to perform on each child node
+     */
+    public void forEachChild(Consumer<Topic> action) {
+        for (Topic child : this.children) {
+            action.accept(child);
+        }
+    }
+
+    /**
+     * Get the number of children of this node
+     *
+     * @return The number of direct children of this node
+     */
+    public int getNumberOfChildren() {
+        return this.children.length;
     }
 
     /**
      * Removes all children from this node, by disconnecting their parent relation to this Topic node.
      */
     public void clearChildren() {
-        Iterator<Topic> iterator = this.children.iterator();
-        while (iterator.hasNext()) {
-            Topic t = iterator.next();
+        for (Topic t : this.children) {
             t.setParent(null);
         }
     }
 
+    /**
+     * A visitor for depth-first traversals of a topic tree
+     */
+    public interface Visitor {
+        /**
+         * Visits a topic node
+         *
+         * @param topic The topic node being visited
+         * @return True if the traversal should continue into the children of the node, false to skip them
+         */
+        boolean visit(Topic topic);
+    }
+
+    /**
+     * Traverses this node and its descendants depth-first, pre-order. The traversal reads the children arrays
+     * directly, so it takes no lock and allocates nothing. Concurrent modifications are seen either fully or not
+     * at all for each node.
+     *
+     * @param visitor The visitor to call for each node
+     */
+    public void walk(Visitor visitor) {
+        if (!visitor.visit(this)) return;
+        for (Topic child : this.children) {
+            child.walk(visitor);
+        }
+    }
+
+    /**
+     * Records that a message was published on this topic
+     */
+    public void markPublished() {
+        lastPublished = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the last time a message was published on this topic, or the creation time if none has been
+     *
+     * @return The time in milliseconds since epoch
+     */
+    public long getLastPublished() {
+        return lastPublished;
+    }
+
+    /**
+     * Records that a subscriber subscribed to, or renewed a subscription on this topic
+     */
+    public void markSubscribed() {
+        lastSubscribed = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the last time a subscriber subscribed to this topic, or the creation time if none has
+     *
+     * @return The time in milliseconds since epoch
+     */
+    public long getLastSubscribed() {
+        return lastSubscribed;
+    }
+
+    /**
+     * Returns the last time this topic saw any activity
+     *
+     * @return The latest of the last publish and last subscribe times, in milliseconds since epoch
+     */
+    public long getLastActivity() {
+        return Math.max(lastPublished, lastSubscribed);
+    }
+
     /**
      * Checks to see wether this topic is the root node in the hierarchy.
      *
@@ -234,33 +413,62 @@ public class Topic {
      * @return true if this is a leaf node, false otherwise.
      */
     public boolean isLeaf() {
-        return this.children.isEmpty();
+        return this.children.length == 0;
     }
 
     /**
-     * Traverses up the tree quasi-recursively to generate a complete topic string.
+     * Returns the complete topic string of this node. The string is built by traversing up the tree the first
+     * time it is requested, and cached until this node or one of its ancestors is renamed or reparented.
      *
      * @return A string containing the full topic path of this node.
      */
     public String getFullTopicString() {
-        String localTopicName = this.getName();
-        if (!this.isRoot()) {
-            return this.parent.getFullTopicString() + "/" + localTopicName;
-        } else {
-            return this.name;
-        }
+        return getCachedPath().fullTopicString;
     }
 
     /**
-     * Traverses up the tree quasi-recursively to generate a complete topic string.
+     * Returns the complete topic string of this node in ignorecase (lowercase) mode. The string is cached
+     * along with the full topic string.
      *
      * @return A string containing the full topic path of this node.
      */
     public String getFullTopicStringIgnoreCase() {
-        if (!this.isRoot()) {
-            return this.parent.getFullTopicStringIgnoreCase() + "/" + this.getNameIgnoreCase();
+        return getCachedPath().fullTopicStringIgnoreCase;
+    }
+
+    /**
+     * Fetches the cached full topic strings of this node, rebuilding them from the parent if they are stale.
+     * The version is read before the tree, so a path built while the tree is being modified is never reused.
+     *
+     * @return A CachedPath that is valid for the current path version
+     */
+    private CachedPath getCachedPath() {
+        int version = pathVersion;
+        CachedPath cached = cachedPath;
+        if (cached != null && cached.version == version) return cached;
+
+        Topic localParent = this.parent;
+        if (localParent == null) {
+            cached = new CachedPath(version, this.name.intern(), this.getNameIgnoreCase().intern());
         } else {
-            return this.getNameIgnoreCase();
+            CachedPath parentPath = localParent.getCachedPath();
+            cached = new CachedPath(version,
+                    (parentPath.fullTopicString + "/" + this.name).intern(),
+                    (parentPath.fullTopicStringIgnoreCase + "/" + this.getNameIgnoreCase()).intern());
+        }
+        cachedPath = cached;
+        return cached;
+    }
+
+    /**
+     * Invalidates the cached full topic strings of this node and all of its descendants.
+     * Must be called while holding the lock of the tree.
+     */
+    private void invalidateCachedPath() {
+        pathVersion++;
+        cachedPath = null;
+        for (Topic child : this.children) {
+            child.invalidateCachedPath();
         }
     }
 
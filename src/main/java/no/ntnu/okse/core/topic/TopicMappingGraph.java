@@ -0,0 +1,236 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Norwegian Defence Research Establishment / NTNU
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package no.ntnu.okse.core.topic;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * A directed graph of topic mappings. Alongside the one-hop mappings, the graph keeps the transitive closure
+ * of every source topic, so all the topics a message must be copied to are known in a single lookup.
+ * The closure is maintained incrementally, only the sources that can reach a changed mapping are updated.
+ * <p>
+ * Mappings that would close a cycle are rejected, so no topic is ever part of its own closure.
+ * The graph is thread safe, all methods synchronize on the graph instance.
+ * <p>
+ * okse is licenced under the MIT licence.
+ */
+public class TopicMappingGraph {
+
+    // One-hop mappings, from topic to the topics it maps directly to
+    private final HashMap<String, HashSet<String>> edges;
+    // Transitive closure, from topic to all the topics reachable from it
+    private final HashMap<String, HashSet<String>> closure;
+    // Number of one-hop mappings to each topic, so targets are found without walking the edges
+    private final HashMap<String, Integer> incoming;
+
+    /**
+     * Constructs an empty mapping graph
+     */
+    public TopicMappingGraph() {
+        edges = new HashMap<>();
+        closure = new HashMap<>();
+        incoming = new HashMap<>();
+    }
+
+    /**
+     * Adds a mapping between two topics, and extends the closure of every topic that can reach the source topic
+     *
+     * @param fromTopic Topic to map from
+     * @param toTopic   Topic to map to
+     * @return True if the mapping was added, false if it already existed
+     * @throws IllegalArgumentException If the mapping would create a cycle
+     */
+    public synchronized boolean addMapping(String fromTopic, String toTopic) {
+        if (wouldCreateCycle(fromTopic, toTopic)) {
+            throw new IllegalArgumentException("Mapping from Topic{" + fromTopic + "} to Topic{" + toTopic + "} would create a cycle");
+        }
+        HashSet<String> targets = edges.computeIfAbsent(fromTopic, k -> new HashSet<>());
+        if (!targets.add(toTopic)) return false;
+        incoming.merge(toTopic, 1, Integer::sum);
+
+        // Everything reachable from the new target is now reachable from the source and its ancestors
+        HashSet<String> reachable = new HashSet<>(getClosure(toTopic));
+        reachable.add(toTopic);
+        closure.computeIfAbsent(fromTopic, k -> new HashSet<>()).addAll(reachable);
+        closure.forEach((source, sourceClosure) -> {
+            if (sourceClosure.contains(fromTopic)) sourceClosure.addAll(reachable);
+        });
+        return true;
+    }
+
+    /**
+     * Removes all mappings from a topic, and recomputes the closure of every topic that could reach it
+     *
+     * @param fromTopic The topic to remove the mappings from
+     * @return True if the topic had any mappings, false otherwise
+     */
+    public synchronized boolean removeMappings(String fromTopic) {
+        HashSet<String> targets = edges.remove(fromTopic);
+        if (targets == null) return false;
+        targets.forEach(toTopic -> incoming.computeIfPresent(toTopic, (k, count) -> count > 1 ? count - 1 : null));
+
+        // Only the removed source and the sources that could reach it may have lost reachable topics
+        HashSet<String> affected = new HashSet<>();
+        affected.add(fromTopic);
+        closure.forEach((source, sourceClosure) -> {
+            if (sourceClosure.contains(fromTopic)) affected.add(source);
+        });
+        affected.forEach(this::recomputeClosure);
+        return true;
+    }
+
+    /**
+     * Checks if adding a mapping would create a cycle, e.g if the source topic is reachable from the target topic
+     *
+     * @param fromTopic Topic to map from
+     * @param toTopic   Topic to map to
+     * @return True if the mapping would create a cycle, false otherwise
+     */
+    public synchronized boolean wouldCreateCycle(String fromTopic, String toTopic) {
+        return fromTopic.equals(toTopic) || getClosure(toTopic).contains(fromTopic);
+    }
+
+    /**
+     * Retrieves all topics reachable from a topic through one or more mappings
+     *
+     * @param fromTopic The topic to map from
+     * @return A copy of the transitive closure of the topic, empty if it has no mappings
+     */
+    public synchronized HashSet<String> getTransitiveTargets(String fromTopic) {
+        return new HashSet<>(getClosure(fromTopic));
+    }
+
+    /**
+     * Retrieves the topics a topic maps directly to
+     *
+     * @param fromTopic The topic to map from
+     * @return A copy of the one-hop mappings of the topic, empty if it has no mappings
+     */
+    public synchronized HashSet<String> getDirectTargets(String fromTopic) {
+        HashSet<String> targets = edges.get(fromTopic);
+        return targets == null ? new HashSet<>() : new HashSet<>(targets);
+    }
+
+    /**
+     * Checks if any topic maps to a topic, e.g if the topic can appear as a fan-out target
+     *
+     * @param topic The topic to check
+     * @return True if at least one mapping points to the topic, false otherwise
+     */
+    public synchronized boolean isMappingTarget(String topic) {
+        return incoming.containsKey(topic);
+    }
+
+    /**
+     * Checks if a topic takes part in any mapping, either as the source or as the target
+     *
+     * @param topic The topic to check
+     * @return True if the topic maps to, or is mapped from, at least one other topic, false otherwise
+     */
+    public synchronized boolean isMapped(String topic) {
+        return edges.containsKey(topic) || incoming.containsKey(topic);
+    }
+
+    /**
+     * Retrieves all the one-hop mappings in the graph
+     *
+     * @return A HashMap of copies of the one-hop mappings of each source topic
+     */
+    public synchronized HashMap<String, HashSet<String>> getDirectMappings() {
+        HashMap<String, HashSet<String>> collector = new HashMap<>();
+        edges.forEach((k, v) -> collector.put(k, new HashSet<>(v)));
+        return collector;
+    }
+
+    /**
+     * Retrieves the one-hop mappings in the graph, leaving out the given mappings
+     *
+     * @param excluded The one-hop mappings to leave out, from each source topic to its targets
+     * @return A HashMap of copies of the remaining one-hop mappings of each source topic
+     */
+    public synchronized HashMap<String, HashSet<String>> getDirectMappingsExcluding(Map<String, HashSet<String>> excluded) {
+        HashMap<String, HashSet<String>> collector = new HashMap<>();
+        edges.forEach((k, v) -> {
+            HashSet<String> targets = new HashSet<>(v);
+            if (excluded.containsKey(k)) targets.removeAll(excluded.get(k));
+            if (!targets.isEmpty()) collector.put(k, targets);
+        });
+        return collector;
+    }
+
+    /**
+     * Retrieves the transitive closure of every source topic in the graph
+     *
+     * @return A HashMap of copies of the closure of each source topic
+     */
+    public synchronized HashMap<String, HashSet<String>> getTransitiveMappings() {
+        HashMap<String, HashSet<String>> collector = new HashMap<>();
+        closure.forEach((k, v) -> collector.put(k, new HashSet<>(v)));
+        return collector;
+    }
+
+    /**
+     * Checks if the graph holds no mappings
+     *
+     * @return True if there are no mappings, false otherwise
+     */
+    public synchronized boolean isEmpty() {
+        return edges.isEmpty();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return edges.toString();
+    }
+
+    /**
+     * Fetches the closure of a topic without copying it
+     */
+    private HashSet<String> getClosure(String topic) {
+        HashSet<String> reachable = closure.get(topic);
+        return reachable == null ? new HashSet<>() : reachable;
+    }
+
+    /**
+     * Recomputes the closure of a single topic by an iterative traversal of the one-hop mappings
+     */
+    private void recomputeClosure(String topic) {
+        HashSet<String> reachable = new HashSet<>();
+        ArrayDeque<String> stack = new ArrayDeque<>();
+        stack.push(topic);
+        while (!stack.isEmpty()) {
+            HashSet<String> targets = edges.get(stack.pop());
+            if (targets == null) continue;
+            for (String target : targets) {
+                if (reachable.add(target)) stack.push(target);
+            }
+        }
+        if (reachable.isEmpty()) closure.remove(topic);
+        else closure.put(topic, reachable);
+    }
+}
@@ -27,13 +27,21 @@ package no.ntnu.okse.core.topic;
 import no.ntnu.okse.Application;
 import no.ntnu.okse.core.AbstractCoreService;
 import no.ntnu.okse.core.Utilities;
+import no.ntnu.okse.core.event.EventBus;
 import no.ntnu.okse.core.event.TopicChangeEvent;
 import no.ntnu.okse.core.event.listeners.TopicChangeListener;
-import org.eclipse.jetty.util.ConcurrentHashSet;
+import no.ntnu.okse.core.subscription.SubscriptionService;
+import no.ntnu.okse.core.subscription.SubscriptionTrie;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 /**
  * Created by Aleksander Skraastad (myth) on 4/11/15.
@@ -45,11 +53,47 @@ public class TopicService extends AbstractCoreService {
     private static boolean _invoked = false;
     private static TopicService _singleton = null;
     private static Thread _serviceThread;
-    private LinkedBlockingQueue<TopicTask> queue;
+    private ArrayList<LinkedBlockingQueue<TopicTask>> workerQueues;
+    private ArrayList<Thread> workerThreads;
+    // Guards the enqueueing of tasks spanning several workers, see submitTask
+    private final Object coordinationLock = new Object();
     private Properties config;
     private ConcurrentHashMap<String, Topic> allTopics;
-    private ConcurrentHashSet<TopicChangeListener> _listeners;
-    private ConcurrentHashMap<String, HashSet<String>> mappings;
+    // Secondary index of allTopics keyed by topic ID, kept in step by addTopicLocal and deleteTopicLocal
+    private ConcurrentHashMap<String, Topic> topicsByID;
+    // Topic change events are delivered to each listener on its own thread
+    private EventBus<TopicChangeListener, TopicChangeEvent> _listeners;
+    // Mapping graph, keeps the transitive closure of every mapped topic used to build the fan-out table
+    private TopicMappingGraph mappings;
+    private HashMap<String, HashSet<String>> configuredMappings;
+    private volatile Map<String, String[]> fanOutTable;
+    // Persisted snapshot of the topic tree and mappings, null if snapshots are disabled
+    private File snapshotFile;
+    private long snapshotInterval;
+    private Thread snapshotThread;
+    // Serialises snapshot writers, kept apart from the instance lock so workers rebuilding the fan-out table never wait on disk
+    private final Object snapshotLock = new Object();
+    private final Object reclaimLock = new Object();
+    // Counts topic and mapping changes, so unchanged state is not written again
+    private final AtomicLong modifications = new AtomicLong(0);
+    private long snapshotModifications = -1;
+    // Idle topic reclamation, disabled if the TTL is 0
+    private long idleTopicTTL;
+    private long reclaimInterval;
+    private int reclaimBatchSize;
+    private Thread reclaimThread;
+    // Resumable scan position, so each reclaim round only inspects a bounded number of topics
+    private Iterator<Topic> reclaimCursor;
+    private final AtomicLong reclaimedTopics = new AtomicLong(0);
+
+    // Default number of worker threads that topic mutations are partitioned across
+    private static final int DEFAULT_TOPIC_WORKERS = 1;
+    private static final String DEFAULT_SNAPSHOT_ENABLED = "false";
+    private static final String DEFAULT_SNAPSHOT_FILE = "topics.snapshot";
+    private static final long DEFAULT_SNAPSHOT_INTERVAL = 60000;
+    private static final long DEFAULT_IDLE_TOPIC_TTL = 0;
+    private static final long DEFAULT_RECLAIM_INTERVAL = 10000;
+    private static final int DEFAULT_RECLAIM_BATCH_SIZE = 1000;
 
     /**
      * Private constructor that passes this classname to superclass log instance. Uses getInstance to instanciate.
@@ -76,12 +120,41 @@ public class TopicService extends AbstractCoreService {
     protected void init() {
         config = Application.readConfigurationFiles();
         log.info("Initializing TopicService...");
-        queue = new LinkedBlockingQueue<>();
+
+        // Attempt to extract the number of worker threads from the configuration file
+        int workerCount = DEFAULT_TOPIC_WORKERS;
+        try {
+            workerCount = Integer.parseInt(config.getProperty("TOPIC_SERVICE_WORKERS", Integer.toString(DEFAULT_TOPIC_WORKERS)));
+        } catch (NumberFormatException e) {
+            log.error("Failed to parse TOPIC_SERVICE_WORKERS, using default: " + DEFAULT_TOPIC_WORKERS);
+        }
+        if (workerCount < 1) {
+            log.warn("TOPIC_SERVICE_WORKERS must be at least 1, using default: " + DEFAULT_TOPIC_WORKERS);
+            workerCount = DEFAULT_TOPIC_WORKERS;
+        }
+        // Each worker has its own task queue, topic mutations are partitioned across them by root topic
+        workerQueues = new ArrayList<>();
+        for (int i = 0; i < workerCount; i++) {
+            workerQueues.add(new LinkedBlockingQueue<>());
+        }
+        workerThreads = new ArrayList<>();
+        log.info("TopicService using " + workerCount + " worker(s)");
+
         allTopics = new ConcurrentHashMap<>();
-        _listeners = new ConcurrentHashSet<>();
-        mappings = new ConcurrentHashMap<>();
+        topicsByID = new ConcurrentHashMap<>();
+        // Only updates are informational, every other topic event changes listener state and must not be dropped
+        _listeners = new EventBus<>("TopicService-TopicEvents", TopicChangeListener::topicChanged, config,
+                e -> e.getType() == TopicChangeEvent.Type.UPDATE);
+        mappings = new TopicMappingGraph();
+        configuredMappings = new HashMap<>();
+        fanOutTable = Collections.emptyMap();
         _invoked = true;
 
+        // Restore the topics and the mappings added at runtime from the last run. Mappings from the mapping file
+        // are never written to the snapshot, so the file stays the source of truth for them.
+        initSnapshot();
+        initReclaimer();
+
         log.info("Initializing topic mapping from configuration file");
         if (config.containsKey("TOPIC_MAPPING")) {
 
@@ -93,21 +166,100 @@ public class TopicService extends AbstractCoreService {
             }
 
             log.debug("Topic mapping properties: " + topicMapping.stringPropertyNames());
+            // Collect every mapped topic, so they can be created in a single batch task
+            HashSet<String> mappedTopics = new HashSet<>();
             for (String toMapFrom : topicMapping.stringPropertyNames()) {
-                addTopic(toMapFrom);
+                mappedTopics.add(toMapFrom);
 
                 String[] toMapToList = topicMapping.getProperty(toMapFrom).split(",");
 
                 for (String toMapTo : toMapToList) {
-                    addTopic(toMapTo);
-                    addMappingBetweenTopics(toMapFrom, toMapTo);
+                    mappedTopics.add(toMapTo);
+                    configuredMappings.computeIfAbsent(toMapFrom, k -> new HashSet<>()).add(toMapTo);
+                    addMappingLocal(toMapFrom, toMapTo);
                 }
             }
+            // Cover the mapped topics restored from the snapshot, the batch task rebuilds the table again if it
+            // creates any missing mapped topics
+            rebuildFanOutTable();
+            addTopics(mappedTopics);
             log.debug("Predefined mappings are: " + mappings);
             log.info("Topic mapping configuration done");
         }
     }
 
+    /**
+     * Private helper that reads the snapshot settings from the configuration file, and loads the topic tree
+     * and mappings from the last snapshot, if snapshots are enabled and one exists
+     */
+    private void initSnapshot() {
+        snapshotFile = null;
+        if (!config.getProperty("TOPIC_SNAPSHOT_ENABLED", DEFAULT_SNAPSHOT_ENABLED).trim().equalsIgnoreCase("true")) return;
+
+        snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+        try {
+            snapshotInterval = Long.parseLong(config.getProperty("TOPIC_SNAPSHOT_INTERVAL", Long.toString(DEFAULT_SNAPSHOT_INTERVAL)));
+        } catch (NumberFormatException e) {
+            log.error("Failed to parse TOPIC_SNAPSHOT_INTERVAL, using default: " + DEFAULT_SNAPSHOT_INTERVAL);
+        }
+        if (snapshotInterval < 1) snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+        snapshotFile = new File(config.getProperty("TOPIC_SNAPSHOT_FILE", DEFAULT_SNAPSHOT_FILE));
+
+        if (!snapshotFile.exists()) {
+            log.info("No topic snapshot found at " + snapshotFile + ", starting with an empty topic tree");
+            return;
+        }
+        try {
+            long start = System.currentTimeMillis();
+            TopicSnapshot snapshot = TopicSnapshot.read(snapshotFile);
+            // The workers are not running yet, so the containers are filled directly in bulk
+            HashSet<Topic> loaded = new HashSet<>();
+            for (Topic t : snapshot.getTopics()) {
+                if (allTopics.putIfAbsent(t.getFullTopicString(), t) == null) {
+                    topicsByID.put(t.getTopicID(), t);
+                    loaded.add(t);
+                }
+            }
+            snapshot.getMappings().forEach((fromTopic, toTopics) -> toTopics.forEach(toTopic -> addMappingLocal(fromTopic, toTopic)));
+            rebuildFanOutTable();
+            if (!loaded.isEmpty()) fireTopicChangeEvent(loaded);
+            // What was just loaded does not need to be written back
+            snapshotModifications = modifications.get();
+            log.info("Loaded " + loaded.size() + " topic(s) and " + snapshot.getMappings().size() +
+                    " mapped topic(s) from snapshot in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException e) {
+            log.error("Failed to load topic snapshot, starting with an empty topic tree: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Private helper that reads the idle topic reclamation settings from the configuration file
+     */
+    private void initReclaimer() {
+        idleTopicTTL = DEFAULT_IDLE_TOPIC_TTL;
+        try {
+            idleTopicTTL = Long.parseLong(config.getProperty("TOPIC_IDLE_TTL", Long.toString(DEFAULT_IDLE_TOPIC_TTL)));
+        } catch (NumberFormatException e) {
+            log.error("Failed to parse TOPIC_IDLE_TTL, using default: " + DEFAULT_IDLE_TOPIC_TTL);
+        }
+        reclaimInterval = DEFAULT_RECLAIM_INTERVAL;
+        try {
+            reclaimInterval = Long.parseLong(config.getProperty("TOPIC_IDLE_SCAN_INTERVAL", Long.toString(DEFAULT_RECLAIM_INTERVAL)));
+        } catch (NumberFormatException e) {
+            log.error("Failed to parse TOPIC_IDLE_SCAN_INTERVAL, using default: " + DEFAULT_RECLAIM_INTERVAL);
+        }
+        if (reclaimInterval < 1) reclaimInterval = DEFAULT_RECLAIM_INTERVAL;
+        reclaimBatchSize = DEFAULT_RECLAIM_BATCH_SIZE;
+        try {
+            reclaimBatchSize = Integer.parseInt(config.getProperty("TOPIC_IDLE_SCAN_BATCH", Integer.toString(DEFAULT_RECLAIM_BATCH_SIZE)));
+        } catch (NumberFormatException e) {
+            log.error("Failed to parse TOPIC_IDLE_SCAN_BATCH, using default: " + DEFAULT_RECLAIM_BATCH_SIZE);
+        }
+        if (reclaimBatchSize < 1) reclaimBatchSize = DEFAULT_RECLAIM_BATCH_SIZE;
+        reclaimCursor = null;
+        if (idleTopicTTL > 0) log.info("Reclaiming topics idle for more than " + idleTopicTTL + " ms");
+    }
+
     /**
      * This method boots the TopicService and spawns a separate thread for it.
      */
@@ -139,37 +291,237 @@ public class TopicService extends AbstractCoreService {
     public void stop() {
         _running = false;
         removeAllListeners();
-        Runnable job = () -> log.info("Stopping TopicService...");
-        try {
-            _singleton.getQueue().put(new TopicTask(TopicTask.Type.SHUTDOWN, job));
-        } catch (InterruptedException e) {
-            log.error("Interrupted while trying to inject shutdown event to queue");
+        // Write a final snapshot, so topics created since the last one survive the restart
+        if (snapshotThread != null) snapshotThread.interrupt();
+        if (reclaimThread != null) reclaimThread.interrupt();
+        writeSnapshot();
+        // Wake up every worker, so they all exit their run loops
+        for (int i = 0; i < workerQueues.size(); i++) {
+            final int worker = i;
+            Runnable job = () -> log.info("Stopping TopicService worker " + worker + "...");
+            try {
+                workerQueues.get(i).put(new TopicTask(TopicTask.Type.SHUTDOWN, job));
+            } catch (InterruptedException e) {
+                log.error("Interrupted while trying to inject shutdown event to queue");
+            }
         }
     }
 
     /**
-     * This method is called after the singleton has been invoked and booted
+     * This method is called after the singleton has been invoked and booted. The TopicService thread serves
+     * the first worker queue itself, and spawns a dedicated thread for each of the remaining workers.
      */
     public void run() {
         log.info("TopicService booted successfully");
+
+        // Spawn a thread for each additional worker
+        workerThreads.clear();
+        for (int i = 1; i < workerQueues.size(); i++) {
+            final int worker = i;
+            Thread workerThread = new Thread(() -> runWorker(worker));
+            workerThread.setName("TopicService-Worker-" + worker);
+            workerThreads.add(workerThread);
+            workerThread.start();
+        }
+
+        if (snapshotFile != null) {
+            snapshotThread = new Thread(this::runSnapshotWriter);
+            snapshotThread.setName("TopicService-Snapshot");
+            snapshotThread.start();
+        }
+
+        if (idleTopicTTL > 0) {
+            reclaimThread = new Thread(this::runReclaimer);
+            reclaimThread.setName("TopicService-Reclaimer");
+            reclaimThread.start();
+        }
+
+        // The TopicService thread itself serves the first worker queue
+        runWorker(0);
+    }
+
+    /**
+     * The main run loop of a single worker. All mutations of topics under the same root topic end up on the
+     * same worker, hence they are serialised, while independent topic namespaces are processed in parallel.
+     *
+     * @param worker The index of the worker queue to serve
+     */
+    private void runWorker(int worker) {
+        LinkedBlockingQueue<TopicTask> queue = workerQueues.get(worker);
         while (_running) {
             try {
                 TopicTask task = queue.take();
-                log.debug(task.getType() + " job received, executing task...");
+                log.debug(task.getType() + " job received on worker " + worker + ", executing task...");
                 task.run();
             } catch (InterruptedException e) {
                 log.warn("Interrupt caught, consider sending a No-Op TopicTask to the queue to awaken the thread.");
             }
         }
+        log.debug("TopicService worker " + worker + " exited main run loop");
+    }
+
+    /**
+     * The run loop of the snapshot writer
+     */
+    private void runSnapshotWriter() {
+        while (_running) {
+            try {
+                Thread.sleep(snapshotInterval);
+                writeSnapshot();
+            } catch (InterruptedException e) {
+                if (_running) log.error("Interrupted while waiting to write the topic snapshot");
+            }
+        }
+    }
+
+    /**
+     * The run loop of the idle topic reclaimer
+     */
+    private void runReclaimer() {
+        while (_running) {
+            try {
+                Thread.sleep(reclaimInterval);
+                reclaimIdleTopics(reclaimBatchSize);
+            } catch (InterruptedException e) {
+                if (_running) log.error("Interrupted while waiting to reclaim idle topics");
+            }
+        }
     }
 
     /**
-     * Fetches the task queue.
+     * Inspects up to the given number of topics, continuing where the previous call left off, and removes
+     * those that are idle. A topic is idle if it is a leaf, has had no publish or subscribe activity within the
+     * TTL, and has no exact subscribers, publishers or mappings. The topics are inspected off the worker threads,
+     * and each idle topic is removed by its own small task, so reclamation never stalls the workers.
+     * Parents left without children are reclaimed by later rounds, once they are idle themselves.
+     *
+     * @param maxTopics The maximum number of topics to inspect
+     * @return The number of topics submitted for removal
+     */
+    public int reclaimIdleTopics(int maxTopics) {
+        if (idleTopicTTL <= 0) return 0;
+        return reclaimIdleTopics(idleTopicTTL, maxTopics);
+    }
+
+    /**
+     * Inspects up to the given number of topics and removes those that have been idle for longer than the given TTL
+     *
+     * @param ttl       The time in milliseconds a topic may be idle before it is removed
+     * @param maxTopics The maximum number of topics to inspect
+     * @return The number of topics submitted for removal
+     */
+    protected int reclaimIdleTopics(long ttl, int maxTopics) {
+        long cutoff = System.currentTimeMillis() - ttl;
+
+        int submitted = 0;
+        synchronized (reclaimLock) {
+            // The iterator is weakly consistent, so it tolerates concurrent changes and never throws
+            if (reclaimCursor == null || !reclaimCursor.hasNext()) reclaimCursor = allTopics.values().iterator();
+            for (int i = 0; i < maxTopics && reclaimCursor.hasNext(); i++) {
+                Topic t = reclaimCursor.next();
+                if (isReclaimable(t, cutoff)) {
+                    reclaimTopic(t, cutoff);
+                    submitted++;
+                }
+            }
+        }
+        if (submitted > 0) log.debug("Submitted " + submitted + " idle topic(s) for removal");
+        return submitted;
+    }
+
+    /**
+     * Helper that removes an idle topic on its worker, unless it has been used, given children, subscribers,
+     * publishers or mappings since it was inspected
+     *
+     * @param t      The topic to remove
+     * @param cutoff The time in milliseconds since the epoch the topic must have been idle since
+     * @return A CompletableFuture completed with true if the topic was removed, false if it was kept
+     */
+    protected CompletableFuture<Boolean> reclaimTopic(Topic t, long cutoff) {
+        String topic = t.getFullTopicString();
+        return submitTask(TopicTask.Type.DELETE_TOPIC, Collections.singletonList(topic), () -> {
+            if (allTopics.get(topic) != t || !isReclaimable(t, cutoff)) return false;
+            log.info("Reclaiming idle topic: " + topic);
+            deleteTopicLocal(t);
+            // Detach the node, so its parent becomes a leaf that can be reclaimed in turn
+            if (t.getParent() != null) t.setParent(null);
+            reclaimedTopics.incrementAndGet();
+            return true;
+        });
+    }
+
+    /**
+     * Private helper that checks if a topic is an idle leaf, without exact subscribers, publishers or mappings
+     */
+    private boolean isReclaimable(Topic t, long cutoff) {
+        if (!t.isLeaf() || t.getLastActivity() >= cutoff) return false;
+        String topic = t.getFullTopicString();
+        SubscriptionService ss = SubscriptionService.getInstance();
+        return !mappings.isMapped(topic) && ss.getSubscribersWithTopic(topic).isEmpty() &&
+                ss.getAllPublishersForTopic(topic).isEmpty();
+    }
+
+    /**
+     * Retrieves the total number of idle topics removed since the TopicService was started
+     *
+     * @return The number of reclaimed topics
+     */
+    public long getTotalReclaimedTopics() {
+        return reclaimedTopics.get();
+    }
+
+    /**
+     * Writes a snapshot of the topic tree and mappings, if snapshots are enabled and anything has changed
+     * since the last one. Changes made while the snapshot is written are caught by the next one.
+     */
+    public void writeSnapshot() {
+        if (snapshotFile == null) return;
+        synchronized (snapshotLock) {
+            long current = modifications.get();
+            if (current == snapshotModifications) return;
+            try {
+                // Mappings from the mapping file are applied at every boot, so only the runtime mappings are kept
+                int written = TopicSnapshot.write(snapshotFile, getAllRootTopics(),
+                        mappings.getDirectMappingsExcluding(configuredMappings));
+                snapshotModifications = current;
+                log.debug("Wrote topic snapshot with " + written + " topic(s) to " + snapshotFile);
+            } catch (IOException e) {
+                log.error("Failed to write topic snapshot: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Fetches the task queue of the first worker. Tasks put directly into this queue bypass the partitioning
+     * by root topic, so they must not mutate topics outside the roots served by that worker.
      *
      * @return A LinkedBlockingQueue that accepts TopicTask objects to be performed on the TopicService thread.
      */
     public LinkedBlockingQueue<TopicTask> getQueue() {
-        return queue;
+        return workerQueues.get(0);
+    }
+
+    /**
+     * Retrieves the number of workers topic mutations are partitioned across
+     *
+     * @return The number of workers
+     */
+    public int getNumberOfWorkers() {
+        return workerQueues.size();
+    }
+
+    /**
+     * Selects the worker responsible for a topic. The worker is selected from the root topic, so that a topic
+     * and all its ancestors and descendants are always mutated on the same worker.
+     *
+     * @param topic The full raw topic string
+     * @return The index of the worker responsible for the topic
+     */
+    protected int getWorkerIndex(String topic) {
+        if (topic == null) return 0;
+        int separator = topic.indexOf('/');
+        String root = separator < 0 ? topic : topic.substring(0, separator);
+        return Math.floorMod(root.hashCode(), workerQueues.size());
     }
 
     /**
@@ -241,36 +593,23 @@ public class TopicService extends AbstractCoreService {
      * @return A topic if found, null otherwise.
      */
     public Topic getTopicByID(String id) {
-        List<Topic> result = new ArrayList<>();
-
-        allTopics.forEach((k, t) -> {
-            if (t.getTopicID().equals(id)) result.add(t);
-        });
-
-        if (result.size() > 1) {
-            log.warn("Found multiple topics with the same hash/ID.");
-            return null;
-        } else if (result.size() != 1) {
-            return null;
-        }
-        return result.get(0);
+        if (id == null) return null;
+        return topicsByID.get(id);
     }
 
     /**
-     * Get all mappings registered mappings in the system as a shallow copy.
+     * Get all mappings registered mappings in the system as a copy. Only the direct mappings are included,
+     * not the topics reachable through several mappings.
      *
      * @return A HashMap of all the registered mappings
      */
     public HashMap<String, HashSet<String>> getAllMappings() {
-        HashMap<String, HashSet<String>> collector = new HashMap<>();
-
-        mappings.forEach((k, v) -> collector.put(k, v));
-
-        return collector;
+        return mappings.getDirectMappings();
     }
 
     /**
-     * Attempts to fetch all mappings for a topic, based on the raw topic string
+     * Attempts to fetch all mappings for a topic, based on the raw topic string. This includes topics
+     * reachable through several mappings, e.g a to c when a maps to b and b maps to c.
      *
      * @param rawTopicString The string to identify the topic
      * @return A HashSet containing all the found topics, null otherwise
@@ -278,13 +617,46 @@ public class TopicService extends AbstractCoreService {
     public HashSet<Topic> getAllMappingsAgainstTopic(String rawTopicString) {
         HashSet<Topic> result = new HashSet<>();
 
-        if (mappings.containsKey(rawTopicString)) {
-            mappings.get(rawTopicString).forEach(topicToMapAgainst -> result.add(getTopic(topicToMapAgainst)));
-        }
+        mappings.getTransitiveTargets(rawTopicString).forEach(topicToMapAgainst -> {
+            Topic t = getTopic(topicToMapAgainst);
+            if (t != null) result.add(t);
+        });
 
         return (result.size() > 0) ? result : null;
     }
 
+    /**
+     * Fetches the precompiled fan-out targets for a topic, based on the raw topic string. The targets are
+     * the full transitive closure of the mappings, without duplicates. The returned array is shared, and must not be modified.
+     *
+     * @param rawTopicString The string to identify the topic
+     * @return An array of the full topic strings of all existing topics reachable from this topic, null otherwise
+     */
+    public String[] getFanOutTargets(String rawTopicString) {
+        if (rawTopicString == null) return null;
+        return fanOutTable.get(rawTopicString);
+    }
+
+    /**
+     * Rebuilds the fan-out table from the transitive closure of the registered mappings. The table is immutable, and is swapped in
+     * as a whole, so readers never need to lock or copy it. Must be called whenever a mapping changes, or a topic that
+     * is the target of a mapping is added or deleted, as targets that do not exist are left out of the table.
+     */
+    private synchronized void rebuildFanOutTable() {
+        HashMap<String, String[]> table = new HashMap<>();
+
+        mappings.getTransitiveMappings().forEach((fromTopic, toTopics) -> {
+            ArrayList<String> targets = new ArrayList<>();
+            toTopics.forEach(toTopic -> {
+                if (allTopics.containsKey(toTopic)) targets.add(toTopic);
+            });
+            if (!targets.isEmpty()) table.put(fromTopic, targets.toArray(new String[targets.size()]));
+        });
+
+        fanOutTable = Collections.unmodifiableMap(table);
+        log.debug("Rebuilt topic fan-out table with " + table.size() + " source topic(s)");
+    }
+
     /* Begin local API */
 
     /**
@@ -293,9 +665,21 @@ public class TopicService extends AbstractCoreService {
      * @param t The topic to be added.
      */
     public void addTopicLocal(Topic t) {
+        registerTopicLocal(t);
+        if (mappings.isMappingTarget(t.getFullTopicString())) rebuildFanOutTable();
+        fireTopicChangeEvent(t, TopicChangeEvent.Type.NEW);
+    }
+
+    /**
+     * Adds a topic to the internal containers, without firing any events.
+     *
+     * @param t The topic to be registered.
+     */
+    private void registerTopicLocal(Topic t) {
         this.allTopics.put(t.getFullTopicString(), t);
+        this.topicsByID.put(t.getTopicID(), t);
+        modifications.incrementAndGet();
         log.info("Added new topic: " + t);
-        fireTopicChangeEvent(t, TopicChangeEvent.Type.NEW);
     }
 
     /**
@@ -305,9 +689,12 @@ public class TopicService extends AbstractCoreService {
      * @param t The topic to be removed.
      */
     private void deleteTopicLocal(Topic t) {
-        if (allTopics.containsValue(t)) {
+        if (topicExists(t)) {
             allTopics.remove(t.getFullTopicString());
+            topicsByID.remove(t.getTopicID());
+            modifications.incrementAndGet();
             log.info("Deleted Topic: " + t);
+            if (mappings.isMappingTarget(t.getFullTopicString())) rebuildFanOutTable();
             fireTopicChangeEvent(t, TopicChangeEvent.Type.DELETE);
         }
     }
@@ -321,7 +708,7 @@ public class TopicService extends AbstractCoreService {
      * @return true if it exists, false otherwise.
      */
     public boolean topicExists(Topic topic) {
-        return allTopics.containsValue(topic);
+        return topicsByID.get(topic.getTopicID()) == topic;
     }
 
     /**
@@ -398,14 +785,19 @@ public class TopicService extends AbstractCoreService {
      * Removes a mapping by a mapping key
      *
      * @param mapping The mapping represented as a string
+     * @return A CompletableFuture completed with true if the mapping was removed, false if it did not exist
      */
-    public void deleteMapping(String mapping) {
-        if (mappings.containsKey(mapping)) {
-            HashSet<String> mappedAgainst = mappings.remove(mapping);
-            log.info("Removed the mappings for Topic{" + mapping + "}");
-        } else {
+    public CompletableFuture<Boolean> deleteMapping(String mapping) {
+        return submitTask(TopicTask.Type.UPDATE_TOPIC, Collections.singletonList(mapping), () -> {
+            if (mappings.removeMappings(mapping)) {
+                modifications.incrementAndGet();
+                rebuildFanOutTable();
+                log.info("Removed the mappings for Topic{" + mapping + "}");
+                return true;
+            }
             log.warn("Attempt to remove a mapping that did in fact not exist ");
-        }
+            return false;
+        });
     }
 
     /**
@@ -413,81 +805,225 @@ public class TopicService extends AbstractCoreService {
      * and removes them aswell.
      *
      * @param topic The full raw topic string representing the topic to be deleted
+     * @return A CompletableFuture completed with true if the topic was deleted, false if it did not exist
      */
-    public void deleteTopic(String topic) {
-        // If the topic actually exists
-        if (allTopics.containsKey(topic)) {
-            // Create a delete job
-            Runnable job = () -> {
-                // Fetch the Topic object
-                Topic t = getTopic(topic);
-                // Retrieve a set of all its children
-                HashSet<Topic> children = TopicTools.getAllChildrenFromNode(t);
-                // Remove all the children
-                children.forEach(c -> deleteTopicLocal(c));
-                // Delete the topic itself
-                deleteTopicLocal(t);
-            };
-
-            // Create the TopicTask job wrapper
-            TopicTask task = new TopicTask(TopicTask.Type.DELETE_TOPIC, job);
-
-            // Put the task into the queue
-            try {
-                getQueue().put(task);
-            } catch (InterruptedException e) {
-                log.error("Interrupted while attempting to put DeleteTopic task to task queue.");
+    public CompletableFuture<Boolean> deleteTopic(String topic) {
+        return submitTask(TopicTask.Type.DELETE_TOPIC, Collections.singletonList(topic), () -> {
+            // Fetch the Topic object, if the topic actually exists
+            Topic t = getTopic(topic);
+            if (t == null) {
+                log.warn("Attempt to remove a topic that did in fact not exist.");
+                return false;
             }
-        } else {
-            log.warn("Attempt to remove a topic that did in fact not exist.");
-        }
+            // Retrieve a set of all its children
+            HashSet<Topic> children = TopicTools.getAllChildrenFromNode(t);
+            // Remove all the children
+            children.forEach(c -> deleteTopicLocal(c));
+            // Delete the topic itself
+            deleteTopicLocal(t);
+            // Detach the removed subtree, so the parent no longer lists it as a child
+            if (t.getParent() != null) t.setParent(null);
+            return true;
+        });
+    }
+
+    /**
+     * Accepts two topic string and creates this topics. It also adds it to the mapping graph
+     *
+     * @param fromTopic Topic to map from
+     * @param toTopic   Topic to map to
+     * @return A CompletableFuture completed with true once both topics exist and the mapping is in the fan-out table,
+     * or false if the mapping would create a cycle
+     */
+    public CompletableFuture<Boolean> addMappingBetweenTopics(String fromTopic, String toTopic) {
+        List<String> topics = Arrays.asList(fromTopic, toTopic);
+
+        // Create both topics and the mapping in one task, coordinated across the workers of both roots
+        return submitTask(TopicTask.Type.UPDATE_TOPIC, topics, () -> {
+            if (!addMappingLocal(fromTopic, toTopic)) return false;
+            // Creating the target topic already rebuilds the fan-out table, as it is now the target of a mapping
+            if (!containsMappingTarget(addTopicsLocal(topics))) rebuildFanOutTable();
+            return true;
+        });
     }
 
     /**
-     * Accepts two topic string and creates this topics. It also adds it to the mapping HashMap
+     * Adds a mapping to the mapping graph without creating the topics or rebuilding the fan-out table.
+     * Mappings that would create a cycle are rejected.
      *
      * @param fromTopic Topic to map from
      * @param toTopic   Topic to map to
+     * @return False if the mapping was rejected as a cycle, true otherwise
      */
-    public void addMappingBetweenTopics(String fromTopic, String toTopic) {
-        addTopic(fromTopic);
-        addTopic(toTopic);
+    private boolean addMappingLocal(String fromTopic, String toTopic) {
+        try {
+            if (mappings.addMapping(fromTopic, toTopic)) {
+                modifications.incrementAndGet();
+                log.debug("Added mapping between Topic{" + fromTopic + "} and Topic{" + toTopic + "}");
+            }
+            return true;
+        } catch (IllegalArgumentException e) {
+            log.warn("Rejected mapping between Topic{" + fromTopic + "} and Topic{" + toTopic + "}: " + e.getMessage());
+            return false;
+        }
+    }
 
-        if (!mappings.containsKey(fromTopic)) {
-            mappings.put(fromTopic, new HashSet<String>(Arrays.asList(toTopic)));
-        } else {
-            mappings.get(fromTopic).add(toTopic);
+    /**
+     * Add a topic to the TopicService. Wildcard levels are subscription patterns rather than topics, so only the
+     * levels before the first wildcard level are created, e.g "sensors/#" adds "sensors".
+     *
+     * @param rawTopic The raw topic string that should be added. E.g "no/okse/current"
+     * @return A CompletableFuture completed with true once the topic is visible, or false if it already existed
+     * or had no levels before a wildcard
+     */
+    public CompletableFuture<Boolean> addTopic(String rawTopic) {
+        String topic = SubscriptionTrie.getConcretePrefix(rawTopic);
+        if (topic == null) {
+            log.debug("Not adding a topic for the wildcard subscription (" + rawTopic + ")");
+            return CompletableFuture.completedFuture(false);
         }
-        log.debug("Added mapping between Topic{" + fromTopic + "} and Topic{" + toTopic + "}");
+        return submitTask(TopicTask.Type.NEW_TOPIC, Collections.singletonList(topic), () -> {
+            // Generate topic nodes based on the raw topic string, and add them all
+            HashSet<Topic> topicNodes = generateTopicNodesFromRawTopicString(topic);
+            if (topicNodes.isEmpty()) {
+                log.debug("Attempt to add a topic from raw topic string that already exists (" + topic + ")");
+                return false;
+            }
+            topicNodes.forEach(t -> addTopicLocal(t));
+            return true;
+        });
     }
 
     /**
-     * Add a topic to the TopicService
+     * This helper method wraps a job in a TopicTask, and puts it into the queue of the worker responsible for
+     * the given topics. The returned future completes on a TopicService worker once the job has run, so it must
+     * never be waited upon from a worker, e.g from a TopicChange listener.
+     * <p>
+     * If the topics span several workers, the job is coordinated across all of them: every involved worker
+     * stops at the task, and the job runs on the first one while the others wait. All parts of such a task are
+     * put into their queues under a single lock, so coordinated tasks have the same relative order in every
+     * queue and can never wait on each other.
      *
-     * @param topic The raw topic string that should be added. E.g "no/okse/current"
+     * @param type   The type of TopicTask
+     * @param topics The raw topic strings the job mutates
+     * @param job    The job to be executed
+     * @return A CompletableFuture completed with the result of the job
      */
-    public void addTopic(String topic) {
-        // Check that the topic does not already exist
-        if (!allTopics.containsKey(topic)) {
-            // Create a new job
-            Runnable job = () -> {
-                // Generate topic nodes based on the raw topic string, and add them all
-                HashSet<Topic> topicNodes = generateTopicNodesFromRawTopicString(topic);
-                topicNodes.forEach(t -> addTopicLocal(t));
-            };
+    private <T> CompletableFuture<T> submitTask(TopicTask.Type type, Collection<String> topics, Supplier<T> job) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Runnable wrapped = () -> {
+            try {
+                future.complete(job.get());
+            } catch (Exception e) {
+                log.error("Exception while executing " + type + " task: " + e.getMessage());
+                future.completeExceptionally(e);
+            }
+        };
 
-            // Initialize the TopicTask object with proper type and the job itself
-            TopicTask task = new TopicTask(TopicTask.Type.NEW_TOPIC, job);
+        // Find the workers responsible for the topics
+        TreeSet<Integer> workers = new TreeSet<>();
+        topics.forEach(t -> workers.add(getWorkerIndex(t)));
+        if (workers.isEmpty()) workers.add(0);
 
-            try {
+        try {
+            if (workers.size() == 1) {
                 // Put the task into the task queue
-                getQueue().put(task);
-            } catch (InterruptedException e) {
-                log.error("Interrupted while attempting to put AddTopic task to task queue.");
+                workerQueues.get(workers.first()).put(new TopicTask(type, wrapped));
+            } else {
+                CountDownLatch arrived = new CountDownLatch(workers.size());
+                CountDownLatch done = new CountDownLatch(1);
+                // The first worker waits for the others to arrive, then runs the job
+                Runnable leader = () -> {
+                    arrived.countDown();
+                    try {
+                        arrived.await();
+                        wrapped.run();
+                    } catch (InterruptedException e) {
+                        log.error("Interrupted while waiting for the workers of a " + type + " task");
+                        future.completeExceptionally(e);
+                    } finally {
+                        done.countDown();
+                    }
+                };
+                // The remaining workers hold until the job has run
+                Runnable follower = () -> {
+                    arrived.countDown();
+                    try {
+                        done.await();
+                    } catch (InterruptedException e) {
+                        log.error("Interrupted while waiting for a " + type + " task on another worker");
+                    }
+                };
+                synchronized (coordinationLock) {
+                    workerQueues.get(workers.first()).put(new TopicTask(type, leader));
+                    for (int worker : workers.tailSet(workers.first(), false)) {
+                        workerQueues.get(worker).put(new TopicTask(type, follower));
+                    }
+                }
             }
-        } else {
-            log.debug("Attempt to add a topic from raw topic string that already exists (" + topic + ")");
+        } catch (InterruptedException e) {
+            log.error("Interrupted while attempting to put " + type + " task to task queue.");
+            future.completeExceptionally(e);
         }
+        return future;
+    }
+
+    /**
+     * Add a collection of topics to the TopicService. All missing topic nodes are created in a single task,
+     * and a single NEW_BATCH TopicChangeEvent is fired for all of them, instead of one task and one event per topic.
+     * If the topics belong to roots on different workers, the task is coordinated across them.
+     *
+     * As for addTopic, only the levels before the first wildcard level of each topic are created.
+     *
+     * @param topics The raw topic strings that should be added. E.g "no/okse/current"
+     * @return A CompletableFuture that completes with the newly created topic nodes once they are visible
+     * in the TopicService
+     */
+    public CompletableFuture<HashSet<Topic>> addTopics(Collection<String> topics) {
+        // Copy the argument, as the job runs later on a TopicService worker
+        HashSet<String> requested = new HashSet<>();
+        topics.forEach(t -> {
+            String topic = SubscriptionTrie.getConcretePrefix(t);
+            if (topic != null) requested.add(topic);
+        });
+
+        return submitTask(TopicTask.Type.NEW_TOPIC, requested, () -> addTopicsLocal(requested));
+    }
+
+    /**
+     * Local batch addition of topics from raw topic strings. Do not call outside a TopicTask job instance that
+     * holds the workers of all the topics.
+     *
+     * @param topics The raw topic strings that should be added
+     * @return The newly created topic nodes
+     */
+    private HashSet<Topic> addTopicsLocal(Collection<String> topics) {
+        HashSet<Topic> created = new HashSet<>();
+        // Register the nodes for each topic before generating the next, so shared ancestors are only created once.
+        // Topics that already exist generate no nodes.
+        for (String topic : topics) {
+            HashSet<Topic> topicNodes = generateTopicNodesFromRawTopicString(topic);
+            topicNodes.forEach(t -> registerTopicLocal(t));
+            created.addAll(topicNodes);
+        }
+        if (!created.isEmpty()) {
+            if (containsMappingTarget(created)) rebuildFanOutTable();
+            fireTopicChangeEvent(created);
+        }
+        return created;
+    }
+
+    /**
+     * Private helper that checks if any of the given topics is the target of a mapping
+     *
+     * @param topics The topic nodes to check
+     * @return True if at least one of the topics is a mapping target, false otherwise
+     */
+    private boolean containsMappingTarget(Collection<Topic> topics) {
+        for (Topic t : topics) {
+            if (mappings.isMappingTarget(t.getFullTopicString())) return true;
+        }
+        return false;
     }
 
     /* Begin listener support */
@@ -496,7 +1032,7 @@ public class TopicService extends AbstractCoreService {
      * Purges all registered listener objects from the TopicService
      */
     public synchronized void removeAllListeners() {
-        _listeners.clear();
+        _listeners.removeAllListeners();
     }
 
     /**
@@ -505,7 +1041,7 @@ public class TopicService extends AbstractCoreService {
      * @param listener An object implementing the TopicChangeListener interface
      */
     public synchronized void addTopicChangeListener(TopicChangeListener listener) {
-        this._listeners.add(listener);
+        this._listeners.addListener(listener);
     }
 
     /**
@@ -514,19 +1050,38 @@ public class TopicService extends AbstractCoreService {
      * @param listener The object implementing TopigChangeListener interface that is to be removed.
      */
     public synchronized void removeTopicChangeListener(TopicChangeListener listener) {
-        if (this._listeners.contains(listener)) this._listeners.remove(listener);
+        this._listeners.removeListener(listener);
     }
 
     /**
-     * Public helper method to fire a topic change event on all listeners
+     * Public helper method to fire a topic change event on all listeners. The event is queued for each listener
+     * and delivered asynchronously on its delivery thread.
      *
      * @param topic The topic that has had an event
      * @param type  The type of topic event that occured
      */
     public void fireTopicChangeEvent(Topic topic, TopicChangeEvent.Type type) {
-        TopicChangeEvent topicEvent = new TopicChangeEvent(type, topic);
         log.debug("Firing topicchange event of type " + type + " on topic " + topic);
-        this._listeners.stream().forEach(t -> t.topicChanged(topicEvent));
+        this._listeners.publish(new TopicChangeEvent(type, topic));
+    }
+
+    /**
+     * Fires a single aggregated NEW_BATCH TopicChangeEvent for a set of newly created topics
+     *
+     * @param topics The topics that were created
+     */
+    private void fireTopicChangeEvent(HashSet<Topic> topics) {
+        log.debug("Firing topicchange event of type " + TopicChangeEvent.Type.NEW_BATCH + " on " + topics.size() + " topics");
+        this._listeners.publish(new TopicChangeEvent(topics));
+    }
+
+    /**
+     * Retrieves the event bus delivering TopicChange events, for listener lag and drop statistics
+     *
+     * @return The EventBus of the TopicChange listeners
+     */
+    public EventBus<TopicChangeListener, TopicChangeEvent> getTopicEventBus() {
+        return _listeners;
     }
 
     /* End listener support */
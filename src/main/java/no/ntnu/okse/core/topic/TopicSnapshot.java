@@ -0,0 +1,217 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Norwegian Defence Research Establishment / NTNU
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package no.ntnu.okse.core.topic;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * A compact binary snapshot of the topic tree and the topic mappings. The topics are stored depth-first,
+ * pre-order, each with the index of its parent, so the whole tree can be rebuilt in a single pass over the
+ * memory-mapped file without resolving any topic strings.
+ * <p>
+ * The file starts with a header holding a magic number, the format version, the body length and a CRC32 of
+ * the body. Snapshots are written to a temporary file and atomically moved in place, so a crash while writing
+ * leaves the previous snapshot intact.
+ * <p>
+ * okse is licenced under the MIT licence.
+ */
+public class TopicSnapshot {
+
+    // "OKST"
+    private static final int MAGIC = 0x4F4B5354;
+    private static final int VERSION = 1;
+    // Magic number, version, body length and CRC32 of the body
+    private static final int HEADER_SIZE = 16;
+
+    private final ArrayList<Topic> topics;
+    private final HashMap<String, HashSet<String>> mappings;
+
+    private TopicSnapshot(ArrayList<Topic> topics, HashMap<String, HashSet<String>> mappings) {
+        this.topics = topics;
+        this.mappings = mappings;
+    }
+
+    /**
+     * Retrieves the topics read from the snapshot, linked into their trees. Parents always come before their children.
+     *
+     * @return An ArrayList of all the topic nodes in the snapshot
+     */
+    public ArrayList<Topic> getTopics() {
+        return topics;
+    }
+
+    /**
+     * Retrieves the one-hop mappings read from the snapshot
+     *
+     * @return A HashMap from each mapped topic to the topics it maps to
+     */
+    public HashMap<String, HashSet<String>> getMappings() {
+        return mappings;
+    }
+
+    /**
+     * Writes a snapshot of the trees below the given root topics and the given mappings. The trees are walked
+     * without locking, so nodes added or removed while writing may or may not be included.
+     *
+     * @param file     The snapshot file to write
+     * @param roots    The root topic nodes of the trees to write
+     * @param mappings The one-hop mappings to write
+     * @return The number of topic nodes written
+     * @throws IOException If the snapshot could not be written
+     */
+    public static int write(File file, Collection<Topic> roots, Map<String, HashSet<String>> mappings) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bytes);
+
+        // Collect the nodes first, as the count must come before them
+        ArrayList<Topic> nodes = new ArrayList<>();
+        ArrayList<Integer> parents = new ArrayList<>();
+        IdentityHashMap<Topic, Integer> indices = new IdentityHashMap<>();
+        for (Topic root : roots) {
+            root.walk(t -> {
+                Topic parent = t.getParent();
+                Integer parentIndex = parent == null ? Integer.valueOf(-1) : indices.get(parent);
+                // The node was moved to a tree that has not been written, skip it and its descendants
+                if (parentIndex == null) return false;
+                indices.put(t, nodes.size());
+                nodes.add(t);
+                parents.add(parentIndex);
+                return true;
+            });
+        }
+
+        body.writeInt(nodes.size());
+        for (int i = 0; i < nodes.size(); i++) {
+            body.writeInt(parents.get(i));
+            writeString(body, nodes.get(i).getName());
+            writeString(body, nodes.get(i).getType());
+        }
+        body.writeInt(mappings.size());
+        for (Map.Entry<String, HashSet<String>> mapping : mappings.entrySet()) {
+            writeString(body, mapping.getKey());
+            body.writeInt(mapping.getValue().size());
+            for (String target : mapping.getValue()) writeString(body, target);
+        }
+        body.flush();
+
+        byte[] content = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(content);
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp); DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(content.length);
+            out.writeInt((int) crc.getValue());
+            out.write(content);
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        return nodes.size();
+    }
+
+    /**
+     * Reads a snapshot by memory-mapping the file and decoding it in bulk
+     *
+     * @param file The snapshot file to read
+     * @return A TopicSnapshot holding the decoded topic trees and mappings
+     * @throws IOException If the file could not be read, or is not an intact snapshot
+     */
+    public static TopicSnapshot read(File file) throws IOException {
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            if (channel.size() < HEADER_SIZE) throw new IOException("Topic snapshot is truncated: " + file);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.getInt() != MAGIC) throw new IOException("Not a topic snapshot: " + file);
+        int version = buffer.getInt();
+        if (version != VERSION) throw new IOException("Unsupported topic snapshot version " + version + ": " + file);
+        int length = buffer.getInt();
+        int checksum = buffer.getInt();
+        if (length < 0 || length != buffer.remaining()) throw new IOException("Topic snapshot is truncated: " + file);
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice());
+        if ((int) crc.getValue() != checksum) throw new IOException("Topic snapshot checksum mismatch: " + file);
+
+        try {
+            int count = buffer.getInt();
+            ArrayList<Topic> topics = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int parentIndex = buffer.getInt();
+                Topic t = new Topic(readString(buffer), readString(buffer));
+                if (parentIndex >= 0) t.setParent(topics.get(parentIndex));
+                topics.add(t);
+            }
+
+            int sources = buffer.getInt();
+            HashMap<String, HashSet<String>> mappings = new HashMap<>();
+            for (int i = 0; i < sources; i++) {
+                String from = readString(buffer);
+                int targets = buffer.getInt();
+                HashSet<String> to = new HashSet<>();
+                for (int j = 0; j < targets; j++) to.add(readString(buffer));
+                mappings.put(from, to);
+            }
+
+            return new TopicSnapshot(topics, mappings);
+        } catch (RuntimeException e) {
+            // An intact checksum with undecodable content means the snapshot was written by a broken writer
+            throw new IOException("Malformed topic snapshot: " + file, e);
+        }
+    }
+
+    /* Private helper methods */
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
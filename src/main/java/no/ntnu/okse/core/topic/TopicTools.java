@@ -29,7 +29,6 @@ import no.ntnu.okse.exceptions.TopicExceptions;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Stack;
 
 /**
  * Created by Aleksander Skraastad (myth) on 4/11/15.
@@ -39,7 +38,8 @@ import java.util.Stack;
 public class TopicTools {
 
     /**
-     * Iterative implementation of Depth-First-Search to discover all Topic nodes from a root node.
+     * Depth-First-Search to discover all Topic nodes from a root node. Uses the allocation free tree walk,
+     * and only descends into nodes that have not already been discovered.
      *
      * @param root The root node from which the Depth-First-Search is to be performed.
      * @return A HashSet of all the discovered topic nodes.
@@ -47,16 +47,7 @@ public class TopicTools {
     private static HashSet<Topic> DFS(Topic root) {
 
         HashSet<Topic> discovered = new HashSet<Topic>();
-        Stack<Topic> queue = new Stack<>();
-        queue.push(root);
-
-        while (!queue.empty()) {
-            Topic t = queue.pop();
-            if (!discovered.contains(t)) {
-                discovered.add(t);
-                t.getChildren().stream().forEach(c -> queue.push(c));
-            }
-        }
+        root.walk(t -> discovered.add(t));
 
         return discovered;
     }
@@ -78,7 +69,7 @@ public class TopicTools {
                 throw new TopicExceptions.NonRootNodeException("Expected rootNode, but was " + rootNode);
 
             // Perform a Depth-First-Search from the root node and add the results to the return set.
-            DFS(rootNode).stream().forEach(t -> returnSet.add(t));
+            rootNode.walk(t -> returnSet.add(t));
         }
 
         return returnSet;
@@ -95,7 +86,7 @@ public class TopicTools {
 
         // Iterate over all the nodes in the set, and add discovered nodes to the return set.
         for (Topic node : nodes) {
-            DFS(node).stream().forEach(t -> returnSet.add(t));
+            node.walk(t -> returnSet.add(t));
         }
 
         return returnSet;
@@ -117,12 +117,6 @@ public class DB {
                     " constraint fk_authorities_users foreign key(username) references users(username))";
             stmt.executeUpdate(sql);
 
-            sql = "CREATE TABLE persistance" +
-                    "(topic VARCHAR(100), " +
-                    " message TEXT, " +
-                    " protocol VARCHAR(50))";
-            stmt.executeUpdate(sql);
-
             System.out.println("initDB: Tables created successfully");
 
             sql = "INSERT INTO users (username,password,enabled,description) " +
@@ -174,48 +168,6 @@ public class DB {
         return rs;
     }
 
-    /**
-     * Inserts a message into the persistance table
-     *
-     * @param message        The message content
-     * @param topic          The topic message was sent on
-     * @param originProtocol The protocol the message originated from
-     * @return True if the query was successful, false otherwise
-     * @throws SQLException If error during query
-     */
-    public static boolean insertPersistantMessage(String message, String topic, String originProtocol) throws SQLException {
-        conDB();
-        String insert = "INSERT INTO persistance (topic, message, protocol) VALUES (?, ?, ?)";
-        PreparedStatement stmt = con.prepareStatement(insert);
-        stmt.setString(1, topic);
-        stmt.setString(2, message);
-        stmt.setString(3, originProtocol);
-        int rows = 0;
-        try {
-            rows = stmt.executeUpdate();
-        } catch (SQLException e) {
-            con.rollback();
-        }
-        if (rows == 1) return true;
-        else return false;
-    }
-
-    /**
-     * Retrieves all messages in persistance storage on a specific topic
-     *
-     * @param topic The topic to query
-     * @return A ResultSet containing all messages on the topic
-     * @throws SQLException If error during query
-     */
-    public static ResultSet getPersistantMessages(String topic) throws SQLException {
-        conDB();
-        String select = "SELECT * FROM persistance WHERE topic = ?";
-        PreparedStatement stmt = con.prepareStatement(select);
-        stmt.setString(1, topic);
-        ResultSet rs = stmt.executeQuery();
-        return rs;
-    }
-
     /**
      * SQL query, update the password
      *
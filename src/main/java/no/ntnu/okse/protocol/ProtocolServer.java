@@ -26,6 +26,8 @@ package no.ntnu.okse.protocol;
 
 import no.ntnu.okse.core.messaging.Message;
 
+import java.util.List;
+
 /**
  * Created by Aleksander Skraastad (myth) on 3/13/15.
  * <p>
@@ -106,4 +108,15 @@ public interface ProtocolServer {
      * @param message An instance of Message containing the required data to distribute a message.
      */
     public void sendMessage(Message message);
+
+    /**
+     * This interface method takes in a batch of messages that are to be distributed in the given order.
+     * Protocol servers that can amortise per-send overhead across several messages should override this method.
+     * The default implementation simply calls sendMessage for each message in the batch.
+     *
+     * @param messages A list of Message instances, in the order they should be delivered.
+     */
+    public default void sendMessages(List<Message> messages) {
+        messages.forEach(this::sendMessage);
+    }
 }
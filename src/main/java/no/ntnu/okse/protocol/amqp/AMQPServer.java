@@ -192,6 +192,31 @@ public class AMQPServer extends BaseHandler {
      * @param message : OKSE internal message
      */
     public void addMessageToQueue(no.ntnu.okse.core.messaging.Message message) {
+        enqueueMessage(message);
+
+        AMQProtocolServer.getInstance().getDriver().wakeUp();
+    }
+
+    /**
+     * Convert a batch of OKSE messages to AMQP and add them to the message queue.
+     * The driver is only woken up once for the entire batch.
+     *
+     * @param messages : OKSE internal messages, in delivery order
+     */
+    public void addMessagesToQueue(List<no.ntnu.okse.core.messaging.Message> messages) {
+        if (messages.isEmpty()) return;
+
+        messages.forEach(this::enqueueMessage);
+
+        AMQProtocolServer.getInstance().getDriver().wakeUp();
+    }
+
+    /**
+     * Convert a OKSE message to AMQP and add it the the message queue, without waking up the driver.
+     *
+     * @param message : OKSE internal message
+     */
+    private void enqueueMessage(no.ntnu.okse.core.messaging.Message message) {
         Message msg = convertOkseMessageToAMQP(message);
 
         MessageBytes mb = convertAMQPMessageToMessageBytes(msg);
@@ -203,8 +228,6 @@ public class AMQPServer extends BaseHandler {
         log.debug("Added message on topic: " + address + " to queue");
 
         log.debug("The first message in the queue is currently: " + queue.peek());
-
-        AMQProtocolServer.getInstance().getDriver().wakeUp();
     }
 
     /**
@@ -32,6 +32,8 @@ import org.apache.log4j.Logger;
 import org.apache.qpid.proton.engine.Collector;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -167,6 +169,17 @@ public class AMQProtocolServer extends AbstractProtocolServer {
         }
     }
 
+    @Override
+    public void sendMessages(List<Message> messages) {
+        ArrayList<Message> toSend = new ArrayList<>();
+        messages.forEach(message -> {
+            if (!message.getOriginProtocol().equals(protocolServerType) || message.getAttribute("duplicate") != null) {
+                toSend.add(message);
+            }
+        });
+        server.addMessagesToQueue(toSend);
+    }
+
     public void incrementTotalMessagesSent() {
         totalMessagesSent.incrementAndGet();
     }
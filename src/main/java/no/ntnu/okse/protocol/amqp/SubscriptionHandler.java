@@ -26,10 +26,15 @@ package no.ntnu.okse.protocol.amqp;
 
 import no.ntnu.okse.core.event.SubscriptionChangeEvent;
 import no.ntnu.okse.core.event.listeners.SubscriptionChangeListener;
+import no.ntnu.okse.core.messaging.MessageService;
+import no.ntnu.okse.core.messaging.TopicHistory;
 import no.ntnu.okse.core.subscription.Subscriber;
 import no.ntnu.okse.core.subscription.SubscriptionService;
 import no.ntnu.okse.core.topic.TopicService;
 import org.apache.log4j.Logger;
+import org.apache.qpid.proton.amqp.DescribedType;
+import org.apache.qpid.proton.amqp.Symbol;
+import org.apache.qpid.proton.amqp.messaging.Accepted;
 import org.apache.qpid.proton.amqp.transport.Source;
 import org.apache.qpid.proton.amqp.transport.Target;
 import org.apache.qpid.proton.engine.*;
@@ -106,6 +111,11 @@ public class SubscriptionHandler extends BaseHandler implements SubscriptionChan
     private static final Routes<Receiver> EMPTY_IN = new Routes<Receiver>();
     private static Logger log = Logger.getLogger(SubscriptionHandler.class.getName());
 
+    // Link source filter keys requesting replay of retained topic history
+    public static final Symbol REPLAY_FROM_OFFSET_FILTER = Symbol.valueOf("okse.replay-from-offset");
+    public static final Symbol REPLAY_SINCE_FILTER = Symbol.valueOf("okse.replay-since");
+    private long replayTag = 0;
+
     private static ConcurrentHashMap<Sender, Subscriber> localSenderSubscriberMap = new ConcurrentHashMap<>();
     private static ConcurrentHashMap<Subscriber, Sender> localSubscriberSenderMap = new ConcurrentHashMap<>();
     private static ConcurrentHashMap<String, Sender> localRemoteContainerSenderMap = new ConcurrentHashMap<>();
@@ -260,6 +270,68 @@ public class SubscriptionHandler extends BaseHandler implements SubscriptionChan
         log.debug("This is getAddress: " + getAddress(sender));
         routes.add(sender);
         AMQProtocolServer.getInstance().incrementTotalRequests();
+
+        replayHistory(sender, address);
+    }
+
+    /**
+     * Replay the retained history of a topic to a new sender, if the
+     * client requested it through a filter on the link source.
+     *
+     * @param sender  : Client object
+     * @param address : topic/route
+     */
+    private void replayHistory(Sender sender, String address) {
+        if (!(sender.getRemoteSource() instanceof org.apache.qpid.proton.amqp.messaging.Source)) return;
+        Map filter = ((org.apache.qpid.proton.amqp.messaging.Source) sender.getRemoteSource()).getFilter();
+        if (filter == null) return;
+
+        Object fromOffset = unwrapFilterValue(filter.get(REPLAY_FROM_OFFSET_FILTER));
+        Object since = unwrapFilterValue(filter.get(REPLAY_SINCE_FILTER));
+        if (fromOffset == null && since == null) return;
+
+        List<no.ntnu.okse.core.messaging.Message> history;
+        try {
+            if (fromOffset != null) {
+                long offset = fromOffset instanceof Number ?
+                        ((Number) fromOffset).longValue() : Long.parseLong(fromOffset.toString().trim());
+                history = MessageService.getInstance().getMessageHistory(address, offset);
+            } else {
+                history = MessageService.getInstance().getMessageHistorySince(address,
+                        TopicHistory.parseTimestamp(since.toString().trim()));
+            }
+        } catch (IllegalArgumentException e) {
+            log.warn("Malformed replay filter on link to: " + address + ", ignoring");
+            return;
+        }
+
+        log.debug("Replaying " + history.size() + " message(s) on: " + address);
+        try {
+            for (no.ntnu.okse.core.messaging.Message message : history) {
+                byte[] bytes = AMQPServer.convertAMQPMessageToMessageBytes(AMQPServer.convertOkseMessageToAMQP(message)).getBytes();
+                Delivery dlv = sender.delivery(String.format("replay-%d", replayTag++).getBytes());
+                sender.send(bytes, 0, bytes.length);
+                dlv.disposition(Accepted.getInstance());
+                dlv.settle();
+                AMQProtocolServer.getInstance().incrementTotalMessagesSent();
+            }
+        } finally {
+            // The replayed messages hold references to the retained payloads
+            history.forEach(no.ntnu.okse.core.messaging.Message::releasePayload);
+        }
+    }
+
+    /**
+     * Filter values may be sent as described types, unwrap them to the actual value.
+     *
+     * @param value : raw filter value
+     * @return the described value, or the value itself
+     */
+    private static Object unwrapFilterValue(Object value) {
+        if (value instanceof DescribedType) {
+            return ((DescribedType) value).getDescribed();
+        }
+        return value;
     }
 
     /**
@@ -390,22 +462,26 @@ public class SubscriptionHandler extends BaseHandler implements SubscriptionChan
     @Override
     @WebMethod(exclude = true)
     public void subscriptionChanged(SubscriptionChangeEvent e) {
-        // If it is AMQP subscriber
-        if (e.getData().getOriginProtocol().equals(AMQProtocolServer.getInstance().getProtocolServerType())) {
-            // If we are dealing with an Unsubscribe
-            if (e.getType().equals(SubscriptionChangeEvent.Type.UNSUBSCRIBE)) {
-                log.debug("Unsubscribing " + localSubscriberSenderMap.get(e.getData()));
-                // Remove the local mappings from AMQP subscriptionKey to OKSE Subscriber object and AMQP subscriptionHandle
-                remove(localSubscriberSenderMap.get(e.getData()));
-            } else if (e.getType().equals(SubscriptionChangeEvent.Type.SUBSCRIBE)) {
-                log.debug("Received a SUBSCRIBE event");
-                // TODO: Investigate if we really need to do anything here since it will function as a callback
-                // TODO: after addSubscriber
+        // Batched events carry several subscribers, so handle each of them
+        e.getSubscribers().forEach(subscriber -> {
+            // If it is AMQP subscriber
+            if (subscriber.getOriginProtocol().equals(AMQProtocolServer.getInstance().getProtocolServerType())) {
+                // If we are dealing with an Unsubscribe
+                if (e.getType().equals(SubscriptionChangeEvent.Type.UNSUBSCRIBE)) {
+                    log.debug("Unsubscribing " + localSubscriberSenderMap.get(subscriber));
+                    // Remove the local mappings from AMQP subscriptionKey to OKSE Subscriber object and AMQP subscriptionHandle
+                    remove(localSubscriberSenderMap.get(subscriber));
+                } else if (e.getType().equals(SubscriptionChangeEvent.Type.SUBSCRIBE)) {
+                    log.debug("Received a SUBSCRIBE event");
+                    // TODO: Investigate if we really need to do anything here since it will function as a callback
+                    // TODO: after addSubscriber
+                }
             }
-        }
+        });
     }
 
     public void unsubscribeAll() {
-        localSenderSubscriberMap.forEach((sender, subscriber) -> SubscriptionService.getInstance().removeSubscriber(subscriber));
+        // Remove all the subscribers in a single task, with a single batched event
+        SubscriptionService.getInstance().removeSubscribers(new ArrayList<>(localSenderSubscriberMap.values()));
     }
 }
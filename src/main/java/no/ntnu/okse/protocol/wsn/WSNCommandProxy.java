@@ -29,8 +29,11 @@ import no.ntnu.okse.Application;
 import no.ntnu.okse.core.CoreService;
 import no.ntnu.okse.core.messaging.Message;
 import no.ntnu.okse.core.messaging.MessageService;
+import no.ntnu.okse.core.messaging.TopicHistory;
+import no.ntnu.okse.core.subscription.ContentFilterEngine;
 import no.ntnu.okse.core.subscription.Publisher;
 import no.ntnu.okse.core.subscription.Subscriber;
+import no.ntnu.okse.core.subscription.SubscriptionService;
 import no.ntnu.okse.core.topic.TopicService;
 import org.apache.log4j.Logger;
 import org.ntnunotif.wsnu.base.internal.Hub;
@@ -53,9 +56,12 @@ import org.oasis_open.docs.wsn.brw_2.PublisherRegistrationFailedFault;
 import org.oasis_open.docs.wsn.brw_2.PublisherRegistrationRejectedFault;
 import org.oasis_open.docs.wsn.bw_2.*;
 import org.oasis_open.docs.wsrf.rw_2.ResourceUnknownFault;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
 import javax.jws.*;
 import javax.jws.soap.SOAPBinding;
+import javax.xml.XMLConstants;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.annotation.XmlSeeAlso;
 import javax.xml.datatype.DatatypeConfigurationException;
@@ -65,6 +71,7 @@ import javax.xml.namespace.NamespaceContext;
 import javax.xml.namespace.QName;
 import javax.xml.ws.wsaddressing.W3CEndpointReference;
 import javax.xml.ws.wsaddressing.W3CEndpointReferenceBuilder;
+import java.time.LocalDateTime;
 import java.util.*;
 
 /**
@@ -77,6 +84,10 @@ import java.util.*;
 @SOAPBinding(parameterStyle = SOAPBinding.ParameterStyle.BARE)
 public class WSNCommandProxy extends AbstractNotificationBroker {
 
+    // Subscription policy elements requesting replay of retained topic history
+    public static final String REPLAY_FROM_OFFSET_POLICY = "ReplayFromOffset";
+    public static final String REPLAY_SINCE_POLICY = "ReplaySince";
+
     private Logger log;
     private FilterSupport filterSupport;
     private WSNSubscriptionManager _subscriptionManager;
@@ -267,6 +278,58 @@ public class WSNCommandProxy extends AbstractNotificationBroker {
         return filterSupport.evaluateNotifyToSubscription(notify, subscriptionHandle.subscriptionInfo, nuNamespaceContextResolver);
     }
 
+    /**
+     * Starts the evaluation of the message content filters of all subscribers against each notification
+     * message in a Notify, using the core ContentFilterEngine
+     *
+     * @param notify The Notify object to be checked
+     * @return An ArrayList holding one evaluation per notification message, in the same order
+     */
+    @WebMethod(exclude = true)
+    protected ArrayList<ContentFilterEngine.Evaluation> evaluateContentFilters(Notify notify) {
+        ContentFilterEngine engine = SubscriptionService.getInstance().getContentFilterEngine();
+        ArrayList<ContentFilterEngine.Evaluation> evaluations = new ArrayList<>();
+        for (NotificationMessageHolderType holderType : notify.getNotificationMessage()) {
+            Object content = holderType.getMessage() == null ? null : holderType.getMessage().getAny();
+            if (content instanceof Node) {
+                // The payload element is already parsed, so evaluate the filters directly against it
+                evaluations.add(engine.evaluate((Node) content));
+            } else if (content == null || engine.getNumberOfFilteredSubscribers() == 0) {
+                // Nothing to parse, or no filter that would need the content
+                evaluations.add(engine.evaluate(""));
+            } else {
+                // Unmarshalled payloads, e.g. a JAXBElement, are marshalled back to XML for the filters
+                String marshalled = WSNTools.marshalMessageContent(content);
+                evaluations.add(engine.evaluate(marshalled != null ? marshalled : content.toString()));
+            }
+        }
+        return evaluations;
+    }
+
+    /**
+     * Filters the notification messages of a Notify on the message content filters of a recipient
+     *
+     * @param notify      The Notify object to be checked
+     * @param evaluations The evaluations of the notification messages, as returned by evaluateContentFilters
+     * @param subscriber  The Subscriber object of the recipient
+     * @return The Notify itself if all its messages matched, a Notify with the matching messages, or null if none did
+     */
+    @WebMethod(exclude = true)
+    protected Notify getContentFilteredNotify(Notify notify, List<ContentFilterEngine.Evaluation> evaluations, Subscriber subscriber) {
+        List<NotificationMessageHolderType> messages = notify.getNotificationMessage();
+        ArrayList<NotificationMessageHolderType> matching = new ArrayList<>();
+        for (int i = 0; i < messages.size(); i++) {
+            if (evaluations.get(i).matches(subscriber)) matching.add(messages.get(i));
+        }
+        if (matching.size() == messages.size()) return notify;
+        if (matching.isEmpty()) return null;
+
+        Notify filtered = new Notify();
+        filtered.getNotificationMessage().addAll(matching);
+        filtered.getAny().addAll(notify.getAny());
+        return filtered;
+    }
+
     /**
      * Will try to send the {@link org.oasis_open.docs.wsn.b_2.Notify} to the
      * {@link javax.xml.ws.wsaddressing.W3CEndpointReference} indicated.
@@ -391,14 +454,21 @@ public class WSNCommandProxy extends AbstractNotificationBroker {
         currentMessage = notify;
         currentMessageNamespaceContextResolver = namespaceContextResolver;
 
+        // Evaluate the message content filters of all recipients once per notification message
+        ArrayList<ContentFilterEngine.Evaluation> evaluations = evaluateContentFilters(notify);
+
         // For all valid recipients
         for (String recipient : this.getAllRecipients()) {
 
             // If the subscription has expired, continue
             if (_subscriptionManager.getSubscriber(recipient).hasExpired()) continue;
 
+            // Drop the notification messages not matching the message content filters of the recipient
+            Notify contentFiltered = getContentFilteredNotify(notify, evaluations, _subscriptionManager.getSubscriber(recipient));
+            if (contentFiltered == null) continue;
+
             // Filter do filter handling, if any
-            Notify toSend = getRecipientFilteredNotify(recipient, notify, namespaceContextResolver);
+            Notify toSend = getRecipientFilteredNotify(recipient, contentFiltered, namespaceContextResolver);
 
             // If any message was left to send, send it
             if (toSend != null) {
@@ -475,6 +545,8 @@ public class WSNCommandProxy extends AbstractNotificationBroker {
 
         W3CEndpointReference consumerEndpoint = subscribeRequest.getConsumerReference();
         boolean useRaw = false;
+        long replayOffset = -1;
+        LocalDateTime replaySince = null;
 
         if (consumerEndpoint == null) {
             ExceptionUtilities.throwSubscribeCreationFailedFault("en", "Missing endpointreference");
@@ -497,6 +569,22 @@ public class WSNCommandProxy extends AbstractNotificationBroker {
                     log.debug("Subscriber requested raw message format");
                     useRaw = true;
                 }
+                // Check if the subscriber has requested replay of the retained topic history
+                else if (o instanceof Element) {
+                    Element policy = (Element) o;
+                    try {
+                        if (REPLAY_FROM_OFFSET_POLICY.equals(policy.getLocalName())) {
+                            log.debug("Subscriber requested replay from offset: " + policy.getTextContent());
+                            replayOffset = Long.parseLong(policy.getTextContent().trim());
+                        } else if (REPLAY_SINCE_POLICY.equals(policy.getLocalName())) {
+                            log.debug("Subscriber requested replay since: " + policy.getTextContent());
+                            replaySince = TopicHistory.parseTimestamp(policy.getTextContent().trim());
+                        }
+                    } catch (IllegalArgumentException e) {
+                        log.warn("Subscription attempt with malformed replay policy: " + policy.getTextContent());
+                        ExceptionUtilities.throwSubscribeCreationFailedFault("en", "Malformed replay policy: " + policy.getTextContent());
+                    }
+                }
             }
         }
 
@@ -525,6 +613,9 @@ public class WSNCommandProxy extends AbstractNotificationBroker {
         String requestDialect = null;
         boolean topicExpressionIsXpath = false;
         ArrayList<String> contentFilters = new ArrayList<>();
+        // XPath message content filters and the namespace prefixes they may use, evaluated by the core
+        ArrayList<String> messageContentFilters = new ArrayList<>();
+        HashMap<String, String> contentFilterNamespaces = new HashMap<>();
 
         if (filters != null) {
             log.debug("Filters present. Attempting to iterate over filters...");
@@ -574,11 +665,25 @@ public class WSNCommandProxy extends AbstractNotificationBroker {
                             // For each potential expression, add to the message content filter set
                             type.getContent().stream().forEach(p -> {
                                 log.debug("Content: " + p.toString());
-                                contentFilters.add(p.toString());
+                                messageContentFilters.add(p.toString());
                             });
+                            // Keep the namespace prefixes in scope, so the expressions can be compiled by the core
+                            NuNamespaceContextResolver.NuResolvedNamespaceContext context =
+                                    connection.getRequestInformation().getNamespaceContextResolver().resolveNamespaceContext(type);
+                            if (context != null) {
+                                context.getAllPrefixes().forEach(prefix -> {
+                                    if (!prefix.equals(XMLConstants.XMLNS_ATTRIBUTE)) {
+                                        contentFilterNamespaces.put(prefix, context.getNamespaceURI(prefix));
+                                    }
+                                });
+                            }
                             requestDialect = type.getDialect();
                             // What XPATH dialect (or potentially other non-supported) was provided
                             log.debug("Dialect: " + type.getDialect());
+
+                            // Message content filters are compiled once and evaluated by the core ContentFilterEngine,
+                            // rather than by WS-Nu for every recipient of every message
+                            continue;
                         }
 
                         // Add the filter to the WS-Nu filtersPresent set
@@ -684,8 +789,11 @@ public class WSNCommandProxy extends AbstractNotificationBroker {
         subscriber.setAttribute(WSNSubscriptionManager.WSN_SUBSCRIBER_TOKEN, newSubscriptionKey);
         subscriber.setAttribute(WSNSubscriptionManager.WSN_DIALECT_TOKEN, requestDialect);
         subscriber.setTimeout(terminationTime);
-        // Add potential XPATH content filters discovered in the subscribe request
+        // Add potential XPATH topic filters discovered in the subscribe request
         contentFilters.forEach(filter -> subscriber.addFilter(filter));
+        // Add the XPATH message content filters, compiled when the subscriber is added to the SubscriptionService
+        contentFilterNamespaces.forEach(subscriber::bindContentFilterNamespace);
+        messageContentFilters.forEach(subscriber::addContentFilter);
         // Add useRaw flag if present
         if (useRaw) {
             subscriber.setAttribute(WSNSubscriptionManager.WSN_USERAW_TOKEN, "true");
@@ -697,6 +805,19 @@ public class WSNCommandProxy extends AbstractNotificationBroker {
 
         _subscriptionManager.addSubscriber(subscriber, subscriptionHandle);
 
+        // Replay retained messages if requested, only possible if the subscription resolved to a single topic
+        if (rawTopicContent != null && (replayOffset >= 0 || replaySince != null)) {
+            List<Message> history = replayOffset >= 0 ?
+                    MessageService.getInstance().getMessageHistory(rawTopicContent, replayOffset) :
+                    MessageService.getInstance().getMessageHistorySince(rawTopicContent, replaySince);
+            try {
+                WSNotificationServer.getInstance().replayMessages(history, newSubscriptionKey);
+            } finally {
+                // The replayed messages hold references to the retained payloads
+                history.forEach(Message::releasePayload);
+            }
+        }
+
         return response;
     }
 
@@ -874,14 +995,23 @@ public class WSNCommandProxy extends AbstractNotificationBroker {
             // Initialize the response object
             GetCurrentMessageResponse response = new GetCurrentMessageResponse();
 
-            WSNTools.NotifyWithContext notifywrapper = WSNTools.buildNotifyWithContext(currentMessage.getMessage(), currentMessage.getTopic(), null, null);
+            // Fetch the content once, as off-heap messages are decoded on every call. The message is a view holding
+            // a reference to the cached payload, which is let go as soon as the content has been read.
+            String messageContent;
+            try {
+                messageContent = currentMessage.getMessage();
+            } finally {
+                currentMessage.releasePayload();
+            }
+
+            WSNTools.NotifyWithContext notifywrapper = WSNTools.buildNotifyWithContext(messageContent, currentMessage.getTopic(), null, null);
             // If it contained XML, we need to create properly marshalled jaxb node structure
-            if (currentMessage.getMessage().contains("<") || currentMessage.getMessage().contains(">")) {
+            if (messageContent.contains("<") || messageContent.contains(">")) {
                 // Unmarshal from raw XML
-                Notify notify = WSNTools.createNotify(currentMessage);
+                Notify notify = WSNTools.createNotify(currentMessage, messageContent);
                 // If it was malformed, or maybe just a message containing < or >, build it as generic content element
                 if (notify == null) {
-                    WSNTools.injectMessageContentIntoNotify(WSNTools.buildGenericContentElement(currentMessage.getMessage()), notifywrapper.notify);
+                    WSNTools.injectMessageContentIntoNotify(WSNTools.buildGenericContentElement(messageContent), notifywrapper.notify);
                     // Else inject the unmarshalled XML nodes into the Notify message attribute
                 } else {
                     WSNTools.injectMessageContentIntoNotify(WSNTools.extractMessageContentFromNotify(notify), notifywrapper.notify);
@@ -503,17 +503,20 @@ public class WSNSubscriptionManager extends AbstractSubscriptionManager implemen
     @Override
     @WebMethod(exclude = true)
     public void subscriptionChanged(SubscriptionChangeEvent e) {
-        // If it is WSNotification subscriber
-        if (e.getData().getOriginProtocol().equals(WSNotificationServer.getInstance().getProtocolServerType())) {
-            // If we are dealing with an Unsubscribe
-            if (e.getType().equals(SubscriptionChangeEvent.Type.UNSUBSCRIBE)) {
-                log.debug("Ubsubscribing " + localSubscriberHandle.get(e.getData().getAttribute(WSN_SUBSCRIBER_TOKEN)));
-                // Remove the local mappings from WS-Nu subscriptionKey to OKSE Subscriber object and WS-Nu subscriptionHandle
-                localSubscriberMap.remove(e.getData().getAttribute(WSN_SUBSCRIBER_TOKEN));
-                localSubscriberHandle.remove(e.getData().getAttribute(WSN_SUBSCRIBER_TOKEN));
-
-            } else if (e.getType().equals(SubscriptionChangeEvent.Type.SUBSCRIBE)) {
-                log.debug("Received a SUBSCRIBE event");
+        // Batched events carry several subscribers, so handle each of them
+        for (Subscriber subscriber : e.getSubscribers()) {
+            // If it is WSNotification subscriber
+            if (subscriber.getOriginProtocol().equals(WSNotificationServer.getInstance().getProtocolServerType())) {
+                // If we are dealing with an Unsubscribe
+                if (e.getType().equals(SubscriptionChangeEvent.Type.UNSUBSCRIBE)) {
+                    log.debug("Ubsubscribing " + localSubscriberHandle.get(subscriber.getAttribute(WSN_SUBSCRIBER_TOKEN)));
+                    // Remove the local mappings from WS-Nu subscriptionKey to OKSE Subscriber object and WS-Nu subscriptionHandle
+                    localSubscriberMap.remove(subscriber.getAttribute(WSN_SUBSCRIBER_TOKEN));
+                    localSubscriberHandle.remove(subscriber.getAttribute(WSN_SUBSCRIBER_TOKEN));
+
+                } else if (e.getType().equals(SubscriptionChangeEvent.Type.SUBSCRIBE)) {
+                    log.debug("Received a SUBSCRIBE event");
+                }
             }
         }
     }
@@ -51,8 +51,10 @@ import javax.xml.transform.*;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.GregorianCalendar;
 import java.util.regex.Matcher;
@@ -167,6 +169,24 @@ public class WSNTools {
         return null;
     }
 
+    /**
+     * Marshals message content that is not a DOM node, e.g. a JAXBElement, into a raw XML string using the
+     * WS-Nu XMLParser
+     *
+     * @param content The message content to marshal
+     * @return A raw XML string representing the content, or null if it could not be marshalled
+     */
+    public static String marshalMessageContent(Object content) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try {
+            XMLParser.writeObjectToStream(content, buffer);
+            return new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+        } catch (JAXBException e) {
+            log.error("Failed to marshal message content of type " + content.getClass().getName());
+        }
+        return null;
+    }
+
     /**
      * Takes in a raw XML string, and uses the WS-Nu XMLParser to unmarshal and link the XML nodes
      *
@@ -191,7 +211,20 @@ public class WSNTools {
      * @return A WS-Notification Notify wrapper containing topic, dialect and message
      */
     public static Notify createNotify(Message m) {
-        String rawXml = generateRawSoapEnvelopedNotifyString(m);
+        return createNotify(m, m.getMessage());
+    }
+
+    /**
+     * Create a WS-Notification Notify wrapper from OKSE Message object, using content that has already been
+     * fetched from the message
+     *
+     * @param m              The OKSE Message object to transform
+     * @param messageContent The content of the message
+     * @return A WS-Notification Notify wrapper containing topic, dialect and message
+     */
+    public static Notify createNotify(Message m, String messageContent) {
+        String rawXml = generateRawSoapEnvelopedNotifyString(
+                m.getTopic(), m.getAttribute(WSNSubscriptionManager.WSN_DIALECT_TOKEN), messageContent);
         InternalMessage result = parseRawXmlString(rawXml);
         if ((result.statusCode & InternalMessage.STATUS_FAULT) > 0) {
             log.error("There was an error during parsing of raw xml string");
@@ -27,6 +27,8 @@ package no.ntnu.okse.protocol.wsn;
 import com.google.common.io.ByteStreams;
 import no.ntnu.okse.Application;
 import no.ntnu.okse.core.messaging.Message;
+import no.ntnu.okse.core.subscription.ContentFilterEngine;
+import no.ntnu.okse.core.subscription.Subscriber;
 import no.ntnu.okse.core.subscription.SubscriptionService;
 import no.ntnu.okse.protocol.AbstractProtocolServer;
 import org.apache.commons.io.IOUtils;
@@ -60,6 +62,7 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -422,93 +425,159 @@ public class WSNotificationServer extends AbstractProtocolServer {
      */
     @Override
     public void sendMessage(Message message) {
+        distributeMessage(message, getActiveRecipients());
+    }
+
+    /**
+     * Batch variant of sendMessage. The set of active recipients is resolved once for the entire batch,
+     * instead of once per message.
+     *
+     * @param messages A list of Message instances to distribute, in delivery order.
+     */
+    @Override
+    public void sendMessages(List<Message> messages) {
+        ArrayList<String> recipients = getActiveRecipients();
+        messages.forEach(m -> distributeMessage(m, recipients));
+    }
+
+    /**
+     * Fetches the subscription keys of all recipients whose subscription has not expired
+     *
+     * @return An ArrayList of subscription keys
+     */
+    private ArrayList<String> getActiveRecipients() {
+        ArrayList<String> recipients = new ArrayList<>();
+        for (String recipient : _commandProxy.getAllRecipients()) {
+            // If the subscription has expired, skip it
+            if (_commandProxy.getProxySubscriptionManager().getSubscriber(recipient).hasExpired()) continue;
+            recipients.add(recipient);
+        }
+        return recipients;
+    }
+
+    /**
+     * Distributes a message to the given recipients, unless it originated from WS-Notification itself
+     *
+     * @param message    The Message to distribute
+     * @param recipients The subscription keys of the recipients that should receive the message
+     */
+    private void distributeMessage(Message message, ArrayList<String> recipients) {
         log.debug("WSNServer received message for distribution");
         if (!message.getOriginProtocol().equals(protocolServerType) || message.getAttribute("duplicate") != null) {
             log.debug("The message originated from other protocol than WSNotification");
+            notifyRecipients(message, recipients);
+        } else {
+            log.debug("Message originated from WSN protocol, already processed");
+        }
+    }
 
-            WSNTools.NotifyWithContext notifywrapper = WSNTools.buildNotifyWithContext(message.getMessage(), message.getTopic(), null, null);
-            // If it contained XML, we need to create properly marshalled jaxb node structure
-            if (message.getMessage().contains("<") || message.getMessage().contains(">")) {
-                // Unmarshal from raw XML
-                Notify notify = WSNTools.createNotify(message);
-                // If it was malformed, or maybe just a message containing < or >, build it as generic content element
-                if (notify == null) {
-                    WSNTools.injectMessageContentIntoNotify(WSNTools.buildGenericContentElement(message.getMessage()), notifywrapper.notify);
-                    // Else inject the unmarshalled XML nodes into the Notify message attribute
-                } else {
-                    WSNTools.injectMessageContentIntoNotify(WSNTools.extractMessageContentFromNotify(notify), notifywrapper.notify);
-                }
-            }
+    /**
+     * Replays retained messages to a single new subscriber, regardless of which protocol they originated from
+     *
+     * @param messages        The messages to replay, in order
+     * @param subscriptionKey The subscription key of the subscriber
+     */
+    public void replayMessages(List<Message> messages, String subscriptionKey) {
+        log.debug("Replaying " + messages.size() + " message(s) to subscriber " + subscriptionKey);
+        ArrayList<String> recipients = new ArrayList<>();
+        recipients.add(subscriptionKey);
+        messages.forEach(m -> notifyRecipients(m, recipients));
+    }
 
-            /*
-                Start to resolve recipients. The reason we cannot re-use the WSNCommandProxy's
-                sendNotification method is that it will inject the message to the MessageService for relay
-                thus creating duplicate messages.
-             */
+    /**
+     * Builds the Notify for a message and hands it to the request parser for each of the given recipients
+     *
+     * @param message    The Message to send
+     * @param recipients The subscription keys of the recipients that should receive the message
+     */
+    private void notifyRecipients(Message message, ArrayList<String> recipients) {
+        // Fetch the content once, as off-heap messages are decoded on every call outside of a delivery
+        String messageContent = message.getMessage();
+
+        WSNTools.NotifyWithContext notifywrapper = WSNTools.buildNotifyWithContext(messageContent, message.getTopic(), null, null);
+        // If it contained XML, we need to create properly marshalled jaxb node structure
+        if (messageContent.contains("<") || messageContent.contains(">")) {
+            // Unmarshal from raw XML
+            Notify notify = WSNTools.createNotify(message, messageContent);
+            // If it was malformed, or maybe just a message containing < or >, build it as generic content element
+            if (notify == null) {
+                WSNTools.injectMessageContentIntoNotify(WSNTools.buildGenericContentElement(messageContent), notifywrapper.notify);
+                // Else inject the unmarshalled XML nodes into the Notify message attribute
+            } else {
+                WSNTools.injectMessageContentIntoNotify(WSNTools.extractMessageContentFromNotify(notify), notifywrapper.notify);
+            }
+        }
 
-            NuNamespaceContextResolver namespaceContextResolver = notifywrapper.nuNamespaceContextResolver;
+        /*
+            Start to resolve recipients. The reason we cannot re-use the WSNCommandProxy's
+            sendNotification method is that it will inject the message to the MessageService for relay
+            thus creating duplicate messages.
+         */
 
-            // bind namespaces to topics
-            for (NotificationMessageHolderType holderType : notifywrapper.notify.getNotificationMessage()) {
+        NuNamespaceContextResolver namespaceContextResolver = notifywrapper.nuNamespaceContextResolver;
 
-                // Extract the topic
-                TopicExpressionType topic = holderType.getTopic();
+        // bind namespaces to topics
+        for (NotificationMessageHolderType holderType : notifywrapper.notify.getNotificationMessage()) {
 
-                if (holderType.getTopic() != null) {
-                    NuNamespaceContextResolver.NuResolvedNamespaceContext context = namespaceContextResolver.resolveNamespaceContext(topic);
+            // Extract the topic
+            TopicExpressionType topic = holderType.getTopic();
 
-                    if (context == null) {
-                        continue;
-                    }
+            if (holderType.getTopic() != null) {
+                NuNamespaceContextResolver.NuResolvedNamespaceContext context = namespaceContextResolver.resolveNamespaceContext(topic);
 
-                    context.getAllPrefixes().forEach(prefix -> {
-                        // check if this is the default xmlns attribute
-                        if (!prefix.equals(XMLConstants.XMLNS_ATTRIBUTE)) {
-                            // add namespace context to the expression node
-                            topic.getOtherAttributes().put(new QName("xmlns:" + prefix), context.getNamespaceURI(prefix));
-                        }
-                    });
+                if (context == null) {
+                    continue;
                 }
-            }
 
-            // For all valid recipients
-            for (String recipient : _commandProxy.getAllRecipients()) {
-
-                // If the subscription has expired, continue
-                if (_commandProxy.getProxySubscriptionManager().getSubscriber(recipient).hasExpired()) continue;
-
-                // Filter do filter handling, if any
-                Notify toSend = _commandProxy.getRecipientFilteredNotify(recipient, notifywrapper.notify, namespaceContextResolver);
-
-                // If any message was left to send, send it
-                if (toSend != null) {
-                    InternalMessage outMessage = new InternalMessage(
-                            InternalMessage.STATUS_OK |
-                                    InternalMessage.STATUS_HAS_MESSAGE |
-                                    InternalMessage.STATUS_ENDPOINTREF_IS_SET,
-                            toSend
-                    );
-                    // Update the requestinformation
-                    outMessage.getRequestInformation().setEndpointReference(_commandProxy.getEndpointReferenceOfRecipient(recipient));
-
-                    // Check if the subscriber has requested raw message format
-                    // If the recipient has requested UseRaw, remove Notify payload wrapping
-                    if (_commandProxy
-                            .getProxySubscriptionManager()
-                            .getSubscriber(recipient)
-                            .getAttribute(WSNSubscriptionManager.WSN_USERAW_TOKEN) != null) {
-
-                        Object content = WSNTools.extractMessageContentFromNotify(toSend);
-                        // Update the InternalMessage with the content of the NotificationMessage
-                        outMessage.setMessage(content);
+                context.getAllPrefixes().forEach(prefix -> {
+                    // check if this is the default xmlns attribute
+                    if (!prefix.equals(XMLConstants.XMLNS_ATTRIBUTE)) {
+                        // add namespace context to the expression node
+                        topic.getOtherAttributes().put(new QName("xmlns:" + prefix), context.getNamespaceURI(prefix));
                     }
+                });
+            }
+        }
 
-                    // Pass it along to the request parser wrapped as a thread pool executed job
-                    clientPool.execute(() -> _requestParser.acceptLocalMessage(outMessage));
+        // Evaluate the message content filters of all recipients against the message in a single pass
+        ContentFilterEngine.Evaluation evaluation = SubscriptionService.getInstance().getContentFilterEngine().evaluate(message);
+
+        // For all valid recipients
+        for (String recipient : recipients) {
+
+            // Skip the recipient if the message does not match its message content filters
+            Subscriber subscriber = _commandProxy.getProxySubscriptionManager().getSubscriber(recipient);
+            if (subscriber != null && !evaluation.matches(subscriber)) continue;
+
+            // Filter do filter handling, if any
+            Notify toSend = _commandProxy.getRecipientFilteredNotify(recipient, notifywrapper.notify, namespaceContextResolver);
+
+            // If any message was left to send, send it
+            if (toSend != null) {
+                InternalMessage outMessage = new InternalMessage(
+                        InternalMessage.STATUS_OK |
+                                InternalMessage.STATUS_HAS_MESSAGE |
+                                InternalMessage.STATUS_ENDPOINTREF_IS_SET,
+                        toSend
+                );
+                // Update the requestinformation
+                outMessage.getRequestInformation().setEndpointReference(_commandProxy.getEndpointReferenceOfRecipient(recipient));
+
+                // Check if the subscriber has requested raw message format
+                // If the recipient has requested UseRaw, remove Notify payload wrapping
+                if (_commandProxy
+                        .getProxySubscriptionManager()
+                        .getSubscriber(recipient)
+                        .getAttribute(WSNSubscriptionManager.WSN_USERAW_TOKEN) != null) {
+
+                    Object content = WSNTools.extractMessageContentFromNotify(toSend);
+                    // Update the InternalMessage with the content of the NotificationMessage
+                    outMessage.setMessage(content);
                 }
+
+                // Pass it along to the request parser wrapped as a thread pool executed job
+                clientPool.execute(() -> _requestParser.acceptLocalMessage(outMessage));
             }
-        } else {
-            log.debug("Message originated from WSN protocol, already processed");
         }
     }
 
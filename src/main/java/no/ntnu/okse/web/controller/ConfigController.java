@@ -10,8 +10,10 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -102,7 +104,11 @@ public class ConfigController {
     ResponseEntity<String> addMapping(@RequestParam(value = "fromTopic") String topic, @RequestParam(value = "toTopic") String newTopic) {
         log.debug("Adding a mapping between Topic{" + topic + "} and Topic{" + newTopic + "}");
         TopicService ts = TopicService.getInstance();
-        ts.addMappingBetweenTopics(topic, newTopic);
+        // Wait for the mapping to take effect, so it is visible to the next request
+        if (!ts.addMappingBetweenTopics(topic, newTopic).join()) {
+            log.debug("The mapping between Topic{" + topic + "} and Topic{" + newTopic + "} would create a cycle");
+            return new ResponseEntity<String>("{ \"message\" :\"Not able to add mapping from Topic{" + topic + "} to Topic{ " + newTopic + " }, as it would create a cycle\" }", HttpStatus.CONFLICT);
+        }
         // TODO: We probably need to add some check somewhere, that checks if the input string is correct.
 
         return new ResponseEntity<String>("{ \"message\" :\"Added mapping from Topic{" + topic + "} to Topic{ " + newTopic + " }\" }", HttpStatus.OK);
@@ -120,7 +126,7 @@ public class ConfigController {
     ResponseEntity<String> deleteMapping(@RequestParam(value = "topic") String topicToRemove) {
         log.debug("Trying to remove the mapping for Topic{" + topicToRemove + "}");
         TopicService ts = TopicService.getInstance();
-        ts.deleteMapping(topicToRemove);
+        ts.deleteMapping(topicToRemove).join();
 
         return new ResponseEntity<String>("{ \"message\" :\"Deleted mapping for Topic{" + topicToRemove + "}\" }", HttpStatus.OK);
     }
@@ -136,9 +142,12 @@ public class ConfigController {
     ResponseEntity<String> deleteAllMapping() {
         log.debug("Trying to delete all mappings");
         TopicService ts = TopicService.getInstance();
+        // Queue all the deletes before waiting for them to complete
+        ArrayList<CompletableFuture<Boolean>> deletes = new ArrayList<>();
         ts.getAllMappings().forEach((k, v) -> {
-            ts.deleteMapping(k);
+            deletes.add(ts.deleteMapping(k));
         });
+        CompletableFuture.allOf(deletes.toArray(new CompletableFuture[deletes.size()])).join();
         return new ResponseEntity<String>("{ \"message\" :\"Deleted all mappings\" }", HttpStatus.OK);
     }
 
@@ -25,6 +25,7 @@
 package no.ntnu.okse.web.controller;
 
 import no.ntnu.okse.core.CoreService;
+import no.ntnu.okse.core.messaging.MessageService;
 import no.ntnu.okse.core.subscription.SubscriptionService;
 import no.ntnu.okse.core.topic.TopicService;
 import no.ntnu.okse.protocol.ProtocolServer;
@@ -64,6 +65,7 @@ public class StatsController {
         CoreService cs = CoreService.getInstance();
         SubscriptionService ss = SubscriptionService.getInstance();
         TopicService ts = TopicService.getInstance();
+        MessageService ms = MessageService.getInstance();
 
         HashMap<String, Object> result = new HashMap<>();
 
@@ -79,6 +81,45 @@ public class StatsController {
             put("topics", ts.getTotalNumberOfTopics());
         }});
 
+        // MessageService statistics
+        result.put("messageServiceStatistics", new HashMap<String, Object>() {{
+            put("dispatchLanes", ms.getNumberOfDispatchLanes());
+            put("laneQueueDepths", ms.getDispatchLaneQueueDepths());
+            put("totalQueuedMessages", ms.getTotalNumberOfQueuedMessages());
+            put("laneCapacity", ms.getDispatchLaneCapacity());
+            put("maxBatchSize", ms.getMaxBatchSize());
+            put("overflowPolicy", ms.getOverflowPolicy());
+            put("droppedMessages", ms.getTotalNumberOfDroppedMessages());
+            put("spilledMessages", ms.getTotalNumberOfSpilledMessages());
+            put("pendingSpilledMessages", ms.getTotalNumberOfPendingSpilledMessages());
+            put("cachedMessages", ms.getLatestMessageCache().size());
+            put("cacheSizeInBytes", ms.getLatestMessageCache().getSizeInBytes());
+            put("cacheHits", ms.getLatestMessageCache().getHits());
+            put("cacheMisses", ms.getLatestMessageCache().getMisses());
+            put("cacheEvictions", ms.getLatestMessageCache().getEvictions());
+            put("cacheExpirations", ms.getLatestMessageCache().getExpirations());
+            put("historySize", ms.getHistorySize());
+            put("messageLogEnabled", ms.getMessageLog() != null);
+            if (ms.getMessageLog() != null) {
+                put("messageLogSegments", ms.getMessageLog().getNumberOfSegments());
+                put("messageLogOutstandingMessages", ms.getMessageLog().getNumberOfOutstandingMessages());
+                put("messageLogAppendedMessages", ms.getMessageLog().getTotalAppendedMessages());
+            }
+        }});
+
+        // Change event bus statistics
+        result.put("eventBusStatistics", new HashMap<String, Object>() {{
+            put("pendingEvents", ts.getTopicEventBus().getTotalNumberOfPendingEvents() +
+                    ss.getSubscriptionEventBus().getTotalNumberOfPendingEvents() +
+                    ss.getPublisherEventBus().getTotalNumberOfPendingEvents());
+            put("droppedEvents", ts.getTopicEventBus().getTotalNumberOfDroppedEvents() +
+                    ss.getSubscriptionEventBus().getTotalNumberOfDroppedEvents() +
+                    ss.getPublisherEventBus().getTotalNumberOfDroppedEvents());
+            put("topicListenerLag", ts.getTopicEventBus().getListenerLag());
+            put("subscriptionListenerLag", ss.getSubscriptionEventBus().getListenerLag());
+            put("publisherListenerLag", ss.getPublisherEventBus().getListenerLag());
+        }});
+
         // ProtocolServer statistics
         ArrayList<ProtocolServer> protocols = cs.getAllProtocolServers();
         ArrayList<ProtocolStats> protocolStats = new ArrayList<>();
@@ -91,7 +91,7 @@ public class SubscriberController {
         log.debug("Deleting subscriber with ID: " + subscriberID);
         SubscriptionService ss = SubscriptionService.getInstance();
         Subscriber s = ss.getSubscriberByID(subscriberID.trim());
-        ss.removeSubscriber(s);
+        ss.removeSubscriber(s).join();
         return s;
     }
 
@@ -105,8 +105,8 @@ public class SubscriberController {
     @ResponseBody
     String deleteAllSubscribers() {
         SubscriptionService ss = SubscriptionService.getInstance();
-        HashSet<Subscriber> allSubscribers = ss.getAllSubscribers();
-        allSubscribers.stream().forEach(s -> ss.removeSubscriber(s));
+        // Remove all the subscribers in a single task, with a single batched event
+        ss.removeSubscribers(ss.getAllSubscribers()).join();
         return "{ \"deleted\" :true }";
     }
 
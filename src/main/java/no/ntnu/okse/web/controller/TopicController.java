@@ -34,6 +34,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Created by Håkon Ødegård Løvdal (hakloev) on 13/03/15.
@@ -92,7 +93,10 @@ public class TopicController {
         log.info("Deleting all topics");
         TopicService ts = TopicService.getInstance();
         HashSet<Topic> allRootTopics = ts.getAllRootTopics();
-        allRootTopics.forEach(t -> ts.deleteTopic(t.getFullTopicString()));
+        // Queue all the deletes before waiting for them to complete
+        ArrayList<CompletableFuture<Boolean>> deletes = new ArrayList<>();
+        allRootTopics.forEach(t -> deletes.add(ts.deleteTopic(t.getFullTopicString())));
+        CompletableFuture.allOf(deletes.toArray(new CompletableFuture[deletes.size()])).join();
 
         return "{ \"messages\" :\"The topic were successfully deleted\" }";
     }
@@ -110,7 +114,7 @@ public class TopicController {
         log.info("Deleting Topic with ID: " + id);
         TopicService ts = TopicService.getInstance();
         Topic t = ts.getTopicByID(id.trim());
-        ts.deleteTopic(t.getFullTopicString());
+        ts.deleteTopic(t.getFullTopicString()).join();
         HashMap<String, Object> result = new HashMap<String, Object>() {{
             put("topicID", t.getTopicID());
             /*put("children", t.getChildren());*/
@@ -0,0 +1,214 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Norwegian Defence Research Establishment / NTNU
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package no.ntnu.okse.core.event;
+
+import no.ntnu.okse.core.event.listeners.SubscriptionChangeListener;
+import no.ntnu.okse.core.subscription.Subscriber;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static no.ntnu.okse.core.TestUtilities.waitUntil;
+import static org.testng.Assert.*;
+
+public class EventBusTest {
+
+    EventBus<SubscriptionChangeListener, SubscriptionChangeEvent> bus;
+    Subscriber s;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        bus = new EventBus<>("Test", SubscriptionChangeListener::subscriptionChanged, 2, 10,
+                e -> e.getType() == SubscriptionChangeEvent.Type.RENEW);
+        s = new Subscriber("0.0.0.0", 8080, "topic", "Test");
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        bus.removeAllListeners();
+    }
+
+    @Test
+    public void testPublishInOrder() throws Exception {
+        bus = new EventBus<>("Test", SubscriptionChangeListener::subscriptionChanged, 100, 1000);
+        List<SubscriptionChangeEvent.Type> first = Collections.synchronizedList(new ArrayList<>());
+        List<SubscriptionChangeEvent.Type> second = Collections.synchronizedList(new ArrayList<>());
+        bus.addListener(e -> first.add(e.getType()));
+        bus.addListener(e -> second.add(e.getType()));
+        assertEquals(bus.getNumberOfListeners(), 2);
+
+        bus.publish(new SubscriptionChangeEvent(SubscriptionChangeEvent.Type.SUBSCRIBE, s));
+        bus.publish(new SubscriptionChangeEvent(SubscriptionChangeEvent.Type.PAUSE, s));
+        bus.publish(new SubscriptionChangeEvent(SubscriptionChangeEvent.Type.RESUME, s));
+        bus.publish(new SubscriptionChangeEvent(SubscriptionChangeEvent.Type.UNSUBSCRIBE, s));
+
+        waitUntil(() -> first.size() == 4 && second.size() == 4);
+        List<SubscriptionChangeEvent.Type> expected = new ArrayList<>();
+        Collections.addAll(expected, SubscriptionChangeEvent.Type.SUBSCRIBE, SubscriptionChangeEvent.Type.PAUSE,
+                SubscriptionChangeEvent.Type.RESUME, SubscriptionChangeEvent.Type.UNSUBSCRIBE);
+        assertEquals(first, expected);
+        assertEquals(second, expected);
+        waitUntil(() -> bus.getTotalNumberOfDeliveredEvents() == 8);
+        assertEquals(bus.getTotalNumberOfDeliveredEvents(), 8);
+        assertEquals(bus.getTotalNumberOfDroppedEvents(), 0);
+    }
+
+    @Test
+    public void testSlowListenerIsIsolated() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<SubscriptionChangeEvent> received = Collections.synchronizedList(new ArrayList<>());
+        SubscriptionChangeListener slow = e -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                // Stopped while waiting
+            }
+        };
+        bus.addListener(slow);
+        bus.addListener(received::add);
+
+        // The slow listener holds one event and queues two more, the rest are droppable and dropped after the offer timeout
+        for (int i = 0; i < 5; i++) bus.publish(new SubscriptionChangeEvent(SubscriptionChangeEvent.Type.RENEW, s));
+        waitUntil(() -> received.size() == 5);
+        assertEquals(received.size(), 5);
+        assertTrue(bus.getTotalNumberOfDroppedEvents() >= 2);
+        assertTrue(bus.getTotalNumberOfPendingEvents() > 0);
+
+        Thread.sleep(20);
+        assertTrue(bus.getListenerLag().values().stream().anyMatch(lag -> lag > 0));
+
+        release.countDown();
+        waitUntil(() -> bus.getTotalNumberOfPendingEvents() == 0);
+        assertEquals(bus.getTotalNumberOfPendingEvents(), 0);
+        assertTrue(bus.getMaxDeliveryLag() > 0);
+    }
+
+    @Test
+    public void testStateChangingEventsWaitForRoom() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<SubscriptionChangeEvent> received = Collections.synchronizedList(new ArrayList<>());
+        bus.addListener(e -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                // Stopped while waiting
+            }
+            received.add(e);
+        });
+
+        Thread publisher = new Thread(() -> {
+            for (int i = 0; i < 5; i++) bus.publish(new SubscriptionChangeEvent(SubscriptionChangeEvent.Type.SUBSCRIBE, s));
+        });
+        publisher.start();
+
+        // One event is being handled and two are queued, so the publisher is held back instead of dropping
+        Thread.sleep(100);
+        assertTrue(publisher.isAlive());
+        assertEquals(bus.getTotalNumberOfDroppedEvents(), 0);
+
+        release.countDown();
+        publisher.join(5000);
+        assertFalse(publisher.isAlive());
+        waitUntil(() -> received.size() == 5);
+        assertEquals(received.size(), 5);
+        assertEquals(bus.getTotalNumberOfDroppedEvents(), 0);
+    }
+
+    @Test
+    public void testRemoveAllListenersDeliversQueuedEvents() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<SubscriptionChangeEvent> received = Collections.synchronizedList(new ArrayList<>());
+        bus.addListener(e -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                // Stopped while waiting
+            }
+            received.add(e);
+        });
+
+        bus.publish(new SubscriptionChangeEvent(SubscriptionChangeEvent.Type.SUBSCRIBE, s));
+        bus.publish(new SubscriptionChangeEvent(SubscriptionChangeEvent.Type.PAUSE, s));
+        bus.publish(new SubscriptionChangeEvent(SubscriptionChangeEvent.Type.UNSUBSCRIBE, s));
+        bus.removeAllListeners();
+        assertEquals(bus.getNumberOfListeners(), 0);
+
+        release.countDown();
+        waitUntil(() -> received.size() == 3);
+        assertEquals(received.size(), 3);
+        assertEquals(received.get(2).getType(), SubscriptionChangeEvent.Type.UNSUBSCRIBE);
+    }
+
+    @Test
+    public void testFailingListener() throws Exception {
+        List<SubscriptionChangeEvent> received = Collections.synchronizedList(new ArrayList<>());
+        bus.addListener(e -> {
+            received.add(e);
+            throw new IllegalStateException("Listener failure");
+        });
+
+        bus.publish(new SubscriptionChangeEvent(SubscriptionChangeEvent.Type.SUBSCRIBE, s));
+        bus.publish(new SubscriptionChangeEvent(SubscriptionChangeEvent.Type.UNSUBSCRIBE, s));
+        waitUntil(() -> received.size() == 2);
+        assertEquals(received.size(), 2);
+    }
+
+    @Test
+    public void testRemoveListener() throws Exception {
+        List<SubscriptionChangeEvent> received = Collections.synchronizedList(new ArrayList<>());
+        SubscriptionChangeListener listener = received::add;
+        bus.addListener(listener);
+        bus.addListener(listener);
+        assertEquals(bus.getNumberOfListeners(), 1);
+        assertTrue(bus.hasListener(listener));
+
+        bus.publish(new SubscriptionChangeEvent(SubscriptionChangeEvent.Type.SUBSCRIBE, s));
+        waitUntil(() -> received.size() == 1);
+        bus.removeListener(listener);
+        assertFalse(bus.hasListener(listener));
+        assertEquals(bus.getNumberOfListeners(), 0);
+
+        bus.publish(new SubscriptionChangeEvent(SubscriptionChangeEvent.Type.UNSUBSCRIBE, s));
+        Thread.sleep(20);
+        assertEquals(received.size(), 1);
+    }
+
+    @Test
+    public void testInvalidCapacity() throws Exception {
+        try {
+            new EventBus<SubscriptionChangeListener, SubscriptionChangeEvent>("Test", SubscriptionChangeListener::subscriptionChanged, 0, 10);
+            fail("Should throw IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+}
@@ -29,6 +29,8 @@ import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.util.HashSet;
+
 import static org.testng.Assert.*;
 
 public class SubscriptionChangeEventTest {
@@ -62,4 +64,20 @@ public class SubscriptionChangeEventTest {
         sce = new SubscriptionChangeEvent(SubscriptionChangeEvent.Type.UNSUBSCRIBE, s);
         assertEquals(sce.getType(), SubscriptionChangeEvent.Type.UNSUBSCRIBE);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testGetSubscribers() throws Exception {
+        assertFalse(sce.isBatch());
+        assertEquals(sce.getSubscribers().size(), 1);
+        assertTrue(sce.getSubscribers().contains(s));
+
+        HashSet<Subscriber> subscribers = new HashSet<>();
+        subscribers.add(s);
+        subscribers.add(new Subscriber("0.0.0.0", 8081, "topic", "Test"));
+        sce = new SubscriptionChangeEvent(SubscriptionChangeEvent.Type.UNSUBSCRIBE, subscribers);
+        assertTrue(sce.isBatch());
+        assertNull(sce.getData());
+        assertEquals(sce.getSubscribers().size(), 2);
+        assertTrue(sce.getSubscribers().contains(s));
+    }
+}
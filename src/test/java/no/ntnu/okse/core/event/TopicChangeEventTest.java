@@ -29,6 +29,8 @@ import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.util.HashSet;
+
 import static org.testng.Assert.*;
 
 public class TopicChangeEventTest {
@@ -59,6 +61,15 @@ public class TopicChangeEventTest {
         assertSame(tce.getData(), two);
     }
 
+    @Test
+    public void testGetFullTopicString() throws Exception {
+        tce = new TopicChangeEvent(TopicChangeEvent.Type.DELETE, two);
+        // The topic string is kept even after the deleted topic is detached from its parent
+        two.setParent(null);
+        assertEquals(tce.getFullTopicString(), "root/sub");
+        assertEquals(tce.getData().getFullTopicString(), "sub");
+    }
+
     @Test
     public void testGetType() throws Exception {
         assertNotNull(tce.getType());
@@ -66,4 +77,18 @@ public class TopicChangeEventTest {
         tce = new TopicChangeEvent(TopicChangeEvent.Type.DELETE, one);
         assertEquals(tce.getType(), TopicChangeEvent.Type.DELETE);
     }
+
+    @Test
+    public void testGetTopics() throws Exception {
+        assertEquals(tce.getTopics().size(), 1);
+        assertTrue(tce.getTopics().contains(two));
+
+        HashSet<Topic> batch = new HashSet<>();
+        batch.add(one);
+        batch.add(two);
+        tce = new TopicChangeEvent(batch);
+        assertEquals(tce.getType(), TopicChangeEvent.Type.NEW_BATCH);
+        assertNull(tce.getData());
+        assertEquals(tce.getTopics(), batch);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,139 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Norwegian Defence Research Establishment / NTNU
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package no.ntnu.okse.core.messaging;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+public class LatestMessageCacheTest {
+
+    LatestMessageCache cache;
+    Message one, two, three;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        // Each message occupies 20 bytes, so the cache fits two of them
+        cache = new LatestMessageCache(40, 0);
+        one = new Message("0123456789", "test/one", null, "Test");
+        two = new Message("0123456789", "test/two", null, "Test");
+        three = new Message("0123456789", "test/three", null, "Test");
+    }
+
+    @Test
+    public void testPutAndGet() throws Exception {
+        assertNull(cache.get("test/one"));
+        cache.put("test/one", one);
+        assertCached(cache.get("test/one"), one);
+        assertEquals(cache.size(), 1);
+        assertEquals(cache.getSizeInBytes(), 20);
+        assertEquals(cache.getHits(), 1);
+        assertEquals(cache.getMisses(), 1);
+    }
+
+    @Test
+    public void testPutReplaces() throws Exception {
+        cache.put("test/one", one);
+        Message newer = new Message("9876543210", "test/one", null, "Test");
+        cache.put("test/one", newer);
+        assertCached(cache.get("test/one"), newer);
+        assertEquals(cache.getSizeInBytes(), 20);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        cache.put("test/one", one);
+        cache.put("test/two", two);
+        // Touch the first topic, so the second is the least recently used
+        cache.get("test/one");
+        cache.put("test/three", three);
+        assertCached(cache.get("test/one"), one);
+        assertNull(cache.get("test/two"));
+        assertCached(cache.get("test/three"), three);
+        assertEquals(cache.getEvictions(), 1);
+        assertEquals(cache.getSizeInBytes(), 40);
+    }
+
+    @Test
+    public void testRejectsOversizedMessage() throws Exception {
+        cache.put("test/one", one);
+        cache.put("test/one", new Message("0123456789012345678901234567890123456789", "test/one", null, "Test"));
+        assertNull(cache.get("test/one"));
+        assertEquals(cache.getSizeInBytes(), 0);
+    }
+
+    @Test
+    public void testTimeToLive() throws Exception {
+        cache.setTimeToLive("test/one", 1);
+        cache.put("test/one", one);
+        cache.put("test/two", two);
+        Thread.sleep(5);
+        assertNull(cache.get("test/one"));
+        assertCached(cache.get("test/two"), two);
+        assertEquals(cache.getExpirations(), 1);
+        assertEquals(cache.getTimeToLive("test/one"), 1);
+        assertEquals(cache.getTimeToLive("test/two"), 0);
+    }
+
+    @Test
+    public void testGetSurvivesReplacement() throws Exception {
+        PayloadBufferPool.configure(8, 1024 * 1024);
+        try {
+            Message offHeap = new Message("0123456789", "test/one", null, "Test");
+            assertTrue(offHeap.isPayloadOffHeap());
+            cache.put("test/one", offHeap);
+            Message current = cache.get("test/one");
+
+            // Replacing the cached message releases it, but the view handed out keeps the payload readable
+            cache.put("test/one", new Message("9876543210", "test/one", null, "Test"));
+            assertEquals(current.getMessage(), "0123456789");
+            current.releasePayload();
+        } finally {
+            PayloadBufferPool.configure(0, 0);
+            PayloadBufferPool.clear();
+        }
+    }
+
+    /**
+     * Checks that a message fetched from the cache is a view of the cached message, and releases it
+     */
+    private void assertCached(Message fetched, Message cached) {
+        assertNotNull(fetched);
+        assertTrue(fetched.isView());
+        assertEquals(fetched.getTopic(), cached.getTopic());
+        assertEquals(fetched.getMessage(), cached.getMessage());
+        fetched.releasePayload();
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        cache.put("test/one", one);
+        assertTrue(cache.remove("test/one"));
+        assertFalse(cache.remove("test/one"));
+        assertEquals(cache.size(), 0);
+        assertEquals(cache.getSizeInBytes(), 0);
+    }
+}
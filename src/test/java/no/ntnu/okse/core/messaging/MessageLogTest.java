@@ -0,0 +1,132 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Norwegian Defence Research Establishment / NTNU
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package no.ntnu.okse.core.messaging;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+import static org.testng.Assert.*;
+
+public class MessageLogTest {
+
+    File directory;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("okse-wal").toFile();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void testReplayUndelivered() throws Exception {
+        MessageLog log = new MessageLog(directory, 4096, MessageLog.FsyncPolicy.ALWAYS);
+        assertTrue(log.open().isEmpty());
+
+        Message one = new Message("one", "no/ffi", null, "Test");
+        Message two = new Message("two with æøå", "no/ffi/test", null, "Test");
+        two.setAttribute("key", "value");
+        log.append(one);
+        log.append(two);
+        assertEquals(log.getNumberOfOutstandingMessages(), 2);
+
+        log.markDelivered(one);
+        log.close();
+
+        // Reopen as if the broker was restarted
+        MessageLog reopened = new MessageLog(directory, 4096, MessageLog.FsyncPolicy.ALWAYS);
+        ArrayList<Message> replay = reopened.open();
+        assertEquals(replay.size(), 1);
+        assertEquals(replay.get(0).getMessage(), "two with æøå");
+        assertEquals(replay.get(0).getTopic(), "no/ffi/test");
+        assertEquals(replay.get(0).getAttribute("key"), "value");
+        assertEquals(reopened.getNumberOfOutstandingMessages(), 1);
+
+        // New messages continue after the replayed ones
+        Message three = new Message("three", "no/ffi", null, "Test");
+        reopened.append(three);
+        assertTrue(three.getLogSequence() > replay.get(0).getLogSequence());
+        reopened.close();
+    }
+
+    @Test
+    public void testDuplicatesKeepMessageOutstanding() throws Exception {
+        MessageLog log = new MessageLog(directory, 4096, MessageLog.FsyncPolicy.NEVER);
+        log.open();
+
+        Message origin = new Message("origin", "no/ffi", null, "Test");
+        log.append(origin);
+        Message first = origin.duplicateForTopic("no/ffi/first");
+        Message second = origin.duplicateForTopic("no/ffi/second");
+        log.addDuplicate(origin, first);
+        log.addDuplicate(origin, second);
+
+        // The origin is only done once every duplicate has been delivered too, whatever the order
+        log.markDelivered(origin);
+        log.markDelivered(first);
+        assertEquals(log.getNumberOfOutstandingMessages(), 1);
+        log.close();
+
+        // Until then the origin is replayed, so its duplicates can be generated again
+        MessageLog reopened = new MessageLog(directory, 4096, MessageLog.FsyncPolicy.NEVER);
+        assertEquals(reopened.open().size(), 1);
+        reopened.close();
+
+        log.markDelivered(second);
+        assertEquals(log.getNumberOfOutstandingMessages(), 0);
+    }
+
+    @Test
+    public void testSegmentsAreRolledAndRemoved() throws Exception {
+        MessageLog log = new MessageLog(directory, 256, MessageLog.FsyncPolicy.NEVER);
+        log.open();
+
+        ArrayList<Message> messages = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Message m = new Message("message number " + i, "no/ffi", null, "Test");
+            log.append(m);
+            messages.add(m);
+        }
+        assertTrue(log.getNumberOfSegments() > 1);
+
+        messages.forEach(log::markDelivered);
+        log.checkpoint();
+        assertEquals(log.getNumberOfSegments(), 1);
+        assertEquals(log.getNumberOfOutstandingMessages(), 0);
+        log.close();
+
+        assertTrue(new MessageLog(directory, 256, MessageLog.FsyncPolicy.NEVER).open().isEmpty());
+    }
+}
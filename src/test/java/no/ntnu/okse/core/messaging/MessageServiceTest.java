@@ -25,19 +25,29 @@
 package no.ntnu.okse.core.messaging;
 
 import no.ntnu.okse.Application;
+import no.ntnu.okse.core.CoreService;
 import no.ntnu.okse.core.topic.Topic;
+import no.ntnu.okse.protocol.AbstractProtocolServer;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Properties;
 
+import static no.ntnu.okse.core.TestUtilities.waitUntil;
 import static org.testng.Assert.*;
 
 public class MessageServiceTest {
 
     MessageService m;
+    MessageService service;
+    RecordingProtocol recorder;
+    boolean protocolServersBooted;
 
     @BeforeMethod
     public void setUp() throws Exception {
@@ -46,9 +56,33 @@ public class MessageServiceTest {
 
     @AfterMethod
     public void tearDown() throws Exception {
+        if (service != null) service.stop();
+        if (recorder != null) CoreService.getInstance().removeProtocolServer(recorder);
+        CoreService.protocolServersBooted = protocolServersBooted;
+        service = null;
+        recorder = null;
         m = null;
     }
 
+    /**
+     * Creates a standalone MessageService with the given lane settings, and registers a protocol server
+     * recording every message delivered on topics starting with the given prefix
+     */
+    private void createService(int lanes, int capacity, int batchSize, String policy, String prefix) {
+        Properties config = new Properties();
+        config.setProperty("MESSAGE_DISPATCH_LANES", Integer.toString(lanes));
+        config.setProperty("MESSAGE_QUEUE_CAPACITY", Integer.toString(capacity));
+        config.setProperty("MESSAGE_BATCH_SIZE", Integer.toString(batchSize));
+        config.setProperty("MESSAGE_QUEUE_OVERFLOW_POLICY", policy);
+        config.setProperty("MESSAGE_SPILL_DIRECTORY", System.getProperty("java.io.tmpdir") + "/okse-spill-" + System.nanoTime());
+        service = new MessageService(config);
+        recorder = new RecordingProtocol(prefix);
+        protocolServersBooted = CoreService.protocolServersBooted;
+        CoreService.getInstance().addProtocolServer(recorder);
+        CoreService.protocolServersBooted = true;
+    }
+
+
     @Test
     public void testIsCachingMessages() throws Exception {
         assertEquals(Application.CACHE_MESSAGES, m.isCachingMessages());
@@ -69,4 +103,285 @@ public class MessageServiceTest {
         });
         assertEquals(generated.size(), 2);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testGetDispatchLaneQueueDepths() throws Exception {
+        assertEquals(m.getDispatchLaneQueueDepths().size(), m.getNumberOfDispatchLanes());
+        assertTrue(m.getNumberOfDispatchLanes() >= 1);
+
+        // Without a running service the messages stay queued in the lane responsible for their topic
+        createService(4, 100, 100, "BLOCK", "depths/");
+        for (int i = 0; i < 3; i++) service.distributeMessage(new Message("message", "depths/a", null, "Test"));
+        List<Integer> depths = service.getDispatchLaneQueueDepths();
+        assertEquals(depths.size(), 4);
+        assertEquals((int) depths.get(service.getLaneIndex("depths/a")), 3);
+        assertEquals(service.getTotalNumberOfQueuedMessages(), 3);
+    }
+
+    @Test
+    public void testSameTopicOrderingAcrossLanes() throws Exception {
+        createService(4, 1000, 100, "BLOCK", "lanes/");
+        String[] topics = {"lanes/a", "lanes/b", "lanes/c", "lanes/d", "lanes/e", "lanes/f", "lanes/g", "lanes/h"};
+        HashSet<Integer> usedLanes = new HashSet<>();
+        for (String topic : topics) usedLanes.add(service.getLaneIndex(topic));
+        // The topics must be spread across lanes, otherwise this does not exercise the parallel lanes at all
+        assertTrue(usedLanes.size() > 1);
+
+        service.boot();
+        for (int i = 0; i < 100; i++) {
+            for (String topic : topics) service.distributeMessage(new Message(Integer.toString(i), topic, null, "Test"));
+        }
+        waitUntil(() -> recorder.getNumberOfReceivedMessages() == 100 * topics.length);
+
+        // Each topic must have been delivered in exactly the order it was published
+        for (String topic : topics) {
+            List<String> received = recorder.getReceivedMessages(topic);
+            assertEquals(received.size(), 100);
+            for (int i = 0; i < 100; i++) assertEquals(received.get(i), Integer.toString(i));
+        }
+    }
+
+    @Test
+    public void testSameTopicOrderingOnSingleLane() throws Exception {
+        // A batch size of one hands every message over in its own batch, so batches must not overtake each other
+        createService(1, 1000, 1, "BLOCK", "single/");
+        String[] topics = {"single/a", "single/b", "single/c"};
+
+        service.boot();
+        for (int i = 0; i < 200; i++) {
+            for (String topic : topics) service.distributeMessage(new Message(Integer.toString(i), topic, null, "Test"));
+        }
+        waitUntil(() -> recorder.getNumberOfReceivedMessages() == 200 * topics.length);
+
+        // Each topic must have been delivered in exactly the order it was published, all from the lane thread
+        for (String topic : topics) {
+            List<String> received = recorder.getReceivedMessages(topic);
+            assertEquals(received.size(), 200);
+            for (int i = 0; i < 200; i++) assertEquals(received.get(i), Integer.toString(i));
+        }
+        assertEquals(recorder.getNumberOfDeliveryThreads(), 1);
+    }
+
+    @Test
+    public void testRequeueToFullLane() throws Exception {
+        createService(1, 1, 100, "BLOCK", "requeue/");
+        service.distributeMessage(new Message("0", "requeue/topic", null, "Test"));
+
+        // The lane is full, so the generated message must wait for the lane thread rather than being delivered here
+        service.requeueMessage(new Message("1", "requeue/topic", null, "Test"));
+        assertEquals(recorder.getNumberOfReceivedMessages(), 0);
+
+        service.boot();
+        waitUntil(() -> recorder.getNumberOfReceivedMessages() == 2);
+        assertEquals(recorder.getReceivedMessages("requeue/topic"), Arrays.asList("0", "1"));
+        assertEquals(recorder.getNumberOfDeliveryThreads(), 1);
+    }
+
+    @Test
+    public void testOverflowPolicyBlock() throws Exception {
+        createService(2, 2, 100, "BLOCK", "overflow/");
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < 3; i++) service.distributeMessage(new Message(Integer.toString(i), "overflow/block", null, "Test"));
+        });
+        producer.start();
+
+        // The third message must wait for room in the full lane, rather than being dropped
+        waitUntil(() -> producer.getState() == Thread.State.WAITING);
+        assertEquals(service.getTotalNumberOfQueuedMessages(), 2);
+        assertEquals(service.getTotalNumberOfDroppedMessages(), 0);
+
+        service.boot();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        waitUntil(() -> recorder.getNumberOfReceivedMessages() == 3);
+        assertEquals(recorder.getReceivedMessages("overflow/block"), Arrays.asList("0", "1", "2"));
+    }
+
+    @Test
+    public void testOverflowPolicyDropNewest() throws Exception {
+        createService(2, 2, 100, "DROP_NEWEST", "overflow/");
+        for (int i = 0; i < 5; i++) service.distributeMessage(new Message(Integer.toString(i), "overflow/newest", null, "Test"));
+
+        // The incoming messages are dropped, the queued ones are kept
+        assertEquals(service.getTotalNumberOfDroppedMessages(), 3);
+        assertEquals(service.getTotalNumberOfQueuedMessages(), 2);
+
+        service.boot();
+        waitUntil(() -> recorder.getNumberOfReceivedMessages() == 2);
+        assertEquals(recorder.getReceivedMessages("overflow/newest"), Arrays.asList("0", "1"));
+    }
+
+    @Test
+    public void testOverflowPolicyDropOldest() throws Exception {
+        createService(2, 2, 100, "DROP_OLDEST", "overflow/");
+        for (int i = 0; i < 5; i++) service.distributeMessage(new Message(Integer.toString(i), "overflow/oldest", null, "Test"));
+
+        // The queued messages are evicted to make room for the incoming ones
+        assertEquals(service.getTotalNumberOfDroppedMessages(), 3);
+        assertEquals(service.getTotalNumberOfQueuedMessages(), 2);
+
+        service.boot();
+        waitUntil(() -> recorder.getNumberOfReceivedMessages() == 2);
+        assertEquals(recorder.getReceivedMessages("overflow/oldest"), Arrays.asList("3", "4"));
+    }
+
+    @Test
+    public void testOverflowPolicyDropOldestAcrossTopics() throws Exception {
+        createService(1, 2, 100, "DROP_OLDEST", "overflow/");
+        for (int i = 0; i < 3; i++) service.distributeMessage(new Message(Integer.toString(i), "overflow/" + i, null, "Test"));
+
+        // The message at the head of the lane is evicted, whatever its topic
+        assertEquals(service.getTotalNumberOfDroppedMessages(), 1);
+
+        service.boot();
+        waitUntil(() -> recorder.getNumberOfReceivedMessages() == 2);
+        assertTrue(recorder.getReceivedMessages("overflow/0").isEmpty());
+        assertEquals(recorder.getReceivedMessages("overflow/1"), Arrays.asList("1"));
+        assertEquals(recorder.getReceivedMessages("overflow/2"), Arrays.asList("2"));
+    }
+
+    @Test
+    public void testOverflowPolicyDropOldestKeepsSystemMessages() throws Exception {
+        createService(1, 2, 100, "DROP_OLDEST", "overflow/");
+        Message system = new Message("0", "overflow/system", null, "Test");
+        system.setSystemMessage(true);
+        service.distributeMessage(system);
+        service.distributeMessage(new Message("1", "overflow/system", null, "Test"));
+
+        // A system message at the head of the lane is never evicted, so the generated message has to wait instead
+        service.requeueMessage(new Message("2", "overflow/system", null, "Test"));
+        assertEquals(service.getTotalNumberOfDroppedMessages(), 0);
+
+        service.boot();
+        waitUntil(() -> recorder.getNumberOfReceivedMessages() == 3);
+        assertEquals(recorder.getReceivedMessages("overflow/system"), Arrays.asList("0", "1", "2"));
+    }
+
+    @Test
+    public void testOverflowPolicySpillToDisk() throws Exception {
+        createService(2, 2, 100, "SPILL_TO_DISK", "overflow/");
+        for (int i = 0; i < 5; i++) service.distributeMessage(new Message(Integer.toString(i), "overflow/spill", null, "Test"));
+
+        // Nothing is lost, the messages that do not fit in the lane wait on disk
+        assertEquals(service.getTotalNumberOfDroppedMessages(), 0);
+        assertEquals(service.getTotalNumberOfSpilledMessages(), 3);
+        assertEquals(service.getTotalNumberOfPendingSpilledMessages(), 3);
+        assertEquals(service.getTotalNumberOfQueuedMessages(), 2);
+
+        service.boot();
+        waitUntil(() -> recorder.getNumberOfReceivedMessages() == 5);
+        assertEquals(recorder.getReceivedMessages("overflow/spill"), Arrays.asList("0", "1", "2", "3", "4"));
+        assertEquals(service.getTotalNumberOfPendingSpilledMessages(), 0);
+    }
+
+    @Test
+    public void testStopWithFullLane() throws Exception {
+        createService(1, 2, 100, "BLOCK", "overflow/");
+        for (int i = 0; i < 2; i++) service.distributeMessage(new Message(Integer.toString(i), "overflow/stop", null, "Test"));
+
+        // The lane is full and nobody drains it, stopping must still return
+        Thread stopper = new Thread(service::stop);
+        stopper.start();
+        stopper.join(5000);
+        assertFalse(stopper.isAlive());
+        service = null;
+    }
+
+    @Test
+    public void testGetMaxBatchSize() throws Exception {
+        assertTrue(m.getMaxBatchSize() >= 1);
+    }
+
+    @Test
+    public void testBatchedDelivery() throws Exception {
+        createService(2, 100, 3, "BLOCK", "batch/");
+        assertEquals(service.getMaxBatchSize(), 3);
+        // Queue up the messages before the lanes are started, so they are all waiting when the lane is drained
+        for (int i = 0; i < 7; i++) service.distributeMessage(new Message(Integer.toString(i), "batch/topic", null, "Test"));
+
+        service.boot();
+        waitUntil(() -> recorder.getNumberOfReceivedMessages() == 7);
+
+        // The lane is drained up to the batch size, and each batch is handed over in a single sendMessages call
+        assertEquals(recorder.getBatchSizes(), Arrays.asList(3, 3, 1));
+        assertEquals(recorder.getReceivedMessages("batch/topic"), Arrays.asList("0", "1", "2", "3", "4", "5", "6"));
+    }
+
+    @Test
+    public void testCacheTopicTimeToLive() throws Exception {
+        Properties config = new Properties();
+        config.setProperty("MESSAGE_CACHE_TTL", "5000");
+        config.setProperty("MESSAGE_CACHE_TOPIC_TTL", "ttl/fast=1000, ttl/slow = 60000,malformed");
+        LatestMessageCache cache = new MessageService(config).getLatestMessageCache();
+
+        assertEquals(cache.getTimeToLive("ttl/fast"), 1000);
+        assertEquals(cache.getTimeToLive("ttl/slow"), 60000);
+        assertEquals(cache.getTimeToLive("ttl/other"), 5000);
+    }
+
+    @Test
+    public void testGetLaneIndex() throws Exception {
+        // System messages without topic always use the first lane
+        assertEquals(m.getLaneIndex(null), 0);
+        // The same topic must always map to the same lane, to preserve ordering
+        assertEquals(m.getLaneIndex("no/ffi/test"), m.getLaneIndex("no/ffi/test"));
+        assertTrue(m.getLaneIndex("no/ffi/test") < m.getNumberOfDispatchLanes());
+    }
+
+    /**
+     * Protocol server recording the messages and batches handed to it by the MessageService
+     */
+    public static class RecordingProtocol extends AbstractProtocolServer {
+        private final String prefix;
+        private final HashMap<String, ArrayList<String>> received = new HashMap<>();
+        private final ArrayList<Integer> batchSizes = new ArrayList<>();
+        private final HashSet<Thread> deliveryThreads = new HashSet<>();
+
+        public RecordingProtocol(String prefix) {
+            this.prefix = prefix;
+        }
+        protected void init(String host, Integer port) {
+            this.host = host;
+            this.port = port;
+        }
+        public void boot() {}
+        public void run() {}
+        public void stopServer() {}
+        public String getProtocolServerType() { return "Recording"; }
+
+        @Override
+        public synchronized void sendMessages(List<Message> messages) {
+            long recorded = messages.stream().filter(message -> isRecorded(message)).count();
+            if (recorded > 0) {
+                batchSizes.add((int) recorded);
+                deliveryThreads.add(Thread.currentThread());
+            }
+            messages.forEach(this::sendMessage);
+        }
+
+        public synchronized void sendMessage(Message message) {
+            // The payload is released once delivered, so the content is copied out right away
+            if (isRecorded(message)) received.computeIfAbsent(message.getTopic(), t -> new ArrayList<>()).add(message.getMessage());
+        }
+
+        private boolean isRecorded(Message message) {
+            return message.getTopic() != null && message.getTopic().startsWith(prefix);
+        }
+
+        public synchronized List<String> getReceivedMessages(String topic) {
+            return new ArrayList<>(received.getOrDefault(topic, new ArrayList<>()));
+        }
+
+        public synchronized int getNumberOfReceivedMessages() {
+            return received.values().stream().mapToInt(ArrayList::size).sum();
+        }
+
+        public synchronized List<Integer> getBatchSizes() {
+            return new ArrayList<>(batchSizes);
+        }
+
+        public synchronized int getNumberOfDeliveryThreads() {
+            return deliveryThreads.size();
+        }
+    }
+}
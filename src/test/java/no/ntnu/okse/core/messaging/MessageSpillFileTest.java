@@ -0,0 +1,88 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Norwegian Defence Research Establishment / NTNU
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package no.ntnu.okse.core.messaging;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+import static org.testng.Assert.*;
+
+public class MessageSpillFileTest {
+
+    File file;
+    MessageSpillFile spillFile;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        file = File.createTempFile("okse", ".spill");
+        file.delete();
+        spillFile = new MessageSpillFile(file);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        spillFile.clear();
+    }
+
+    @Test
+    public void testAppendAndPoll() throws Exception {
+        assertTrue(spillFile.isEmpty());
+        assertNull(spillFile.poll());
+
+        Message one = new Message("one", "no/ffi", null, "Test");
+        one.setAttribute("duplicate", "no/ntnu");
+        Message two = new Message("two\nwith æøå", "no/ffi/test", null, "Test");
+        spillFile.append(one);
+        spillFile.append(two);
+        assertEquals(spillFile.size(), 2);
+        assertTrue(file.exists());
+
+        Message first = spillFile.poll();
+        assertEquals(first.getMessage(), "one");
+        assertEquals(first.getTopic(), "no/ffi");
+        assertEquals(first.getOriginProtocol(), "Test");
+        assertEquals(first.getAttribute("duplicate"), "no/ntnu");
+
+        // Appending while reading must keep the order
+        Message three = new Message("three", "no/ffi", null, "Test");
+        spillFile.append(three);
+
+        assertEquals(spillFile.poll().getMessage(), "two\nwith æøå");
+        assertEquals(spillFile.poll().getMessage(), "three");
+        assertTrue(spillFile.isEmpty());
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        spillFile.append(new Message("one", "no/ffi", null, "Test"));
+        spillFile.clear();
+        assertTrue(spillFile.isEmpty());
+        assertFalse(file.exists());
+    }
+}
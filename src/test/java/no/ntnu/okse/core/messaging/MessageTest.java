@@ -29,6 +29,7 @@ import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.time.temporal.TemporalUnit;
 import java.util.ArrayList;
@@ -70,6 +71,91 @@ public class MessageTest {
         assertEquals(ids.size(), 1337);
     }
 
+    @Test
+    public void testDuplicateForTopic() throws Exception {
+        Message duplicate = m.duplicateForTopic("test/other");
+        assertEquals(duplicate.getTopic(), "test/other");
+        assertSame(duplicate.getMessage(), m.getMessage());
+        assertEquals(duplicate.getOriginProtocol(), m.getOriginProtocol());
+        assertNotEquals(duplicate.getMessageID(), m.getMessageID());
+    }
+
+    @Test
+    public void testDuplicateForTopicAttributes() throws Exception {
+        m.setAttribute("shared", "yes");
+        Message duplicate = m.duplicateForTopic("test/other");
+        assertTrue(duplicate.isView());
+        assertFalse(m.isView());
+        assertEquals(duplicate.getCreationTime(), m.getCreationTime());
+        assertEquals(duplicate.getAttribute("shared"), "yes");
+        duplicate.setAttribute("duplicate", "test/sub");
+        assertEquals(duplicate.getAttribute("duplicate"), "test/sub");
+        assertNull(m.getAttribute("duplicate"));
+        assertEquals(duplicate.getAttributes().size(), 2);
+        assertTrue(duplicate.getMessageID().matches("[0-9a-f]{32}"));
+    }
+
+    @Test
+    public void testOffHeapPayload() throws Exception {
+        PayloadBufferPool.configure(16, 1024 * 1024);
+        try {
+            String content = "An off-heap message body with a non-ASCII character: \u00e6";
+            Message offHeap = new Message(content, "test/sub", null, "Test");
+            assertTrue(offHeap.isPayloadOffHeap());
+            assertFalse(m.isPayloadOffHeap());
+            assertEquals(offHeap.getMessage(), content);
+            assertEquals(offHeap.getPayloadBuffer().remaining(), content.getBytes(StandardCharsets.UTF_8).length);
+
+            // Views share the payload, and keep it alive after the original is released
+            Message view = offHeap.duplicateForTopic("test/other");
+            offHeap.releasePayload();
+            assertEquals(view.getMessage(), content);
+            view.releasePayload();
+            try {
+                view.getMessage();
+                fail("Reading a released payload should fail");
+            } catch (IllegalStateException e) {
+                assertTrue(PayloadBufferPool.getPooledBytes() > 0);
+            }
+        } finally {
+            PayloadBufferPool.configure(0, 0);
+            PayloadBufferPool.clear();
+        }
+    }
+
+    @Test
+    public void testDeliveryDecodesOnce() throws Exception {
+        PayloadBufferPool.configure(16, 1024 * 1024);
+        try {
+            String content = "An off-heap message body that is read by several protocol servers";
+            Message offHeap = new Message(content, "test/sub", null, "Test");
+
+            // Outside of a delivery every read decodes the payload again
+            assertNotSame(offHeap.getMessage(), offHeap.getMessage());
+
+            // During a delivery all readers share the same decoded content
+            offHeap.beginDelivery();
+            String first = offHeap.getMessage();
+            assertEquals(first, content);
+            assertSame(offHeap.getMessage(), first);
+            offHeap.endDelivery();
+            assertNotSame(offHeap.getMessage(), first);
+
+            // The decoded content does not outlive the payload
+            offHeap.beginDelivery();
+            offHeap.releasePayload();
+            try {
+                offHeap.getMessage();
+                fail("Reading a released payload should fail");
+            } catch (IllegalStateException e) {
+                // Expected
+            }
+        } finally {
+            PayloadBufferPool.configure(0, 0);
+            PayloadBufferPool.clear();
+        }
+    }
+
     @Test
     public void testGetMessage() throws Exception {
         assertNotNull(m.getMessage());
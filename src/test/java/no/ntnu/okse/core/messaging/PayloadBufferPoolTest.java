@@ -0,0 +1,83 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Norwegian Defence Research Establishment / NTNU
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package no.ntnu.okse.core.messaging;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.testng.Assert.*;
+
+public class PayloadBufferPoolTest {
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        PayloadBufferPool.configure(1024, 64 * 1024);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        PayloadBufferPool.configure(0, 0);
+        PayloadBufferPool.clear();
+    }
+
+    @Test
+    public void testIsEnabled() throws Exception {
+        assertTrue(PayloadBufferPool.isEnabled());
+        assertEquals(PayloadBufferPool.getThreshold(), 1024);
+        PayloadBufferPool.configure(0, 0);
+        assertFalse(PayloadBufferPool.isEnabled());
+    }
+
+    @Test
+    public void testAcquire() throws Exception {
+        ByteBuffer small = PayloadBufferPool.acquire(10);
+        assertTrue(small.isDirect());
+        assertEquals(small.capacity(), 4096);
+        ByteBuffer large = PayloadBufferPool.acquire(5000);
+        assertEquals(large.capacity(), 8192);
+    }
+
+    @Test
+    public void testRelease() throws Exception {
+        ByteBuffer buffer = PayloadBufferPool.acquire(5000);
+        buffer.put((byte) 1);
+        PayloadBufferPool.release(buffer);
+        assertEquals(PayloadBufferPool.getPooledBytes(), 8192);
+        ByteBuffer reused = PayloadBufferPool.acquire(6000);
+        assertSame(reused, buffer);
+        assertEquals(reused.position(), 0);
+        assertEquals(PayloadBufferPool.getPooledBytes(), 0);
+    }
+
+    @Test
+    public void testReleaseWhenFull() throws Exception {
+        PayloadBufferPool.release(ByteBuffer.allocateDirect(64 * 1024));
+        PayloadBufferPool.release(ByteBuffer.allocateDirect(4096));
+        assertEquals(PayloadBufferPool.getPooledBytes(), 64 * 1024);
+    }
+}
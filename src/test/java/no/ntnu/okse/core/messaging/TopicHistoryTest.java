@@ -0,0 +1,146 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Norwegian Defence Research Establishment / NTNU
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package no.ntnu.okse.core.messaging;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+
+import static org.testng.Assert.*;
+
+public class TopicHistoryTest {
+
+    TopicHistory history;
+    Message one, two, three;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        history = new TopicHistory(2);
+        one = new Message("one", "test", null, "Test");
+        two = new Message("two", "test", null, "Test");
+        three = new Message("three", "test", null, "Test");
+    }
+
+    @Test
+    public void testAppend() throws Exception {
+        assertEquals(history.size(), 0);
+        assertEquals(history.append(one), 0);
+        assertEquals(history.append(two), 1);
+        assertEquals(history.size(), 2);
+        assertEquals(history.getFirstOffset(), 0);
+        assertEquals(history.getNextOffset(), 2);
+
+        // The oldest message is dropped once the capacity is reached
+        assertEquals(history.append(three), 2);
+        assertEquals(history.size(), 2);
+        assertEquals(history.getFirstOffset(), 1);
+        assertEquals(history.getNextOffset(), 3);
+    }
+
+    @Test
+    public void testGetMessagesFromOffset() throws Exception {
+        history.append(one);
+        history.append(two);
+        history.append(three);
+
+        ArrayList<Message> replay = history.getMessagesFromOffset(2);
+        assertEquals(replay.size(), 1);
+        assertEquals(replay.get(0).getMessage(), "three");
+
+        // Offsets older than the history start at the oldest retained message
+        replay = history.getMessagesFromOffset(0);
+        assertEquals(replay.size(), 2);
+        assertEquals(replay.get(0).getMessage(), "two");
+        assertEquals(replay.get(1).getMessage(), "three");
+
+        assertTrue(history.getMessagesFromOffset(3).isEmpty());
+    }
+
+    @Test
+    public void testGetMessagesSince() throws Exception {
+        history.append(one);
+        history.append(two);
+
+        assertEquals(history.getMessagesSince(LocalDateTime.now().minusMinutes(1)).size(), 2);
+        assertTrue(history.getMessagesSince(LocalDateTime.now().plusMinutes(1)).isEmpty());
+
+        ArrayList<Message> replay = history.getMessagesSince(two.getCreationTime());
+        assertTrue(replay.stream().anyMatch(m -> m.getMessage().equals("two")));
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        history.append(one);
+        history.append(two);
+        history.clear();
+        assertEquals(history.size(), 0);
+        assertTrue(history.getMessagesFromOffset(0).isEmpty());
+
+        // Offsets keep increasing after a clear
+        assertEquals(history.append(three), 2);
+        assertEquals(history.getMessagesFromOffset(0).get(0).getMessage(), "three");
+    }
+
+    @Test
+    public void testReplaySurvivesEviction() throws Exception {
+        PayloadBufferPool.configure(4, 1024 * 1024);
+        try {
+            Message first = new Message("first message", "test", null, "Test");
+            assertTrue(first.isPayloadOffHeap());
+            history.append(first);
+            ArrayList<Message> replay = history.getMessagesFromOffset(0);
+            assertTrue(replay.get(0).isView());
+
+            // Pushing the message out of the history releases it, but the replayed view keeps the payload readable
+            history.append(new Message("second message", "test", null, "Test"));
+            history.append(new Message("third message", "test", null, "Test"));
+            assertEquals(replay.get(0).getMessage(), "first message");
+            replay.forEach(Message::releasePayload);
+        } finally {
+            PayloadBufferPool.configure(0, 0);
+            PayloadBufferPool.clear();
+        }
+    }
+
+    @Test
+    public void testParseTimestamp() throws Exception {
+        LocalDateTime expected = LocalDateTime.ofInstant(java.time.Instant.ofEpochMilli(1429272000000L), ZoneId.systemDefault());
+        assertEquals(TopicHistory.parseTimestamp("1429272000000"), expected);
+        assertEquals(TopicHistory.parseTimestamp("2015-04-17T12:00:00Z"), expected);
+    }
+
+    @Test
+    public void testParseTimestampMalformed() throws Exception {
+        try {
+            TopicHistory.parseTimestamp("yesterday");
+            fail("Malformed timestamp should not be accepted");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("yesterday"));
+        }
+    }
+}
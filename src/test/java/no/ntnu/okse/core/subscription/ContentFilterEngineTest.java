@@ -0,0 +1,153 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Norwegian Defence Research Establishment / NTNU
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package no.ntnu.okse.core.subscription;
+
+import no.ntnu.okse.core.messaging.Message;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+public class ContentFilterEngineTest {
+
+    ContentFilterEngine engine;
+    Subscriber cheap, cheapBooks, any, namespaced, invalid;
+    Message book, car, text;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        engine = new ContentFilterEngine();
+
+        cheap = new Subscriber("0.0.0.0", 8080, "filter", "Test");
+        cheap.addContentFilter("/item/price < 100");
+        cheapBooks = new Subscriber("0.0.0.0", 8081, "filter", "Test");
+        cheapBooks.addContentFilter("/item/price < 100 and /item/@type = 'book'");
+        any = new Subscriber("0.0.0.0", 8082, "filter", "Test");
+        namespaced = new Subscriber("0.0.0.0", 8083, "filter", "Test");
+        namespaced.bindContentFilterNamespace("x", "http://example.com/x");
+        namespaced.addContentFilter("/x:item/x:price < 100");
+        invalid = new Subscriber("0.0.0.0", 8084, "filter", "Test");
+        invalid.addContentFilter("/item/price <");
+
+        Arrays.asList(cheap, cheapBooks, any, namespaced, invalid).forEach(engine::register);
+
+        book = new Message("<item type=\"book\"><price>50</price></item>", "filter", null, "Test");
+        car = new Message("<item type=\"car\"><price>5000</price></item>", "filter", null, "Test");
+        text = new Message("plain text content", "filter", null, "Test");
+    }
+
+    @Test
+    public void testRegister() throws Exception {
+        assertTrue(engine.hasFilters(cheap));
+        assertFalse(engine.hasFilters(any));
+        assertEquals(engine.getNumberOfFilteredSubscribers(), 4);
+        // The price conjunct is shared between cheap and cheapBooks
+        assertEquals(engine.getNumberOfPredicates(), 4);
+
+        engine.register(cheap);
+        assertEquals(engine.getNumberOfFilteredSubscribers(), 4);
+        assertEquals(engine.getNumberOfPredicates(), 4);
+    }
+
+    @Test
+    public void testUnregister() throws Exception {
+        engine.unregister(cheapBooks);
+        assertFalse(engine.hasFilters(cheapBooks));
+        assertEquals(engine.getNumberOfPredicates(), 3);
+        engine.unregister(cheap);
+        assertEquals(engine.getNumberOfPredicates(), 2);
+        engine.unregister(cheap);
+        assertEquals(engine.getNumberOfFilteredSubscribers(), 2);
+
+        // Subscribers without compiled filters match everything
+        assertTrue(engine.evaluate(car).matches(cheap));
+    }
+
+    @Test
+    public void testMatches() throws Exception {
+        ContentFilterEngine.Evaluation evaluation = engine.evaluate(book);
+        assertTrue(evaluation.matches(cheap));
+        assertTrue(evaluation.matches(cheapBooks));
+        assertTrue(evaluation.matches(any));
+        assertFalse(evaluation.matches(namespaced));
+        assertFalse(evaluation.matches(invalid));
+
+        evaluation = engine.evaluate(car);
+        assertFalse(evaluation.matches(cheap));
+        assertFalse(evaluation.matches(cheapBooks));
+        assertTrue(evaluation.matches(any));
+
+        Message namespacedBook = new Message("<y:item xmlns:y=\"http://example.com/x\"><y:price>10</y:price></y:item>", "filter", null, "Test");
+        assertTrue(engine.evaluate(namespacedBook).matches(namespaced));
+        assertFalse(engine.evaluate(namespacedBook).matches(cheap));
+    }
+
+    @Test
+    public void testNonXmlContent() throws Exception {
+        Subscriber contains = new Subscriber("0.0.0.0", 8085, "filter", "Test");
+        contains.addContentFilter("contains(/Content, 'plain')");
+        engine.register(contains);
+
+        assertTrue(engine.evaluate(text).matches(contains));
+        assertFalse(engine.evaluate(text).matches(cheap));
+        assertFalse(engine.evaluate(book).matches(contains));
+
+        Message malformed = new Message("<item>plain", "filter", null, "Test");
+        assertTrue(engine.evaluate(malformed).matches(contains));
+    }
+
+    @Test
+    public void testEvaluateContent() throws Exception {
+        assertTrue(engine.evaluate(book.getMessage()).matches(cheapBooks));
+        assertFalse(engine.evaluate(car.getMessage()).matches(cheapBooks));
+        // Empty content is evaluated as an empty Content element
+        assertFalse(engine.evaluate("").matches(cheap));
+        assertTrue(engine.evaluate("").matches(any));
+    }
+
+    @Test
+    public void testFilter() throws Exception {
+        HashSet<Subscriber> matching = engine.filter(book, Arrays.asList(cheap, cheapBooks, any, namespaced, invalid));
+        assertEquals(matching.size(), 3);
+        assertTrue(matching.contains(cheap));
+        assertTrue(matching.contains(cheapBooks));
+        assertTrue(matching.contains(any));
+    }
+
+    @Test
+    public void testSplitConjuncts() throws Exception {
+        assertEquals(ContentFilterEngine.splitConjuncts("a = 1 and b = 2"), Arrays.asList("a = 1", "b = 2"));
+        assertEquals(ContentFilterEngine.splitConjuncts("a[x and y] and b"), Arrays.asList("a[x and y]", "b"));
+        assertEquals(ContentFilterEngine.splitConjuncts("a = ' and ' and b"), Arrays.asList("a = ' and '", "b"));
+        List<String> single = ContentFilterEngine.splitConjuncts("a and b or c");
+        assertEquals(single, Arrays.asList("a and b or c"));
+        assertEquals(ContentFilterEngine.splitConjuncts("/and"), Arrays.asList("/and"));
+        assertEquals(ContentFilterEngine.splitConjuncts("x / and"), Arrays.asList("x / and"));
+    }
+}
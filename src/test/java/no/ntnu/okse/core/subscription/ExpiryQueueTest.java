@@ -0,0 +1,81 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Norwegian Defence Research Establishment / NTNU
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package no.ntnu.okse.core.subscription;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.testng.Assert.*;
+
+public class ExpiryQueueTest {
+
+    ExpiryQueue<String> queue;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        queue = new ExpiryQueue<>();
+        queue.schedule("b", 200L);
+        queue.schedule("a", 100L);
+        queue.schedule("c", 200L);
+        queue.schedule("never", null);
+    }
+
+    @Test
+    public void testPollExpired() throws Exception {
+        assertEquals(queue.size(), 3);
+        assertTrue(queue.pollExpired(99).isEmpty());
+        assertEquals(queue.pollExpired(100), Arrays.asList("a"));
+        assertEquals(queue.pollExpired(1000), Arrays.asList("b", "c"));
+        assertEquals(queue.size(), 0);
+        assertNull(queue.getNextDeadline());
+    }
+
+    @Test
+    public void testReschedule() throws Exception {
+        queue.schedule("a", 300L);
+        assertEquals(queue.size(), 3);
+        assertEquals((long) queue.getNextDeadline(), 200L);
+        ArrayList<String> expired = queue.pollExpired(250);
+        assertEquals(expired.size(), 2);
+        assertFalse(expired.contains("a"));
+        // Rescheduling to null removes the item
+        queue.schedule("a", null);
+        assertEquals(queue.size(), 0);
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        assertTrue(queue.cancel("a"));
+        assertFalse(queue.cancel("a"));
+        assertFalse(queue.cancel("never"));
+        assertEquals((long) queue.getNextDeadline(), 200L);
+        queue.clear();
+        assertEquals(queue.size(), 0);
+        assertTrue(queue.pollExpired(Long.MAX_VALUE).isEmpty());
+    }
+}
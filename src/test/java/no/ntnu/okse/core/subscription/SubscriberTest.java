@@ -147,6 +147,24 @@ public class SubscriberTest {
         assertFalse(s.getFilterSet().contains("filterstring"));
     }
 
+    @Test
+    public void testAddContentFilter() throws Exception {
+        assertTrue(s.getContentFilterSet().isEmpty());
+        s.addContentFilter("//price > 10");
+        assertTrue(s.getContentFilterSet().contains("//price > 10"));
+        assertTrue(s.getFilterSet().contains("//price > 10"));
+        s.removeFilter("//price > 10");
+        assertTrue(s.getContentFilterSet().isEmpty());
+        assertTrue(s.getFilterSet().isEmpty());
+    }
+
+    @Test
+    public void testBindContentFilterNamespace() throws Exception {
+        assertTrue(s.getContentFilterNamespaces().isEmpty());
+        s.bindContentFilterNamespace("ns", "http://example.com/ns");
+        assertEquals(s.getContentFilterNamespaces().get("ns"), "http://example.com/ns");
+    }
+
     @Test
     public void testGetFilterSet() throws Exception {
         assertNotNull(s.getFilterSet());
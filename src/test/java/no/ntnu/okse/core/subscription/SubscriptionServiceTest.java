@@ -0,0 +1,264 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Norwegian Defence Research Establishment / NTNU
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package no.ntnu.okse.core.subscription;
+
+import no.ntnu.okse.core.event.SubscriptionChangeEvent;
+import no.ntnu.okse.core.event.TopicChangeEvent;
+import no.ntnu.okse.core.event.listeners.SubscriptionChangeListener;
+import no.ntnu.okse.core.event.listeners.TopicChangeListener;
+import no.ntnu.okse.core.messaging.Message;
+import no.ntnu.okse.core.topic.TopicService;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static no.ntnu.okse.core.TestUtilities.waitUntil;
+import static org.testng.Assert.*;
+
+public class SubscriptionServiceTest {
+
+    SubscriptionService ss = SubscriptionService.getInstance();
+    Subscriber wsn, amqp, wildcard;
+    Publisher publisher, other;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        ss.boot();
+
+        wsn = new Subscriber("0.0.0.0", 1337, "index/topic", "WSNotification");
+        amqp = new Subscriber("0.0.0.0", 1338, "index/topic", "AMQP");
+        wildcard = new Subscriber("0.0.0.0", 1339, "index/*", "AMQP");
+        publisher = new Publisher("index/topic", "0.0.0.0", 1340, "WSNotification");
+        other = new Publisher("index/other", "0.0.0.0", 1341, "AMQP");
+
+        assertTrue(ss.addSubscriber(wsn).get(5, TimeUnit.SECONDS));
+        assertTrue(ss.addSubscriber(amqp).get(5, TimeUnit.SECONDS));
+        assertTrue(ss.addSubscriber(wildcard).get(5, TimeUnit.SECONDS));
+        assertTrue(ss.addPublisher(publisher).get(5, TimeUnit.SECONDS));
+        assertTrue(ss.addPublisher(other).get(5, TimeUnit.SECONDS));
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        ss.removeSubscriber(wsn).get(5, TimeUnit.SECONDS);
+        ss.removeSubscriber(amqp).get(5, TimeUnit.SECONDS);
+        ss.removeSubscriber(wildcard).get(5, TimeUnit.SECONDS);
+        ss.removePublisher(publisher).get(5, TimeUnit.SECONDS);
+        ss.removePublisher(other).get(5, TimeUnit.SECONDS);
+    }
+
+
+    @Test
+    public void testDeleteNestedTopicRemovesSubscribers() throws Exception {
+        TopicService ts = TopicService.getInstance();
+        ts.boot();
+        // Record the events, so they can be handed to the SubscriptionService once the delete has completed
+        ArrayList<TopicChangeEvent> deleted = new ArrayList<>();
+        TopicChangeListener recorder = event -> {
+            synchronized (deleted) {
+                if (event.getType() == TopicChangeEvent.Type.DELETE) deleted.add(event);
+            }
+        };
+        Subscriber child = new Subscriber("0.0.0.0", 1342, "nested/parent/child", "AMQP");
+        Subscriber parent = new Subscriber("0.0.0.0", 1343, "nested/parent", "AMQP");
+        ts.addTopicChangeListener(recorder);
+        try {
+            ts.addTopic("nested/parent/child").get(5, TimeUnit.SECONDS);
+            assertTrue(ss.addSubscriber(child).get(5, TimeUnit.SECONDS));
+            assertTrue(ss.addSubscriber(parent).get(5, TimeUnit.SECONDS));
+            assertTrue(ts.deleteTopic("nested/parent").get(5, TimeUnit.SECONDS));
+            waitUntil(() -> {
+                synchronized (deleted) {
+                    return deleted.size() == 2;
+                }
+            });
+
+            // The deleted subtree has been detached by now, which must not hide the subscribers of its topics
+            synchronized (deleted) {
+                deleted.forEach(ss::topicChanged);
+            }
+            waitUntil(() -> !ss.getAllSubscribers().contains(child) && !ss.getAllSubscribers().contains(parent));
+        } finally {
+            ts.removeTopicChangeListener(recorder);
+            ss.removeSubscriber(child).get(5, TimeUnit.SECONDS);
+            ss.removeSubscriber(parent).get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testGetAllSubscribersForTopicAndProtocol() throws Exception {
+        HashSet<Subscriber> subscribers = ss.getAllSubscribersForTopic("index/topic", "AMQP");
+        assertEquals(subscribers.size(), 2);
+        assertTrue(subscribers.contains(amqp));
+        assertTrue(subscribers.contains(wildcard));
+        assertEquals(ss.getAllSubscribersForTopic("index/topic", "WSNotification").size(), 1);
+        assertTrue(ss.getAllSubscribersForTopic("index/topic", "Unknown").isEmpty());
+
+        assertTrue(ss.removeSubscriber(amqp).get(5, TimeUnit.SECONDS));
+        assertFalse(ss.getAllSubscribersForTopic("index/topic", "AMQP").contains(amqp));
+    }
+
+    @Test
+    public void testGetAllSubscribersForProtocol() throws Exception {
+        HashSet<Subscriber> subscribers = ss.getAllSubscribersForProtocol("AMQP");
+        assertEquals(subscribers.size(), 2);
+        assertTrue(subscribers.contains(wildcard));
+        assertFalse(subscribers.contains(wsn));
+    }
+
+    @Test
+    public void testGetAllPublishersForTopic() throws Exception {
+        HashSet<Publisher> publishers = ss.getAllPublishersForTopic("index/topic");
+        assertEquals(publishers.size(), 1);
+        assertTrue(publishers.contains(publisher));
+        assertTrue(ss.getAllPublishersForTopic("index/unknown").isEmpty());
+
+        assertTrue(ss.removePublisher(publisher).get(5, TimeUnit.SECONDS));
+        assertTrue(ss.getAllPublishersForTopic("index/topic").isEmpty());
+    }
+
+    @Test
+    public void testGetAllPublishersForProtocol() throws Exception {
+        HashSet<Publisher> publishers = ss.getAllPublishersForProtocol("AMQP");
+        assertEquals(publishers.size(), 1);
+        assertTrue(publishers.contains(other));
+        assertTrue(ss.getAllPublishersForProtocol(null).isEmpty());
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        Subscriber expiring = new Subscriber("0.0.0.0", 1342, "index/expiring", "AMQP");
+        expiring.setTimeout(System.currentTimeMillis() + 50);
+        Subscriber renewed = new Subscriber("0.0.0.0", 1343, "index/expiring", "AMQP");
+        renewed.setTimeout(System.currentTimeMillis() + 50);
+        Publisher expiringPublisher = new Publisher("index/expiring", "0.0.0.0", 1347, "AMQP");
+        expiringPublisher.setTimeout(System.currentTimeMillis() + 50);
+        assertTrue(ss.addSubscriber(expiring).get(5, TimeUnit.SECONDS));
+        assertTrue(ss.addSubscriber(renewed).get(5, TimeUnit.SECONDS));
+        assertTrue(ss.addPublisher(expiringPublisher).get(5, TimeUnit.SECONDS));
+        assertTrue(ss.renewSubscriber(renewed, System.currentTimeMillis() + 60000).get(5, TimeUnit.SECONDS));
+
+        // Expired subscribers and publishers are removed within a few expiry check intervals
+        waitUntil(() -> ss.getSubscriberByID(expiring.getSubscriberID()) == null);
+        assertNotNull(ss.getSubscriberByID(renewed.getSubscriberID()));
+        waitUntil(() -> !ss.getAllPublishers().contains(expiringPublisher));
+        assertFalse(ss.getAllPublishersForTopic("index/expiring").contains(expiringPublisher));
+
+        assertTrue(ss.removeSubscriber(renewed).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testContentFilters() throws Exception {
+        Subscriber filtered = new Subscriber("0.0.0.0", 1346, "index/filtered", "AMQP");
+        filtered.addContentFilter("/item/price < 100");
+        ContentFilterEngine engine = ss.getContentFilterEngine();
+        CompletableFuture<Boolean> added = ss.addSubscriber(filtered);
+        // The filters are compiled before the add task has run
+        assertTrue(engine.hasFilters(filtered));
+        assertTrue(added.get(5, TimeUnit.SECONDS));
+        assertTrue(engine.hasFilters(filtered));
+        // Adding it again fails, but keeps the filters of the registered subscriber
+        assertFalse(ss.addSubscriber(filtered).get(5, TimeUnit.SECONDS));
+        assertTrue(engine.hasFilters(filtered));
+        assertFalse(engine.hasFilters(wsn));
+        assertTrue(engine.evaluate(new Message("<item><price>10</price></item>", "index/filtered", null, "AMQP")).matches(filtered));
+        assertFalse(engine.evaluate(new Message("<item><price>500</price></item>", "index/filtered", null, "AMQP")).matches(filtered));
+
+        assertTrue(ss.removeSubscriber(filtered).get(5, TimeUnit.SECONDS));
+        assertFalse(engine.hasFilters(filtered));
+    }
+
+    @Test
+    public void testRemovePublishers() throws Exception {
+        Publisher extra = new Publisher("index/topic", "0.0.0.0", 1348, "AMQP");
+        assertTrue(ss.addPublisher(extra).get(5, TimeUnit.SECONDS));
+
+        // Publishers that are not registered are left out of the result
+        HashSet<Publisher> removed = ss.removePublishers(Arrays.asList(publisher, extra, null)).get(5, TimeUnit.SECONDS);
+        assertEquals(removed, new HashSet<>(Arrays.asList(publisher, extra)));
+        assertTrue(ss.getAllPublishersForTopic("index/topic").isEmpty());
+        assertTrue(ss.removePublishers(removed).get(5, TimeUnit.SECONDS).isEmpty());
+    }
+
+    @Test
+    public void testBatchOperations() throws Exception {
+        Subscriber first = new Subscriber("0.0.0.0", 1344, "batch/topic", "AMQP");
+        Subscriber second = new Subscriber("0.0.0.0", 1345, "batch/topic", "WSNotification");
+        ArrayList<SubscriptionChangeEvent> events = new ArrayList<>();
+        SubscriptionChangeListener listener = e -> {
+            synchronized (events) {
+                if (e.getSubscribers().contains(first) || e.getSubscribers().contains(second)) events.add(e);
+            }
+        };
+        ss.addSubscriptionChangeListener(listener);
+
+        try {
+            // Already registered subscribers are left out of the result and the event
+            HashSet<Subscriber> added = ss.addSubscribers(Arrays.asList(first, second, wsn)).get(5, TimeUnit.SECONDS);
+            assertEquals(added.size(), 2);
+            assertFalse(added.contains(wsn));
+            assertEquals(ss.getAllSubscribersForTopic("batch/topic").size(), 2);
+
+            assertEquals(ss.pauseSubscribers(added).get(5, TimeUnit.SECONDS).size(), 2);
+            assertEquals(first.getAttribute("paused"), "true");
+            assertEquals(second.getAttribute("paused"), "true");
+            assertEquals(ss.resumeSubscribers(added).get(5, TimeUnit.SECONDS).size(), 2);
+            assertEquals(first.getAttribute("paused"), "false");
+            assertEquals(second.getAttribute("paused"), "false");
+
+            assertEquals(ss.removeSubscribers(added).get(5, TimeUnit.SECONDS).size(), 2);
+            assertNull(ss.getSubscriberByID(first.getSubscriberID()));
+            assertNull(ss.getSubscriberByID(second.getSubscriberID()));
+            assertTrue(ss.removeSubscribers(added).get(5, TimeUnit.SECONDS).isEmpty());
+
+            // Each batch fires a single event covering all the changed subscribers, delivered asynchronously
+            waitUntil(() -> {
+                synchronized (events) {
+                    return events.size() == 4;
+                }
+            });
+            synchronized (events) {
+                assertEquals(events.size(), 4);
+                assertEquals(events.get(0).getType(), SubscriptionChangeEvent.Type.SUBSCRIBE);
+                assertEquals(events.get(1).getType(), SubscriptionChangeEvent.Type.PAUSE);
+                assertEquals(events.get(2).getType(), SubscriptionChangeEvent.Type.RESUME);
+                assertEquals(events.get(3).getType(), SubscriptionChangeEvent.Type.UNSUBSCRIBE);
+                events.forEach(e -> {
+                    assertTrue(e.isBatch());
+                    assertNull(e.getData());
+                    assertEquals(e.getSubscribers().size(), 2);
+                });
+            }
+        } finally {
+            ss.removeSubscriptionChangeListener(listener);
+        }
+    }
+}
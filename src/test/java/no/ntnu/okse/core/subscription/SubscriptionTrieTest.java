@@ -0,0 +1,140 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Norwegian Defence Research Establishment / NTNU
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package no.ntnu.okse.core.subscription;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.HashSet;
+
+import static org.testng.Assert.*;
+
+public class SubscriptionTrieTest {
+
+    SubscriptionTrie trie;
+    Subscriber exact, single, prefix, all;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        trie = new SubscriptionTrie();
+        exact = new Subscriber("0.0.0.0", 1337, "sensors/temp/room1", "Test");
+        single = new Subscriber("0.0.0.0", 1337, "sensors/*/room1", "Test");
+        prefix = new Subscriber("0.0.0.0", 1337, "sensors/#", "Test");
+        all = new Subscriber("0.0.0.0", 1337, null, "Test");
+        trie.add(exact);
+        trie.add(single);
+        trie.add(prefix);
+        trie.add(all);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        trie = null;
+    }
+
+    @Test
+    public void testMatchExact() throws Exception {
+        HashSet<Subscriber> matched = trie.match("sensors/temp/room1");
+        assertEquals(matched.size(), 4);
+        assertTrue(matched.contains(exact));
+        assertTrue(matched.contains(single));
+        assertTrue(matched.contains(prefix));
+        assertTrue(matched.contains(all));
+    }
+
+    @Test
+    public void testMatchSingleLevelWildcard() throws Exception {
+        HashSet<Subscriber> matched = trie.match("sensors/humidity/room1");
+        assertTrue(matched.contains(single));
+        assertFalse(matched.contains(exact));
+
+        // A single level wildcard does not match deeper or shallower topics
+        assertFalse(trie.match("sensors/humidity/room1/north").contains(single));
+        assertFalse(trie.match("sensors/humidity").contains(single));
+    }
+
+    @Test
+    public void testMatchMultiLevelWildcard() throws Exception {
+        assertTrue(trie.match("sensors").contains(prefix));
+        assertTrue(trie.match("sensors/temp").contains(prefix));
+        assertTrue(trie.match("sensors/temp/room2/north").contains(prefix));
+        assertFalse(trie.match("actuators/temp").contains(prefix));
+    }
+
+    @Test
+    public void testMatchAllTopics() throws Exception {
+        HashSet<Subscriber> matched = trie.match("actuators");
+        assertEquals(matched.size(), 1);
+        assertTrue(matched.contains(all));
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        trie.remove(exact);
+        trie.remove(single);
+        assertFalse(trie.match("sensors/temp/room1").contains(exact));
+        assertFalse(trie.match("sensors/temp/room1").contains(single));
+        trie.remove(prefix);
+        trie.remove(all);
+        assertTrue(trie.isEmpty());
+    }
+
+    @Test
+    public void testGetSubscribersWithTopic() throws Exception {
+        HashSet<Subscriber> subscribers = trie.getSubscribersWithTopic("sensors/temp/room1");
+        assertEquals(subscribers.size(), 1);
+        assertTrue(subscribers.contains(exact));
+        assertTrue(trie.getSubscribersWithTopic("sensors/#").contains(prefix));
+        assertTrue(trie.getSubscribersWithTopic(null).contains(all));
+        assertTrue(trie.getSubscribersWithTopic("unknown/topic").isEmpty());
+    }
+
+    @Test
+    public void testGetAllSubscribers() throws Exception {
+        HashSet<Subscriber> subscribers = trie.getAllSubscribers();
+        assertEquals(subscribers.size(), 4);
+        assertTrue(subscribers.contains(exact));
+        assertTrue(subscribers.contains(all));
+        trie.remove(exact);
+        assertFalse(trie.getAllSubscribers().contains(exact));
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        trie.clear();
+        assertTrue(trie.isEmpty());
+        assertTrue(trie.match("sensors/temp/room1").isEmpty());
+    }
+
+    @Test
+    public void testGetConcretePrefix() throws Exception {
+        assertEquals(SubscriptionTrie.getConcretePrefix("sensors/temp"), "sensors/temp");
+        assertEquals(SubscriptionTrie.getConcretePrefix("sensors/#"), "sensors");
+        assertEquals(SubscriptionTrie.getConcretePrefix("sensors/*/room1"), "sensors");
+        assertNull(SubscriptionTrie.getConcretePrefix("*"));
+        assertNull(SubscriptionTrie.getConcretePrefix("#"));
+    }
+}
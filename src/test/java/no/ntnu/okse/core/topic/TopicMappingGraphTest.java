@@ -0,0 +1,138 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Norwegian Defence Research Establishment / NTNU
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package no.ntnu.okse.core.topic;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import static org.testng.Assert.*;
+
+public class TopicMappingGraphTest {
+
+    TopicMappingGraph graph;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        graph = new TopicMappingGraph();
+    }
+
+    @Test
+    public void testAddMapping() throws Exception {
+        assertTrue(graph.isEmpty());
+        assertTrue(graph.addMapping("a", "b"));
+        assertFalse(graph.addMapping("a", "b"));
+        assertFalse(graph.isEmpty());
+        assertEquals(graph.getDirectTargets("a"), new HashSet<>(Arrays.asList("b")));
+        assertTrue(graph.getDirectTargets("b").isEmpty());
+    }
+
+    @Test
+    public void testGetDirectMappingsExcluding() throws Exception {
+        graph.addMapping("a", "b");
+        graph.addMapping("a", "c");
+        graph.addMapping("d", "e");
+        HashMap<String, HashSet<String>> excluded = new HashMap<>();
+        excluded.put("a", new HashSet<>(Arrays.asList("b")));
+        excluded.put("d", new HashSet<>(Arrays.asList("e")));
+
+        // Only the mappings not excluded are left, and sources without any targets left are dropped
+        HashMap<String, HashSet<String>> remaining = graph.getDirectMappingsExcluding(excluded);
+        assertEquals(remaining.size(), 1);
+        assertEquals(remaining.get("a"), new HashSet<>(Arrays.asList("c")));
+        // The graph itself is left untouched
+        assertEquals(graph.getDirectMappings().size(), 2);
+    }
+
+    @Test
+    public void testTransitiveTargets() throws Exception {
+        graph.addMapping("b", "c");
+        graph.addMapping("c", "d");
+        // Adding an edge upstream must pull in everything already reachable downstream
+        graph.addMapping("a", "b");
+        assertEquals(graph.getTransitiveTargets("a"), new HashSet<>(Arrays.asList("b", "c", "d")));
+        // Adding an edge downstream must extend every upstream closure
+        graph.addMapping("d", "e");
+        assertEquals(graph.getTransitiveTargets("a"), new HashSet<>(Arrays.asList("b", "c", "d", "e")));
+        assertEquals(graph.getTransitiveTargets("c"), new HashSet<>(Arrays.asList("d", "e")));
+        // Diamonds yield each target once
+        graph.addMapping("a", "d");
+        assertEquals(graph.getTransitiveTargets("a").size(), 4);
+    }
+
+    @Test
+    public void testCycleRejected() throws Exception {
+        graph.addMapping("a", "b");
+        graph.addMapping("b", "c");
+        assertTrue(graph.wouldCreateCycle("c", "a"));
+        assertTrue(graph.wouldCreateCycle("a", "a"));
+        assertFalse(graph.wouldCreateCycle("a", "c"));
+        try {
+            graph.addMapping("c", "a");
+            fail("Expected IllegalArgumentException on cyclic mapping");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        assertTrue(graph.getTransitiveTargets("c").isEmpty());
+        assertFalse(graph.getTransitiveTargets("a").contains("a"));
+    }
+
+    @Test
+    public void testRemoveMappings() throws Exception {
+        graph.addMapping("a", "b");
+        graph.addMapping("b", "c");
+        graph.addMapping("a", "d");
+        graph.addMapping("d", "c");
+        assertTrue(graph.removeMappings("b"));
+        assertFalse(graph.removeMappings("b"));
+        // c is still reachable from a through d
+        assertEquals(graph.getTransitiveTargets("a"), new HashSet<>(Arrays.asList("b", "c", "d")));
+        assertTrue(graph.removeMappings("d"));
+        assertEquals(graph.getTransitiveTargets("a"), new HashSet<>(Arrays.asList("b", "d")));
+        assertTrue(graph.getTransitiveTargets("d").isEmpty());
+        assertTrue(graph.removeMappings("a"));
+        assertTrue(graph.isEmpty());
+        assertTrue(graph.getTransitiveMappings().isEmpty());
+        // A previously cyclic edge is accepted once the path is gone
+        graph.addMapping("b", "c");
+        assertTrue(graph.addMapping("c", "a"));
+    }
+
+    @Test
+    public void testIsMappingTarget() throws Exception {
+        graph.addMapping("a", "c");
+        graph.addMapping("b", "c");
+        assertTrue(graph.isMappingTarget("c"));
+        assertFalse(graph.isMappingTarget("a"));
+        // c stays a target until the last mapping to it is removed
+        graph.removeMappings("a");
+        assertTrue(graph.isMappingTarget("c"));
+        graph.removeMappings("b");
+        assertFalse(graph.isMappingTarget("c"));
+    }
+}
@@ -28,9 +28,12 @@ import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
 
+import static no.ntnu.okse.core.TestUtilities.waitUntil;
 import static org.testng.Assert.*;
 
 public class TopicServiceTest {
@@ -104,6 +107,57 @@ public class TopicServiceTest {
         assertEquals(three, ts.getTopic(three.getFullTopicString()));
     }
 
+    @Test
+    public void testAddTopics() throws Exception {
+        HashSet<Topic> created = ts.addTopics(Arrays.asList("batch/one", "batch/two", three.getFullTopicString()))
+                .get(5, TimeUnit.SECONDS);
+        // The shared parent is only created once, and existing topics are skipped
+        assertEquals(created.size(), 3);
+        assertTrue(ts.topicExists("batch"));
+        assertTrue(ts.topicExists("batch/one"));
+        assertTrue(ts.topicExists("batch/two"));
+        assertSame(ts.getTopic("batch/one").getParent(), ts.getTopic("batch"));
+
+        // Adding only existing topics completes immediately with no new nodes
+        assertTrue(ts.addTopics(Arrays.asList("batch/one")).get(5, TimeUnit.SECONDS).isEmpty());
+    }
+
+    @Test
+    public void testAddWildcardTopic() throws Exception {
+        // Only the levels before the first wildcard are created
+        ts.addTopic("wildcard/#").get(5, TimeUnit.SECONDS);
+        assertTrue(ts.topicExists("wildcard"));
+        assertFalse(ts.topicExists("wildcard/#"));
+
+        // A topic that is nothing but a wildcard creates nothing at all
+        assertFalse(ts.addTopic("*").get(5, TimeUnit.SECONDS));
+        assertFalse(ts.topicExists("*"));
+
+        HashSet<Topic> created = ts.addTopics(Arrays.asList("wildbatch/*/leaf", "#")).get(5, TimeUnit.SECONDS);
+        assertEquals(created.size(), 1);
+        assertTrue(ts.topicExists("wildbatch"));
+        assertFalse(ts.topicExists("wildbatch/*"));
+        assertFalse(ts.topicExists("#"));
+    }
+
+    @Test
+    public void testGetWorkerIndex() throws Exception {
+        assertTrue(ts.getNumberOfWorkers() >= 1);
+        // Topics under the same root are always handled by the same worker
+        assertEquals(ts.getWorkerIndex("root/one"), ts.getWorkerIndex("root"));
+        assertEquals(ts.getWorkerIndex("root/one"), ts.getWorkerIndex("root/two/three"));
+        int worker = ts.getWorkerIndex("other/one");
+        assertTrue(worker >= 0 && worker < ts.getNumberOfWorkers());
+    }
+
+    @Test
+    public void testGetTopicByID() throws Exception {
+        assertEquals(ts.getTopicByID(three.getTopicID()), three);
+        assertEquals(ts.getTopicByID(rootOne.getTopicID()), rootOne);
+        assertNull(ts.getTopicByID("unknown"));
+        assertNull(ts.getTopicByID(null));
+    }
+
     @Test
     public void testGetAllLeafTopics() throws Exception {
         HashSet<Topic> leafTopics = ts.getAllLeafTopics();
@@ -122,6 +176,107 @@ public class TopicServiceTest {
         assertTrue(ts.topicExists(two.getFullTopicString()));
     }
 
+    @Test
+    public void testGetFanOutTargets() throws Exception {
+        assertNull(ts.getFanOutTargets(rootTwo.getFullTopicString()));
+        assertTrue(ts.addMappingBetweenTopics(rootTwo.getFullTopicString(), two.getFullTopicString()).get(5, TimeUnit.SECONDS));
+        String[] targets = ts.getFanOutTargets(rootTwo.getFullTopicString());
+        assertNotNull(targets);
+        assertEquals(targets.length, 1);
+        assertEquals(targets[0], two.getFullTopicString());
+        assertTrue(ts.deleteMapping(rootTwo.getFullTopicString()).get(5, TimeUnit.SECONDS));
+        assertFalse(ts.deleteMapping(rootTwo.getFullTopicString()).get(5, TimeUnit.SECONDS));
+        assertNull(ts.getFanOutTargets(rootTwo.getFullTopicString()));
+    }
+
+    @Test
+    public void testGetFanOutTargetsTransitive() throws Exception {
+        assertTrue(ts.addMappingBetweenTopics("fanout/a", "fanout/b").get(5, TimeUnit.SECONDS));
+        assertTrue(ts.addMappingBetweenTopics("fanout/b", "fanout/c").get(5, TimeUnit.SECONDS));
+        HashSet<String> targets = new HashSet<>(Arrays.asList(ts.getFanOutTargets("fanout/a")));
+        assertEquals(targets, new HashSet<>(Arrays.asList("fanout/b", "fanout/c")));
+        // Closing the cycle is rejected, and leaves the fan-out table untouched
+        assertFalse(ts.addMappingBetweenTopics("fanout/c", "fanout/a").get(5, TimeUnit.SECONDS));
+        assertNull(ts.getFanOutTargets("fanout/c"));
+        assertTrue(ts.deleteMapping("fanout/b").get(5, TimeUnit.SECONDS));
+        assertEquals(ts.getFanOutTargets("fanout/a").length, 1);
+        assertTrue(ts.deleteMapping("fanout/a").get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testGetFanOutTargetsFollowsTargetTopic() throws Exception {
+        String target = three.getFullTopicString();
+        // Only the source topic is created, the existing target must still end up in the table
+        assertTrue(ts.addMappingBetweenTopics("fanout/source", target).get(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(ts.getFanOutTargets("fanout/source")), Arrays.asList(target));
+
+        // Targets that do not exist are left out, until the topic is created again
+        assertTrue(ts.deleteTopic(target).get(5, TimeUnit.SECONDS));
+        assertNull(ts.getFanOutTargets("fanout/source"));
+        assertTrue(ts.addTopic(target).get(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(ts.getFanOutTargets("fanout/source")), Arrays.asList(target));
+        assertTrue(ts.deleteMapping("fanout/source").get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testReclaimIdleTopics() throws Exception {
+        assertTrue(ts.addTopic("idle/leaf").get(5, TimeUnit.SECONDS));
+        assertTrue(ts.addMappingBetweenTopics("idle/mapped", "idle/target").get(5, TimeUnit.SECONDS));
+        Topic leaf = ts.getTopic("idle/leaf");
+        Thread.sleep(20);
+
+        // Nothing is idle for longer than a minute
+        ts.reclaimIdleTopics(60000, Integer.MAX_VALUE);
+        assertTrue(ts.addTopic("idle/sync").get(5, TimeUnit.SECONDS));
+        assertTrue(ts.topicExists("idle/leaf"));
+
+        // Activity keeps a topic alive, and mapped topics are kept
+        leaf.markPublished();
+        ts.reclaimIdleTopics(10, Integer.MAX_VALUE);
+        assertTrue(ts.deleteTopic("idle/sync").get(5, TimeUnit.SECONDS));
+        assertTrue(ts.topicExists("idle/leaf"));
+        assertTrue(ts.topicExists("idle/mapped"));
+
+        // Idle leaves are removed and detached from their parents
+        Thread.sleep(20);
+        assertTrue(ts.reclaimIdleTopics(10, Integer.MAX_VALUE) >= 1);
+        waitUntil(() -> !ts.topicExists("idle/leaf") && leaf.isRoot());
+        assertTrue(ts.topicExists("idle/mapped"));
+        assertTrue(ts.topicExists("idle/target"));
+
+        // Once unmapped, the leaves go, and the parent is reclaimed when it has become an idle leaf itself
+        assertTrue(ts.deleteMapping("idle/mapped").get(5, TimeUnit.SECONDS));
+        ts.reclaimIdleTopics(10, Integer.MAX_VALUE);
+        waitUntil(() -> ts.getTopic("idle") == null || ts.getTopic("idle").isLeaf());
+        ts.reclaimIdleTopics(10, Integer.MAX_VALUE);
+        waitUntil(() -> !ts.topicExists("idle"));
+        assertFalse(ts.topicExists("idle/mapped"));
+        assertFalse(ts.topicExists("idle/target"));
+    }
+
+    @Test
+    public void testReclaimTopicChecksAgain() throws Exception {
+        assertTrue(ts.addMappingBetweenTopics("recheck/mapped", "recheck/target").get(5, TimeUnit.SECONDS));
+        Topic mapped = ts.getTopic("recheck/mapped");
+        Topic target = ts.getTopic("recheck/target");
+        long cutoff = System.currentTimeMillis() + 60000;
+
+        // The topics may have been mapped after they were inspected, so the task itself must keep them
+        assertFalse(ts.reclaimTopic(mapped, cutoff).get(5, TimeUnit.SECONDS));
+        assertFalse(ts.reclaimTopic(target, cutoff).get(5, TimeUnit.SECONDS));
+        assertTrue(ts.topicExists("recheck/mapped"));
+        assertTrue(ts.topicExists("recheck/target"));
+
+        assertTrue(ts.deleteMapping("recheck/mapped").get(5, TimeUnit.SECONDS));
+        assertTrue(ts.reclaimTopic(target, cutoff).get(5, TimeUnit.SECONDS));
+        assertFalse(ts.topicExists("recheck/target"));
+        assertTrue(ts.deleteTopic("recheck").get(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Waits for a condition that is fulfilled by a task on the TopicService workers
+     */
+
     @Test
     public void testGenerateTopicNodesFromRawTopicString() throws Exception {
         HashSet<Topic> collector = ts.generateTopicNodesFromRawTopicString("no/ffi/test");
@@ -0,0 +1,123 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Norwegian Defence Research Establishment / NTNU
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package no.ntnu.okse.core.topic;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.testng.Assert.*;
+
+public class TopicSnapshotTest {
+
+    File file;
+    Topic root, child, leaf, other;
+    HashMap<String, HashSet<String>> mappings;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        file = Files.createTempFile("okse-topics", ".snapshot").toFile();
+
+        root = new Topic("no", "Default");
+        child = new Topic("ffi", "Default");
+        leaf = new Topic("test", "Custom");
+        other = new Topic("other", "Default");
+        root.addChild(child);
+        child.addChild(leaf);
+
+        mappings = new HashMap<>();
+        mappings.put("no/ffi", new HashSet<>(Arrays.asList("other", "no/ffi/test")));
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        assertEquals(TopicSnapshot.write(file, Arrays.asList(root, other), mappings), 4);
+
+        TopicSnapshot snapshot = TopicSnapshot.read(file);
+        ArrayList<Topic> topics = snapshot.getTopics();
+        assertEquals(topics.size(), 4);
+
+        HashMap<String, Topic> byPath = new HashMap<>();
+        topics.forEach(t -> byPath.put(t.getFullTopicString(), t));
+        assertEquals(byPath.keySet(), new HashSet<>(Arrays.asList("no", "no/ffi", "no/ffi/test", "other")));
+        assertEquals(byPath.get("no/ffi/test").getParent(), byPath.get("no/ffi"));
+        assertEquals(byPath.get("no/ffi/test").getType(), "Custom");
+        assertTrue(byPath.get("other").isRoot());
+        // Parents are always read before their children
+        assertTrue(topics.indexOf(byPath.get("no")) < topics.indexOf(byPath.get("no/ffi")));
+
+        assertEquals(snapshot.getMappings(), mappings);
+    }
+
+    @Test
+    public void testEmptySnapshot() throws Exception {
+        assertEquals(TopicSnapshot.write(file, new ArrayList<>(), new HashMap<>()), 0);
+        TopicSnapshot snapshot = TopicSnapshot.read(file);
+        assertTrue(snapshot.getTopics().isEmpty());
+        assertTrue(snapshot.getMappings().isEmpty());
+    }
+
+    @Test
+    public void testCorruptSnapshot() throws Exception {
+        TopicSnapshot.write(file, Arrays.asList(root), mappings);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() - 1);
+            int last = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(last ^ 0xFF);
+        }
+        try {
+            TopicSnapshot.read(file);
+            fail("Expected IOException on checksum mismatch");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testTruncatedSnapshot() throws Exception {
+        TopicSnapshot.write(file, Arrays.asList(root), mappings);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 4);
+        }
+        try {
+            TopicSnapshot.read(file);
+            fail("Expected IOException on truncated snapshot");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}
@@ -28,6 +28,7 @@ import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 
 import static org.testng.Assert.*;
@@ -242,6 +243,94 @@ public class TopicTest {
         assertEquals(childThree.getFullTopicStringIgnoreCase(), fullTopicForChildThree);
     }
 
+    @Test
+    public void testForEachChild() throws Exception {
+        HashSet<Topic> visited = new HashSet<>();
+        rootOne.forEachChild(t -> visited.add(t));
+        assertEquals(visited.size(), 2);
+        assertTrue(visited.contains(childOne));
+        assertTrue(visited.contains(childTwo));
+        assertEquals(rootOne.getNumberOfChildren(), 2);
+
+        rootOne.removeChild(childOne);
+        assertEquals(rootOne.getNumberOfChildren(), 1);
+        assertFalse(rootOne.getChildren().contains(childOne));
+    }
+
+    @Test
+    public void testWalk() throws Exception {
+        Topic childTen = new Topic("ChildTen", "Topic");
+        childOne.addChild(childTen);
+
+        ArrayList<Topic> visited = new ArrayList<>();
+        rootOne.walk(t -> visited.add(t));
+        assertEquals(visited.size(), 4);
+        assertEquals(visited.get(0), rootOne);
+        // Depth-first, so a node is always visited before its children
+        assertTrue(visited.indexOf(childOne) < visited.indexOf(childTen));
+
+        // Returning false skips the children of a node
+        visited.clear();
+        rootOne.walk(t -> {
+            visited.add(t);
+            return t != childOne;
+        });
+        assertFalse(visited.contains(childTen));
+        assertTrue(visited.contains(childTwo));
+    }
+
+    @Test
+    public void testFullTopicStringCacheInvalidation() throws Exception {
+        Topic childTen = new Topic("ChildTen", "Topic");
+        childThree.addChild(childTen);
+
+        // Repeated lookups return the same interned instance
+        assertSame(childTen.getFullTopicString(), childTen.getFullTopicString());
+        assertSame(childTen.getFullTopicString(), "RootTwo/ChildThree/ChildTen");
+
+        // Renaming an ancestor invalidates the descendants
+        rootTwo.setName("RootTwoRenamed");
+        assertEquals(childTen.getFullTopicString(), "RootTwoRenamed/ChildThree/ChildTen");
+        assertEquals(childTen.getFullTopicStringIgnoreCase(), "roottworenamed/childthree/childten");
+
+        // Reparenting an ancestor invalidates the descendants
+        rootOne.addChild(childThree);
+        assertEquals(childTen.getFullTopicString(), "RootOne/ChildThree/ChildTen");
+        assertEquals(rootTwo.getFullTopicString(), "RootTwoRenamed");
+
+        // Converting to a root node invalidates the path
+        childThree.setParent(null);
+        assertEquals(childTen.getFullTopicString(), "ChildThree/ChildTen");
+    }
+
+    @Test
+    public void testConcurrentReparentingAcrossTrees() throws Exception {
+        // Two threads move nodes between the same two trees in opposite directions
+        Thread toTwo = new Thread(() -> {
+            for (int i = 0; i < 1000; i++) {
+                rootTwo.addChild(childOne);
+                rootOne.addChild(childOne);
+            }
+        });
+        Thread toOne = new Thread(() -> {
+            for (int i = 0; i < 1000; i++) {
+                rootOne.addChild(childThree);
+                rootTwo.addChild(childThree);
+            }
+        });
+        toTwo.start();
+        toOne.start();
+        toTwo.join(10000);
+        toOne.join(10000);
+
+        assertFalse(toTwo.isAlive());
+        assertFalse(toOne.isAlive());
+        assertEquals(childOne.getFullTopicString(), "RootOne/ChildOne");
+        assertEquals(childThree.getFullTopicString(), "RootTwo/ChildThree");
+        assertEquals(rootOne.getChildren().size(), 2);
+        assertEquals(rootTwo.getChildren().size(), 1);
+    }
+
     @Test
     public void testIsAncestorOf() throws Exception {
         Topic parent = new Topic();
@@ -81,19 +81,4 @@ public class DBTest {
         assertTrue(rs.next());
         assertFalse(rs.next());
     }
-
-    @Test
-    public void testInsertPersistantMessage() throws Exception {
-        assertTrue(DB.initDB());
-        assertTrue(DB.insertPersistantMessage("test", "test", "test"));
-    }
-
-    @Test
-    public void testGetPersistantMessages() throws Exception {
-        assertTrue(DB.initDB());
-        assertTrue(DB.insertPersistantMessage("test", "test", "test"));
-        ResultSet rs = DB.getPersistantMessages("test");
-        assertTrue(rs.next());
-        assertFalse(rs.next());
-    }
 }
\ No newline at end of file
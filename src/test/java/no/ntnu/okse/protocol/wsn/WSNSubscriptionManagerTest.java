@@ -45,6 +45,7 @@ import org.testng.annotations.Test;
 
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 import static org.testng.Assert.*;
 
@@ -224,11 +225,14 @@ public class WSNSubscriptionManagerTest {
     public class TestSubscriptionService extends SubscriptionService {
         private HashSet<Subscriber> subscribers = new HashSet<>();
         @Override
-        public void addSubscriber(Subscriber s) { subscribers.add(s); }
+        public CompletableFuture<Boolean> addSubscriber(Subscriber s) {
+            return CompletableFuture.completedFuture(subscribers.add(s));
+        }
         @Override
-        public void removeSubscriber(Subscriber s) {
-            subscribers.remove(s);
+        public CompletableFuture<Boolean> removeSubscriber(Subscriber s) {
+            boolean removed = subscribers.remove(s);
             sm.subscriptionChanged(new SubscriptionChangeEvent(SubscriptionChangeEvent.Type.UNSUBSCRIBE, s));
+            return CompletableFuture.completedFuture(removed);
         }
         @Override
         public HashSet<Subscriber> getAllSubscribers() { return subscribers; }